@@ -0,0 +1,805 @@
+package spreadsheet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * This class represents a spreadsheet that picks its storage layout per region. The cells are
+ * grouped into square tiles. A tile with few cells is kept sparse, in a small open-addressing
+ * table of primitive positions and values. Once the number of cells in a tile reaches the
+ * promotion threshold, the tile is converted to a dense array holding every cell of the tile and a
+ * bitmap of the filled ones. When cells are cleared and the count falls to the demotion threshold,
+ * which is well below the promotion threshold, the tile goes back to the sparse layout. The gap
+ * between the two thresholds keeps a tile that hovers around one of them from converting back and
+ * forth on every write.
+ */
+public class AdaptiveSpreadSheet implements SpreadSheet {
+
+  /**
+   * The number of rows and of columns in a tile.
+   */
+  static final int TILE_SIZE = 64;
+
+  private static final int TILE_CELLS = TILE_SIZE * TILE_SIZE;
+
+  private final Map<Long, Tile> tiles;
+  private final int promoteAt;
+  private final int demoteAt;
+  private int width;
+  private int height;
+  // set when a cell on the edge was cleared, so the width and height must be recomputed
+  private boolean dimensionsStale;
+  private int denseTiles;
+  private long promotions;
+  private long demotions;
+
+  /**
+   * Create an empty spreadsheet that makes a tile dense when half of it is filled and sparse again
+   * when a quarter of it is filled. These are close to where each layout becomes the smaller one.
+   */
+  public AdaptiveSpreadSheet() {
+    this(TILE_CELLS / 2, TILE_CELLS / 4);
+  }
+
+  /**
+   * Create an empty spreadsheet with the given thresholds, as numbers of cells in a tile of
+   * {@value #TILE_SIZE} by {@value #TILE_SIZE} cells.
+   *
+   * @param promoteAt the number of cells at which a sparse tile is made dense
+   * @param demoteAt  the number of cells at which a dense tile is made sparse
+   * @throws IllegalArgumentException if the demotion threshold is negative or not below the
+   *                                  promotion threshold, or the promotion threshold is larger
+   *                                  than a tile
+   */
+  public AdaptiveSpreadSheet(int promoteAt, int demoteAt) throws IllegalArgumentException {
+    if (demoteAt < 0 || demoteAt >= promoteAt || promoteAt > TILE_CELLS) {
+      throw new IllegalArgumentException("Invalid thresholds");
+    }
+    this.tiles = new HashMap<Long, Tile>();
+    this.promoteAt = promoteAt;
+    this.demoteAt = demoteAt;
+    this.width = 0;
+    this.height = 0;
+  }
+
+  /**
+   * Returns the value of the cell at the specified row and column.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the value of the cell at the specified row and column
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    Tile tile = this.tiles.get(tileKey(row, col));
+    return tile == null ? 0 : tile.get(index(row, col));
+  }
+
+  /**
+   * Sets the value of the cell at the specified row and column to the specified value, making its
+   * tile dense if this fills it past the promotion threshold.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    Long key = tileKey(row, col);
+    Tile tile = this.tiles.get(key);
+    if (tile == null) {
+      tile = new SparseTile();
+      this.tiles.put(key, tile);
+    }
+    tile.set(index(row, col), value);
+    if (!tile.isDense() && tile.count() >= this.promoteAt) {
+      this.tiles.put(key, convert(tile, new DenseTile()));
+      this.denseTiles++;
+      this.promotions++;
+    }
+    if ((row + 1) > height) {
+      height = row + 1;
+    }
+
+    if ((col + 1) > width) {
+      width = col + 1;
+    }
+  }
+
+  /**
+   * Empties the cell at the specified row and column, making its tile sparse if this brings it
+   * down to the demotion threshold, and dropping the tile once it is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting at 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void clear(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    Long key = tileKey(row, col);
+    Tile tile = this.tiles.get(key);
+    if (tile == null || !tile.clear(index(row, col))) {
+      return;
+    }
+    if (tile.count() == 0) {
+      this.tiles.remove(key);
+      if (tile.isDense()) {
+        this.denseTiles--;
+      }
+    } else if (tile.isDense() && tile.count() <= this.demoteAt) {
+      this.tiles.put(key, convert(tile, new SparseTile()));
+      this.denseTiles--;
+      this.demotions++;
+    }
+    if ((row + 1 == height) || (col + 1 == width)) {
+      this.dimensionsStale = true;
+    }
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    Tile tile = this.tiles.get(tileKey(row, col));
+    return tile == null || !tile.has(index(row, col));
+  }
+
+  /**
+   * Copies the values of a run of cells in one row into the given buffer, one tile at a time. The
+   * part of the run in a dense tile is copied with a single array copy.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the first column to copy, starting with 0
+   * @param toCol   the last column to copy (inclusive)
+   * @param dest    the buffer to copy the values into
+   * @param offset  the position in the buffer of the value of the first column
+   * @throws IllegalArgumentException if the row or columns are negative, the columns are out of
+   *                                  order or the buffer is too small
+   */
+  @Override
+  public void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+      throws IllegalArgumentException {
+    if ((row < 0) || (fromCol < 0) || (toCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    if ((offset < 0) || (dest.length - offset < toCol - fromCol + 1)) {
+      throw new IllegalArgumentException("Buffer is too small");
+    }
+    int col = fromCol;
+    while (col <= toCol) {
+      // the last column of the run that lies in the same tile
+      int end = (int) Math.min(toCol, (long) (col / TILE_SIZE) * TILE_SIZE + TILE_SIZE - 1);
+      int at = offset + (col - fromCol);
+      Tile tile = this.tiles.get(tileKey(row, col));
+      if (tile == null) {
+        Arrays.fill(dest, at, at + end - col + 1, 0);
+      } else {
+        tile.getRun(index(row, col), end - col + 1, dest, at);
+      }
+      if (end == Integer.MAX_VALUE) {
+        break;
+      }
+      col = end + 1;
+    }
+  }
+
+  /**
+   * Sets a run of cells in one row, one tile at a time. The part of the run in a dense tile is
+   * copied with a single array copy, and a sparse tile is made dense if the run fills it past the
+   * promotion threshold.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the column of the first cell to set, starting with 0
+   * @param values  the buffer holding the values
+   * @param offset  the position in the buffer of the value of the first cell
+   * @param length  the number of cells to set
+   * @throws IllegalArgumentException if the row or column are negative or the buffer does not
+   *                                  hold that many values
+   */
+  @Override
+  public void setRow(int row, int fromCol, double[] values, int offset, int length)
+      throws IllegalArgumentException {
+    if ((row < 0) || (fromCol < 0) || ((long) fromCol + length - 1 > Integer.MAX_VALUE)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((offset < 0) || (length < 0) || (values.length - offset < length)) {
+      throw new IllegalArgumentException("Buffer is too small");
+    }
+    if (length == 0) {
+      return;
+    }
+    int toCol = fromCol + length - 1;
+    int col = fromCol;
+    while (col <= toCol) {
+      // the last column of the run that lies in the same tile
+      int end = (int) Math.min(toCol, (long) (col / TILE_SIZE) * TILE_SIZE + TILE_SIZE - 1);
+      Long key = tileKey(row, col);
+      Tile tile = this.tiles.get(key);
+      if (tile == null) {
+        tile = new SparseTile();
+        this.tiles.put(key, tile);
+      }
+      tile.setRun(index(row, col), end - col + 1, values, offset + (col - fromCol));
+      if (!tile.isDense() && tile.count() >= this.promoteAt) {
+        this.tiles.put(key, convert(tile, new DenseTile()));
+        this.denseTiles++;
+        this.promotions++;
+      }
+      if (end == Integer.MAX_VALUE) {
+        break;
+      }
+      col = end + 1;
+    }
+    if ((row + 1) > height) {
+      height = row + 1;
+    }
+
+    if ((toCol + 1) > width) {
+      width = toCol + 1;
+    }
+  }
+
+  /**
+   * Return the width of this spreadsheet. The width is defined by the cell with the highest column
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    updateDimensions();
+    return this.width;
+  }
+
+  /**
+   * Return the height of this spreadsheet. The height is defined by the cell with the highest row
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    updateDimensions();
+    return this.height;
+  }
+
+  /**
+   * Recompute the width and height from the remaining cells if a cell on the edge was cleared.
+   */
+  private void updateDimensions() {
+    if (!this.dimensionsStale) {
+      return;
+    }
+    int[] extent = new int[2];
+    for (Map.Entry<Long, Tile> entry : this.tiles.entrySet()) {
+      long key = entry.getKey();
+      int firstRow = (int) (key >>> 32) * TILE_SIZE;
+      int firstCol = (int) key * TILE_SIZE;
+      entry.getValue().forEachFilled(index -> {
+        extent[0] = Math.max(extent[0], firstRow + index / TILE_SIZE + 1);
+        extent[1] = Math.max(extent[1], firstCol + index % TILE_SIZE + 1);
+      });
+    }
+    this.height = extent[0];
+    this.width = extent[1];
+    this.dimensionsStale = false;
+  }
+
+  /**
+   * Return an estimate of the heap memory used by this spreadsheet: the map of tiles, with a
+   * boxed key per tile, and the storage of every tile in its current layout.
+   *
+   * @return the estimated memory footprint of this spreadsheet, in bytes
+   */
+  @Override
+  public long memoryFootprint() {
+    long boxedLong = MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 8);
+    long self = MemoryLayout.align(MemoryLayout.OBJECT_HEADER + MemoryLayout.REFERENCE + 6 * 4
+        + 2 * 8 + 1);
+    long total = self + MemoryLayout.hashMap(this.tiles.size()) + this.tiles.size() * boxedLong;
+    for (Tile tile : this.tiles.values()) {
+      total += tile.footprint();
+    }
+    return total;
+  }
+
+  /**
+   * Returns the number of tiles that are currently sparse.
+   *
+   * @return the number of sparse tiles
+   */
+  public int getSparseTileCount() {
+    return this.tiles.size() - this.denseTiles;
+  }
+
+  /**
+   * Returns the number of tiles that are currently dense.
+   *
+   * @return the number of dense tiles
+   */
+  public int getDenseTileCount() {
+    return this.denseTiles;
+  }
+
+  /**
+   * Returns how many times a tile has been made dense.
+   *
+   * @return the number of promotions
+   */
+  public long getPromotionCount() {
+    return this.promotions;
+  }
+
+  /**
+   * Returns how many times a tile has been made sparse again.
+   *
+   * @return the number of demotions
+   */
+  public long getDemotionCount() {
+    return this.demotions;
+  }
+
+  /**
+   * Copy every cell of a tile into an empty tile of the other layout.
+   *
+   * @param from the tile to copy
+   * @param to   the empty tile to copy into
+   * @return the filled tile
+   */
+  private static Tile convert(Tile from, Tile to) {
+    from.forEachFilled(index -> to.set(index, from.get(index)));
+    return to;
+  }
+
+  /**
+   * Returns the key of the tile holding a cell.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the key of the tile
+   */
+  private static Long tileKey(int row, int col) {
+    return ((long) (row / TILE_SIZE) << 32) | (col / TILE_SIZE);
+  }
+
+  /**
+   * Returns the position of a cell within its tile, row by row.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the position in the tile
+   */
+  private static int index(int row, int col) {
+    return (row % TILE_SIZE) * TILE_SIZE + (col % TILE_SIZE);
+  }
+
+  /**
+   * The cells of one tile, addressed by their position in the tile.
+   */
+  private abstract static class Tile {
+
+    /**
+     * Returns the number of filled cells.
+     *
+     * @return the number of filled cells
+     */
+    abstract int count();
+
+    /**
+     * Returns whether this tile keeps every cell in an array.
+     *
+     * @return true if dense, false if sparse
+     */
+    abstract boolean isDense();
+
+    /**
+     * Returns whether a cell is filled.
+     *
+     * @param index the position of the cell
+     * @return true if the cell is filled
+     */
+    abstract boolean has(int index);
+
+    /**
+     * Returns the value of a cell.
+     *
+     * @param index the position of the cell
+     * @return the value, or 0 if the cell is empty
+     */
+    abstract double get(int index);
+
+    /**
+     * Sets the value of a cell.
+     *
+     * @param index the position of the cell
+     * @param value the value
+     */
+    abstract void set(int index, double value);
+
+    /**
+     * Empties a cell.
+     *
+     * @param index the position of the cell
+     * @return true if the cell was filled
+     */
+    abstract boolean clear(int index);
+
+    /**
+     * Calls the action with the position of every filled cell.
+     *
+     * @param action the action
+     */
+    abstract void forEachFilled(IntConsumer action);
+
+    /**
+     * Returns the estimated heap memory used by this tile, in bytes.
+     *
+     * @return the memory footprint
+     */
+    abstract long footprint();
+
+    /**
+     * Copies the values of consecutive cells of one row of the tile, empty cells as 0.
+     *
+     * @param index  the position of the first cell
+     * @param length the number of cells
+     * @param dest   the buffer to copy into
+     * @param offset the position in the buffer of the first value
+     */
+    void getRun(int index, int length, double[] dest, int offset) {
+      for (int k = 0; k < length; k++) {
+        dest[offset + k] = get(index + k);
+      }
+    }
+
+    /**
+     * Sets consecutive cells of one row of the tile to the values in a buffer.
+     *
+     * @param index  the position of the first cell
+     * @param length the number of cells
+     * @param values the buffer holding the values
+     * @param offset the position in the buffer of the first value
+     */
+    void setRun(int index, int length, double[] values, int offset) {
+      for (int k = 0; k < length; k++) {
+        set(index + k, values[offset + k]);
+      }
+    }
+  }
+
+  /**
+   * A tile that keeps its filled cells in an open-addressing hash table with linear probing. The
+   * positions are stored plus one in a short array, so that 0 marks a free slot, and the values
+   * in a parallel double array. The table is kept at most half full.
+   */
+  private static final class SparseTile extends Tile {
+
+    private short[] keys;
+    private double[] values;
+    private int size;
+
+    /**
+     * Create an empty sparse tile.
+     */
+    private SparseTile() {
+      this.keys = new short[16];
+      this.values = new double[16];
+    }
+
+    /**
+     * Returns the slot of the table that holds a position, or the free slot where it would go.
+     *
+     * @param index the position of the cell
+     * @return the slot
+     */
+    private int slot(int index) {
+      int mask = this.keys.length - 1;
+      int slot = (index * 0x9E3779B9 >>> 16) & mask;
+      while (this.keys[slot] != 0 && this.keys[slot] != index + 1) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    /**
+     * Returns the number of filled cells.
+     *
+     * @return the number of filled cells
+     */
+    @Override
+    int count() {
+      return this.size;
+    }
+
+    /**
+     * Returns whether this tile keeps every cell in an array.
+     *
+     * @return true if dense, false if sparse
+     */
+    @Override
+    boolean isDense() {
+      return false;
+    }
+
+    /**
+     * Returns whether a cell is filled.
+     *
+     * @param index the position of the cell
+     * @return true if the cell is filled
+     */
+    @Override
+    boolean has(int index) {
+      return this.keys[slot(index)] != 0;
+    }
+
+    /**
+     * Returns the value of a cell.
+     *
+     * @param index the position of the cell
+     * @return the value, or 0 if the cell is empty
+     */
+    @Override
+    double get(int index) {
+      int slot = slot(index);
+      return this.keys[slot] == 0 ? 0 : this.values[slot];
+    }
+
+    /**
+     * Sets the value of a cell.
+     *
+     * @param index the position of the cell
+     * @param value the value
+     */
+    @Override
+    void set(int index, double value) {
+      int slot = slot(index);
+      if (this.keys[slot] == 0) {
+        if ((this.size + 1) * 2 > this.keys.length) {
+          grow();
+          slot = slot(index);
+        }
+        this.keys[slot] = (short) (index + 1);
+        this.size++;
+      }
+      this.values[slot] = value;
+    }
+
+    /**
+     * Empties a cell.
+     *
+     * @param index the position of the cell
+     * @return true if the cell was filled
+     */
+    @Override
+    boolean clear(int index) {
+      int mask = this.keys.length - 1;
+      int slot = slot(index);
+      if (this.keys[slot] == 0) {
+        return false;
+      }
+      // shift later entries of the probe run back, so that no lookup stops early at the hole
+      int hole = slot;
+      int next = (hole + 1) & mask;
+      while (this.keys[next] != 0) {
+        int home = ((this.keys[next] - 1) * 0x9E3779B9 >>> 16) & mask;
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          this.keys[hole] = this.keys[next];
+          this.values[hole] = this.values[next];
+          hole = next;
+        }
+        next = (next + 1) & mask;
+      }
+      this.keys[hole] = 0;
+      this.size--;
+      return true;
+    }
+
+    /**
+     * Double the size of the table.
+     */
+    private void grow() {
+      short[] oldKeys = this.keys;
+      double[] oldValues = this.values;
+      this.keys = new short[oldKeys.length * 2];
+      this.values = new double[oldKeys.length * 2];
+      for (int k = 0; k < oldKeys.length; k++) {
+        if (oldKeys[k] != 0) {
+          int slot = slot(oldKeys[k] - 1);
+          this.keys[slot] = oldKeys[k];
+          this.values[slot] = oldValues[k];
+        }
+      }
+    }
+
+    /**
+     * Calls the action with the position of every filled cell.
+     *
+     * @param action the action
+     */
+    @Override
+    void forEachFilled(IntConsumer action) {
+      for (short key : this.keys) {
+        if (key != 0) {
+          action.accept(key - 1);
+        }
+      }
+    }
+
+    /**
+     * Returns the estimated heap memory used by this tile, in bytes.
+     *
+     * @return the memory footprint
+     */
+    @Override
+    long footprint() {
+      return MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 2 * MemoryLayout.REFERENCE + 4)
+          + MemoryLayout.array(this.keys.length, 2) + MemoryLayout.array(this.values.length, 8);
+    }
+  }
+
+  /**
+   * A tile that keeps the value of every cell in an array, with a bitmap of the filled cells.
+   * Empty cells hold 0, so a run of cells can be copied straight out of the array.
+   */
+  private static final class DenseTile extends Tile {
+
+    private final double[] values = new double[TILE_CELLS];
+    private final long[] filled = new long[TILE_CELLS / 64];
+    private int size;
+
+    /**
+     * Returns the number of filled cells.
+     *
+     * @return the number of filled cells
+     */
+    @Override
+    int count() {
+      return this.size;
+    }
+
+    /**
+     * Returns whether this tile keeps every cell in an array.
+     *
+     * @return true if dense, false if sparse
+     */
+    @Override
+    boolean isDense() {
+      return true;
+    }
+
+    /**
+     * Returns whether a cell is filled.
+     *
+     * @param index the position of the cell
+     * @return true if the cell is filled
+     */
+    @Override
+    boolean has(int index) {
+      return (this.filled[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Returns the value of a cell.
+     *
+     * @param index the position of the cell
+     * @return the value, or 0 if the cell is empty
+     */
+    @Override
+    double get(int index) {
+      return this.values[index];
+    }
+
+    /**
+     * Sets the value of a cell.
+     *
+     * @param index the position of the cell
+     * @param value the value
+     */
+    @Override
+    void set(int index, double value) {
+      if (!has(index)) {
+        this.filled[index >>> 6] |= 1L << index;
+        this.size++;
+      }
+      this.values[index] = value;
+    }
+
+    /**
+     * Empties a cell.
+     *
+     * @param index the position of the cell
+     * @return true if the cell was filled
+     */
+    @Override
+    boolean clear(int index) {
+      if (!has(index)) {
+        return false;
+      }
+      this.filled[index >>> 6] &= ~(1L << index);
+      this.values[index] = 0;
+      this.size--;
+      return true;
+    }
+
+    /**
+     * Calls the action with the position of every filled cell.
+     *
+     * @param action the action
+     */
+    @Override
+    void forEachFilled(IntConsumer action) {
+      for (int w = 0; w < this.filled.length; w++) {
+        long word = this.filled[w];
+        while (word != 0) {
+          action.accept(w * 64 + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+    }
+
+    /**
+     * Returns the estimated heap memory used by this tile, in bytes.
+     *
+     * @return the memory footprint
+     */
+    @Override
+    long footprint() {
+      return MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 2 * MemoryLayout.REFERENCE + 4)
+          + MemoryLayout.array(TILE_CELLS, 8) + MemoryLayout.array(TILE_CELLS / 64, 8);
+    }
+
+    /**
+     * Copies the values of consecutive cells of one row of the tile, empty cells as 0.
+     *
+     * @param index  the position of the first cell
+     * @param length the number of cells
+     * @param dest   the buffer to copy into
+     * @param offset the position in the buffer of the first value
+     */
+    @Override
+    void getRun(int index, int length, double[] dest, int offset) {
+      System.arraycopy(this.values, index, dest, offset, length);
+    }
+
+    /**
+     * Sets consecutive cells of one row of the tile with a single array copy. A row of a tile is
+     * one word of the bitmap, so the run is marked filled with a single mask.
+     *
+     * @param index  the position of the first cell
+     * @param length the number of cells
+     * @param values the buffer holding the values
+     * @param offset the position in the buffer of the first value
+     */
+    @Override
+    void setRun(int index, int length, double[] values, int offset) {
+      System.arraycopy(values, offset, this.values, index, length);
+      long mask = (length == 64 ? -1L : (1L << length) - 1) << index;
+      long word = this.filled[index >>> 6];
+      this.size += Long.bitCount(mask & ~word);
+      this.filled[index >>> 6] = word | mask;
+    }
+  }
+}
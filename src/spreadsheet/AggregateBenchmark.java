@@ -0,0 +1,174 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A harness that times the aggregate macros over a dense range. It fills every cell of an area of
+ * each implementation, then reduces the whole area with each function, once through the
+ * {@link AggregateMacro}, which reads a row at a time into a buffer and reduces it with the
+ * {@link Aggregates} kernels, and once with a plain loop that reads and combines the cells one by
+ * one. It reports the nanoseconds per cell of both, and checks that they agree.
+ *
+ * <p>Usage: {@code java spreadsheet.AggregateBenchmark [rows cols [rounds]]}. Without arguments
+ * the area is 1000 by 10000, which is 10^7 cells, and each measurement is the best of 5 rounds
+ * after as many rounds of warm-up. Filling the area takes most of the heap of a default JVM with
+ * the sparse implementation, so give it a few gigabytes.
+ */
+public class AggregateBenchmark {
+
+  private final Map<String, Supplier<SpreadSheet>> implementations;
+
+  /**
+   * Create a harness that times the given implementations.
+   *
+   * @param implementations the factories of the sheets to time, by name
+   * @throws IllegalArgumentException if there are no implementations
+   */
+  public AggregateBenchmark(Map<String, Supplier<SpreadSheet>> implementations)
+      throws IllegalArgumentException {
+    if (implementations == null || implementations.isEmpty()) {
+      throw new IllegalArgumentException("No implementations to compare");
+    }
+    this.implementations = new LinkedHashMap<String, Supplier<SpreadSheet>>(implementations);
+  }
+
+  /**
+   * Time every function on every implementation and write one line per pair to the output.
+   *
+   * @param rows   the number of rows in the area
+   * @param cols   the number of columns in the area
+   * @param rounds the number of rounds to warm up and to measure
+   * @param out    where to write the report
+   * @throws IllegalArgumentException if the area or the number of rounds is invalid
+   */
+  public void run(int rows, int cols, int rounds, Appendable out)
+      throws IllegalArgumentException {
+    if (rows <= 0 || cols <= 0 || rounds <= 0) {
+      throw new IllegalArgumentException("Area and rounds must be positive");
+    }
+    for (Map.Entry<String, Supplier<SpreadSheet>> implementation :
+        this.implementations.entrySet()) {
+      SpreadSheet sheet = implementation.getValue().get();
+      for (int i = 0; i < rows; i++) {
+        for (int j = 0; j < cols; j++) {
+          sheet.set(i, j, (i * 31 + j) % 1000 - 500);
+        }
+      }
+      long cells = (long) rows * cols;
+      for (AggregateMacro.Function function : new AggregateMacro.Function[] {
+          AggregateMacro.Function.SUM, AggregateMacro.Function.MIN,
+          AggregateMacro.Function.MAX}) {
+        AggregateMacro macro = new AggregateMacro(function, 0, 0, rows - 1, cols - 1, rows, 0);
+        double[] kernel = new double[1];
+        double[] loop = new double[1];
+        long kernelTime = best(rounds, () -> kernel[0] = macro.compute(sheet));
+        long loopTime = best(rounds, () -> loop[0] = cellByCell(sheet, function, rows, cols));
+        String agree = equal(kernel[0], loop[0]) ? "yes" : "NO";
+        write(out, String.format("%-12s %-4s %10d %10.2f %10.2f %6s%n", implementation.getKey(),
+            function.name().toLowerCase(), cells, (double) kernelTime / cells,
+            (double) loopTime / cells, agree));
+      }
+    }
+  }
+
+  /**
+   * Returns the shortest time taken by a task over some rounds, after as many rounds of warm-up.
+   *
+   * @param rounds the number of rounds
+   * @param task   the task to time
+   * @return the shortest time, in nanoseconds
+   */
+  private static long best(int rounds, Runnable task) {
+    for (int k = 0; k < rounds; k++) {
+      task.run();
+    }
+    long best = Long.MAX_VALUE;
+    for (int k = 0; k < rounds; k++) {
+      long start = System.nanoTime();
+      task.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  /**
+   * Reduce an area by reading and combining its cells one at a time.
+   *
+   * @param sheet    the sheet
+   * @param function the function to reduce with
+   * @param rows     the number of rows in the area
+   * @param cols     the number of columns in the area
+   * @return the result of the function over the area
+   */
+  private double cellByCell(SpreadSheet sheet, AggregateMacro.Function function, int rows,
+      int cols) {
+    double result = function == AggregateMacro.Function.MIN ? Double.POSITIVE_INFINITY
+        : function == AggregateMacro.Function.MAX ? Double.NEGATIVE_INFINITY : 0;
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < cols; j++) {
+        double value = sheet.get(i, j);
+        switch (function) {
+          case MIN:
+            result = Math.min(result, value);
+            break;
+          case MAX:
+            result = Math.max(result, value);
+            break;
+          default:
+            result += value;
+            break;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns whether two results agree, allowing for the different order of the additions.
+   *
+   * @param a one result
+   * @param b the other result
+   * @return true if they agree
+   */
+  private static boolean equal(double a, double b) {
+    return Math.abs(a - b) <= 1e-9 * Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+  }
+
+  /**
+   * Write a message to the given output.
+   *
+   * @param out     the output
+   * @param message the message to write
+   * @throws IllegalStateException if the message cannot be written
+   */
+  private static void write(Appendable out, String message) throws IllegalStateException {
+    try {
+      out.append(message);
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  /**
+   * main method of the harness.
+   *
+   * @param args the rows, columns and rounds, all optional
+   */
+  public static void main(String[] args) {
+    Map<String, Supplier<SpreadSheet>> implementations =
+        new LinkedHashMap<String, Supplier<SpreadSheet>>();
+    implementations.put("adaptive", AdaptiveSpreadSheet::new);
+    implementations.put("sparse", SparseSpreadSheet::new);
+    AggregateBenchmark benchmark = new AggregateBenchmark(implementations);
+
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int cols = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    System.out.printf("%-12s %-4s %10s %10s %10s %6s%n", "sheet", "fn", "cells", "kernel ns",
+        "loop ns", "agree");
+    benchmark.run(rows, cols, rounds, System.out);
+  }
+}
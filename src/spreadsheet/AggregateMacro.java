@@ -0,0 +1,165 @@
+package spreadsheet;
+//sum|min|max from-row-num from-col-num to-row-num to-col-num dest-row-num dest-col-num.
+// This will compute the sum, minimum or maximum of a range of cells and put it in the specified
+// destination cell. For example sum A 1 B 10 C 2 computes the sum of the 20 values in A1:B10 and
+// stores it in the cell C2. Empty cells count as 0.
+
+/**
+ * This class represents the AggregateMacro class that implements the SpreadSheetMacro interface.
+ * This class represents a macro that reduces a range of cells to a single value with one of the
+ * supported functions and puts it in the specified destination cell.
+ */
+public class AggregateMacro implements SpreadSheetMacro {
+
+  /**
+   * The most cells of a row that are read into the buffer at once.
+   */
+  private static final int RUN = 4096;
+
+  /**
+   * The functions that this macro can reduce a range of cells with.
+   */
+  public enum Function {
+    SUM, MIN, MAX, AVERAGE
+  }
+
+  private final Function function;
+  private final int fromRow;
+  private final int fromCol;
+  private final int toRow;
+  private final int toCol;
+  private final int destRow;
+  private final int destCol;
+
+  /**
+   * Constructs a new AggregateMacro object that takes the function and start, end and destination
+   * cells.
+   *
+   * @param function the function to reduce the range with
+   * @param fromRow  starting row
+   * @param fromCol  starting column
+   * @param toRow    ending row
+   * @param toCol    ending column
+   * @param destRow  destination row
+   * @param destCol  destination column
+   */
+  public AggregateMacro(Function function, int fromRow, int fromCol, int toRow, int toCol,
+      int destRow, int destCol) {
+    if (function == null) {
+      throw new IllegalArgumentException("Function cannot be null");
+    }
+    // check for all valid cells
+    if (fromRow < 0 || fromCol < 0 || toRow < 0 || toCol < 0 || destRow < 0 || destCol < 0) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    // check for valid range
+    if (fromRow > toRow || fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    this.function = function;
+    this.fromRow = fromRow;
+    this.fromCol = fromCol;
+    this.toRow = toRow;
+    this.toCol = toCol;
+    this.destRow = destRow;
+    this.destCol = destCol;
+  }
+
+  /**
+   * Reduces the range of cells of the given spreadsheet and puts the result in the destination
+   * cell. The range is read a run of up to 4096 cells of a row at a time into a buffer, which is
+   * then reduced by a kernel, so the buffer stays small however wide the range is.
+   *
+   * @param sheet the spreadsheet
+   */
+  @Override
+  public void execute(SpreadSheet sheet) {
+    sheet.set(this.destRow, this.destCol, compute(sheet));
+  }
+
+  /**
+   * Reduces the range of cells of the given spreadsheet without writing the result.
+   *
+   * @param sheet the spreadsheet
+   * @return the result of the function over the range
+   */
+  double compute(SpreadSheet sheet) {
+    long width = (long) this.toCol - this.fromCol + 1;
+    double[] buffer = new double[(int) Math.min(width, RUN)];
+    double result;
+    switch (this.function) {
+      case MIN:
+        result = Double.POSITIVE_INFINITY;
+        break;
+      case MAX:
+        result = Double.NEGATIVE_INFINITY;
+        break;
+      default:
+        result = 0;
+        break;
+    }
+    // longs, so the loops end when the range reaches the last row or column
+    for (long i = this.fromRow; i <= this.toRow; i++) {
+      for (long j = this.fromCol; j <= this.toCol; j += buffer.length) {
+        int length = (int) Math.min(buffer.length, this.toCol - j + 1);
+        sheet.getRow((int) i, (int) j, (int) (j + length - 1), buffer, 0);
+        switch (this.function) {
+          case MIN:
+            result = Math.min(result, Aggregates.min(buffer, 0, length));
+            break;
+          case MAX:
+            result = Math.max(result, Aggregates.max(buffer, 0, length));
+            break;
+          default:
+            result += Aggregates.sum(buffer, 0, length);
+            break;
+        }
+      }
+    }
+    if (this.function == Function.AVERAGE) {
+      // the count is kept as a long since a range can have more than 2^31 cells
+      long count = ((long) this.toRow - this.fromRow + 1) * width;
+      result = result / count;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the range of cells that this macro reads.
+   *
+   * @return the region read
+   */
+  @Override
+  public Region getReadRegion() {
+    return new Region(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
+
+  /**
+   * Returns the destination cell, which is the only cell this macro writes.
+   *
+   * @return the region written
+   */
+  @Override
+  public Region getWriteRegion() {
+    return new Region(this.destRow, this.destCol, this.destRow, this.destCol);
+  }
+
+  /**
+   * Returns OVERWRITE, since the destination is assigned regardless of its old value.
+   *
+   * @return the kind of write
+   */
+  @Override
+  public WriteKind getWriteKind() {
+    return WriteKind.OVERWRITE;
+  }
+
+  /**
+   * Returns the function that this macro computes.
+   *
+   * @return the function
+   */
+  Function getFunction() {
+    return this.function;
+  }
+}
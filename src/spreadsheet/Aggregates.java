@@ -0,0 +1,95 @@
+package spreadsheet;
+
+/**
+ * This class holds the kernels used by the aggregate macros to reduce a buffer of cell values.
+ * Each kernel keeps four independent accumulators, so that four elements are combined at once
+ * instead of every element waiting for the one before it. The JIT compiler does not turn these
+ * reductions into SIMD instructions, since it must keep the order of floating-point operations it
+ * was given; the gain is only that the four chains overlap in the processor's pipeline. A scalar
+ * loop picks up the elements left over at the end of the buffer. {@link AggregateBenchmark}
+ * measures the kernels against reading cell by cell.
+ */
+final class Aggregates {
+
+  private Aggregates() {
+    // not to be instantiated
+  }
+
+  /**
+   * Returns the sum of the values in the given part of the buffer.
+   *
+   * @param values the buffer
+   * @param from   the position of the first value (inclusive)
+   * @param to     the position of the last value (exclusive)
+   * @return the sum of the values
+   */
+  static double sum(double[] values, int from, int to) {
+    double s0 = 0;
+    double s1 = 0;
+    double s2 = 0;
+    double s3 = 0;
+    int i = from;
+    for (; i + 3 < to; i += 4) {
+      s0 += values[i];
+      s1 += values[i + 1];
+      s2 += values[i + 2];
+      s3 += values[i + 3];
+    }
+    for (; i < to; i++) {
+      s0 += values[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * Returns the smallest of the values in the given part of the buffer.
+   *
+   * @param values the buffer
+   * @param from   the position of the first value (inclusive)
+   * @param to     the position of the last value (exclusive)
+   * @return the smallest value, or positive infinity if the part is empty
+   */
+  static double min(double[] values, int from, int to) {
+    double m0 = Double.POSITIVE_INFINITY;
+    double m1 = Double.POSITIVE_INFINITY;
+    double m2 = Double.POSITIVE_INFINITY;
+    double m3 = Double.POSITIVE_INFINITY;
+    int i = from;
+    for (; i + 3 < to; i += 4) {
+      m0 = Math.min(m0, values[i]);
+      m1 = Math.min(m1, values[i + 1]);
+      m2 = Math.min(m2, values[i + 2]);
+      m3 = Math.min(m3, values[i + 3]);
+    }
+    for (; i < to; i++) {
+      m0 = Math.min(m0, values[i]);
+    }
+    return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+  }
+
+  /**
+   * Returns the largest of the values in the given part of the buffer.
+   *
+   * @param values the buffer
+   * @param from   the position of the first value (inclusive)
+   * @param to     the position of the last value (exclusive)
+   * @return the largest value, or negative infinity if the part is empty
+   */
+  static double max(double[] values, int from, int to) {
+    double m0 = Double.NEGATIVE_INFINITY;
+    double m1 = Double.NEGATIVE_INFINITY;
+    double m2 = Double.NEGATIVE_INFINITY;
+    double m3 = Double.NEGATIVE_INFINITY;
+    int i = from;
+    for (; i + 3 < to; i += 4) {
+      m0 = Math.max(m0, values[i]);
+      m1 = Math.max(m1, values[i + 1]);
+      m2 = Math.max(m2, values[i + 2]);
+      m3 = Math.max(m3, values[i + 3]);
+    }
+    for (; i < to; i++) {
+      m0 = Math.max(m0, values[i]);
+    }
+    return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+  }
+}
@@ -0,0 +1,626 @@
+package spreadsheet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class executes macros on a spreadsheet in the background. Submitting a macro returns at
+ * once with a {@link CompletableFuture} that completes when the macro has been executed, so the
+ * caller can wait for it with a deadline, give up on it, or go on with other work.
+ *
+ * <p>Macros are executed one at a time, in the order in which they were submitted, by a single
+ * thread. At most a fixed number of macros may wait to be executed; submitting more is refused
+ * rather than letting the backlog grow without bound.
+ *
+ * <p>A running macro sees the spreadsheet through a wrapper that counts the cells it reads and
+ * writes. After every chunk of cells, the wrapper reports the progress and checks whether the
+ * future has been completed from outside, by {@link CompletableFuture#cancel},
+ * {@link CompletableFuture#orTimeout} or otherwise. If it has, the macro is stopped with a
+ * {@link CancellationException}. A sheet that runs macros as transactions, such as an
+ * {@link EnhancedSpreadSheet} or a {@link ShardedSpreadSheet}, then drops every write of the
+ * stopped macro; other sheets keep the writes made before it was stopped.
+ */
+public class AsyncMacroExecutor implements AutoCloseable {
+
+  // the number of cells a macro reads or writes between checks for cancellation
+  private static final int CHUNK = 4096;
+
+  private final MacroSpreadSheet sheet;
+  private final ThreadPoolExecutor worker;
+  private final Object idle;
+  private int pending;
+
+  /**
+   * Create an executor for the given sheet that lets up to 64 macros wait to be executed.
+   *
+   * @param sheet the sheet to execute macros on
+   * @throws IllegalArgumentException if the sheet is null
+   */
+  public AsyncMacroExecutor(MacroSpreadSheet sheet) throws IllegalArgumentException {
+    this(sheet, 64);
+  }
+
+  /**
+   * Create an executor for the given sheet that lets up to the given number of macros wait to be
+   * executed.
+   *
+   * @param sheet    the sheet to execute macros on
+   * @param capacity the number of macros that may wait to be executed
+   * @throws IllegalArgumentException if the sheet is null or the capacity is not positive
+   */
+  public AsyncMacroExecutor(MacroSpreadSheet sheet, int capacity)
+      throws IllegalArgumentException {
+    if (sheet == null) {
+      throw new IllegalArgumentException("Sheet cannot be null");
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.sheet = sheet;
+    this.worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(capacity), task -> {
+          Thread thread = new Thread(task, "spreadsheet-macro");
+          thread.setDaemon(true);
+          return thread;
+        });
+    this.idle = new Object();
+  }
+
+  /**
+   * Submit a macro to be executed.
+   *
+   * @param macro the macro to execute
+   * @return the future that completes when the macro has been executed
+   * @throws IllegalArgumentException if the macro is null
+   * @throws IllegalStateException    if too many macros are waiting or the executor is closed
+   */
+  public CompletableFuture<Void> submit(SpreadSheetMacro macro)
+      throws IllegalArgumentException, IllegalStateException {
+    return submit(macro, null);
+  }
+
+  /**
+   * Submit a macro to be executed, reporting its progress to the given listener. The listener is
+   * called on the thread that executes the macro, so it should return quickly.
+   *
+   * @param macro    the macro to execute
+   * @param listener the listener to report progress to, or null
+   * @return the future that completes when the macro has been executed
+   * @throws IllegalArgumentException if the macro is null
+   * @throws IllegalStateException    if too many macros are waiting or the executor is closed
+   */
+  public CompletableFuture<Void> submit(SpreadSheetMacro macro, ProgressListener listener)
+      throws IllegalArgumentException, IllegalStateException {
+    if (macro == null) {
+      throw new IllegalArgumentException("Macro cannot be null");
+    }
+    CompletableFuture<Void> future = new CompletableFuture<Void>();
+    synchronized (this.idle) {
+      this.pending++;
+    }
+    try {
+      this.worker.execute(new MacroTask(macro, listener, future));
+    } catch (RejectedExecutionException e) {
+      done();
+      throw new IllegalStateException(this.worker.isShutdown() ? "Executor is closed"
+          : "Too many macros are waiting to be executed");
+    }
+    return future;
+  }
+
+  /**
+   * Wait until every submitted macro has finished executing or has been stopped. Unlike waiting
+   * for the future of a cancelled macro, which completes at once, this waits until the macro has
+   * really stopped touching the sheet.
+   *
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  public void awaitIdle() throws InterruptedException {
+    synchronized (this.idle) {
+      while (this.pending > 0) {
+        this.idle.wait();
+      }
+    }
+  }
+
+  /**
+   * Stop accepting macros, cancel every macro that is still waiting or running, and wait for the
+   * running one to stop.
+   */
+  @Override
+  public void close() {
+    // interrupting the worker stops the running macro at its next check
+    for (Runnable waiting : this.worker.shutdownNow()) {
+      ((MacroTask) waiting).future.cancel(false);
+      done();
+    }
+    try {
+      this.worker.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Record that a submitted macro will not run any more.
+   */
+  private void done() {
+    synchronized (this.idle) {
+      this.pending--;
+      this.idle.notifyAll();
+    }
+  }
+
+  /**
+   * Returns the number of cells that a macro is expected to read and write: the cells of its read
+   * region and of its write region.
+   *
+   * @param macro the macro
+   * @return the number of cells, or -1 if the macro may touch any cell
+   */
+  private static long total(SpreadSheetMacro macro) {
+    Region read = macro.getReadRegion();
+    Region write = macro.getWriteRegion();
+    if (Region.ALL.equals(read) || Region.ALL.equals(write)) {
+      return -1;
+    }
+    return area(read) + area(write);
+  }
+
+  /**
+   * Returns the number of cells in a region.
+   *
+   * @param region the region, or null for no cells
+   * @return the number of cells
+   */
+  private static long area(Region region) {
+    if (region == null) {
+      return 0;
+    }
+    return ((long) region.getToRow() - region.getFromRow() + 1)
+        * ((long) region.getToCol() - region.getFromCol() + 1);
+  }
+
+  /**
+   * A submitted macro, waiting to be executed by the worker.
+   */
+  private final class MacroTask implements Runnable {
+
+    private final SpreadSheetMacro macro;
+    private final ProgressListener listener;
+    private final CompletableFuture<Void> future;
+
+    /**
+     * Create the task of a submitted macro.
+     *
+     * @param macro    the macro to execute
+     * @param listener the listener to report progress to, or null
+     * @param future   the future of the macro
+     */
+    MacroTask(SpreadSheetMacro macro, ProgressListener listener,
+        CompletableFuture<Void> future) {
+      this.macro = macro;
+      this.listener = listener;
+      this.future = future;
+    }
+
+    /**
+     * Execute the macro unless its future has already been completed, and complete the future
+     * with the outcome.
+     */
+    @Override
+    public void run() {
+      try {
+        if (!this.future.isDone()) {
+          sheet.executeMacro(new MonitoredMacro(this.macro,
+              new Progress(this.future, this.listener, total(this.macro))));
+          this.future.complete(null);
+        }
+      } catch (RuntimeException | Error e) {
+        this.future.completeExceptionally(e);
+      } finally {
+        done();
+      }
+    }
+  }
+
+  /**
+   * Something that is told how far a macro has got.
+   */
+  public interface ProgressListener {
+
+    /**
+     * Called after every chunk of cells that the macro reads or writes.
+     *
+     * @param done  the number of cells read or written so far
+     * @param total the number of cells the macro is expected to read and write, or -1 if it is not
+     *              known. A macro that reads a cell more than once may go past it.
+     */
+    void progress(long done, long total);
+  }
+
+  /**
+   * The progress of one macro: counts the cells it touches, and after every chunk reports the
+   * count and stops the macro if its future has been completed.
+   */
+  private static final class Progress {
+
+    private final CompletableFuture<Void> future;
+    private final ProgressListener listener;
+    private final long total;
+    private long done;
+    private long nextCheck;
+
+    /**
+     * Create the progress of a macro.
+     *
+     * @param future   the future of the macro
+     * @param listener the listener to report progress to, or null
+     * @param total    the number of cells the macro is expected to touch, or -1
+     */
+    Progress(CompletableFuture<Void> future, ProgressListener listener, long total) {
+      this.future = future;
+      this.listener = listener;
+      this.total = total;
+    }
+
+    /**
+     * Count cells that the macro is about to touch, checking for cancellation once a chunk of
+     * cells has been touched since the last check.
+     *
+     * @param cells the number of cells
+     * @throws CancellationException if the future has been completed or the thread interrupted
+     */
+    void advance(long cells) throws CancellationException {
+      this.done += cells;
+      if (this.done >= this.nextCheck) {
+        this.nextCheck = this.done + CHUNK;
+        check();
+        if (this.listener != null) {
+          this.listener.progress(this.done, this.total);
+        }
+      }
+    }
+
+    /**
+     * Stop the macro if its future has been completed or the thread has been interrupted.
+     *
+     * @throws CancellationException if the macro must stop
+     */
+    void check() throws CancellationException {
+      if (this.future.isDone() || Thread.currentThread().isInterrupted()) {
+        throw new CancellationException("Macro was cancelled");
+      }
+    }
+  }
+
+  /**
+   * A macro that executes another one on a {@link ProgressSheet}. It describes itself as the
+   * macro it wraps, so the sheet reports the same changes. A sheet that splits macros of known
+   * kinds, such as a {@link ShardedSpreadSheet}, may instead take out the wrapped macro and run it
+   * its own way, checking {@link #isStopped()} as it goes.
+   */
+  static final class MonitoredMacro implements SpreadSheetMacro {
+
+    private final SpreadSheetMacro macro;
+    private final Progress progress;
+
+    /**
+     * Wrap a macro.
+     *
+     * @param macro    the macro to execute
+     * @param progress the progress of the macro
+     */
+    MonitoredMacro(SpreadSheetMacro macro, Progress progress) {
+      this.macro = macro;
+      this.progress = progress;
+    }
+
+    /**
+     * Returns the wrapped macro.
+     *
+     * @return the wrapped macro
+     */
+    SpreadSheetMacro getMacro() {
+      return this.macro;
+    }
+
+    /**
+     * Returns whether the macro must stop because its future has been completed. Unlike the
+     * checks made as the macro touches cells, this may be called from any thread.
+     *
+     * @return true if the macro must stop
+     */
+    boolean isStopped() {
+      return this.progress.future.isDone();
+    }
+
+    /**
+     * Executes the wrapped macro on a wrapper of the given spreadsheet that counts its cells.
+     *
+     * @param sheet the spreadsheet
+     */
+    @Override
+    public void execute(SpreadSheet sheet) {
+      this.progress.check();
+      this.macro.execute(new ProgressSheet(sheet, this.progress));
+      this.progress.check();
+    }
+
+    /**
+     * Returns the region read by the wrapped macro.
+     *
+     * @return the region read, or null if the macro reads no cells
+     */
+    @Override
+    public Region getReadRegion() {
+      return this.macro.getReadRegion();
+    }
+
+    /**
+     * Returns the region written by the wrapped macro.
+     *
+     * @return the region written, or null if the macro writes no cells
+     */
+    @Override
+    public Region getWriteRegion() {
+      return this.macro.getWriteRegion();
+    }
+
+    /**
+     * Returns the kind of write made by the wrapped macro.
+     *
+     * @return the kind of write
+     */
+    @Override
+    public WriteKind getWriteKind() {
+      return this.macro.getWriteKind();
+    }
+  }
+
+  /**
+   * The spreadsheet that a monitored macro sees. Every operation is forwarded to the underlying
+   * spreadsheet after counting the cells it touches. Range copies and moves are forwarded whole,
+   * so that they keep the underlying bulk implementation, and are counted as one chunk. Range fills
+   * are forwarded in bands, so that even a fill of a huge range can be stopped part way.
+   */
+  private static final class ProgressSheet implements SpreadSheet {
+
+    private final SpreadSheet base;
+    private final Progress progress;
+
+    /**
+     * Wrap a spreadsheet.
+     *
+     * @param base     the spreadsheet to forward to
+     * @param progress the progress of the macro
+     */
+    ProgressSheet(SpreadSheet base, Progress progress) {
+      this.base = base;
+      this.progress = progress;
+    }
+
+    /**
+     * Get the number at the specified cell.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return the number at the specified cell, or 0 if it is empty
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public double get(int row, int col) throws IllegalArgumentException {
+      this.progress.advance(1);
+      return this.base.get(row, col);
+    }
+
+    /**
+     * Set the value of the specified cell.
+     *
+     * @param row   the row number of the cell, starting with 0
+     * @param col   the column number of the cell, starting with 0
+     * @param value the value that this cell must be set to
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void set(int row, int col, double value) throws IllegalArgumentException {
+      this.progress.advance(1);
+      this.base.set(row, col, value);
+    }
+
+    /**
+     * Empty the specified cell.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void clear(int row, int col) throws IllegalArgumentException {
+      this.progress.advance(1);
+      this.base.clear(row, col);
+    }
+
+    /**
+     * Returns whether the specified cell is empty.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return true if the cell is empty, false otherwise
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+      this.progress.advance(1);
+      return this.base.isEmpty(row, col);
+    }
+
+    /**
+     * Return the width of the underlying spreadsheet.
+     *
+     * @return the width of the spreadsheet
+     */
+    @Override
+    public int getWidth() {
+      return this.base.getWidth();
+    }
+
+    /**
+     * Return the height of the underlying spreadsheet.
+     *
+     * @return the height of the spreadsheet
+     */
+    @Override
+    public int getHeight() {
+      return this.base.getHeight();
+    }
+
+    /**
+     * Return the memory footprint of the underlying spreadsheet.
+     *
+     * @return the estimated memory footprint, in bytes
+     */
+    @Override
+    public long memoryFootprint() {
+      return this.base.memoryFootprint();
+    }
+
+    /**
+     * Copies the values of a run of cells in one row into the given buffer.
+     *
+     * @param row     the row number of the cells, starting with 0
+     * @param fromCol the first column to copy, starting with 0
+     * @param toCol   the last column to copy (inclusive)
+     * @param dest    the buffer to copy the values into
+     * @param offset  the position in the buffer of the value of the first column
+     * @throws IllegalArgumentException if the row or columns are negative, the columns are out of
+     *                                  order or the buffer is too small
+     */
+    @Override
+    public void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+        throws IllegalArgumentException {
+      this.progress.advance(Math.max(0L, (long) toCol - fromCol + 1));
+      this.base.getRow(row, fromCol, toCol, dest, offset);
+    }
+
+    /**
+     * Set a run of cells in one row.
+     *
+     * @param row     the row number of the cells, starting with 0
+     * @param fromCol the column of the first cell to set, starting with 0
+     * @param values  the buffer holding the values
+     * @param offset  the position in the buffer of the value of the first cell
+     * @param length  the number of cells to set
+     * @throws IllegalArgumentException if the row or column are negative or the buffer does not
+     *                                  hold that many values
+     */
+    @Override
+    public void setRow(int row, int fromCol, double[] values, int offset, int length)
+        throws IllegalArgumentException {
+      this.progress.advance(Math.max(0, length));
+      this.base.setRow(row, fromCol, values, offset, length);
+    }
+
+    /**
+     * Fill a range of cells with a sequence of values, using the underlying spreadsheet's range
+     * fill on bands of whole rows of about a chunk of cells each, with a check between bands.
+     *
+     * @param fromRow    starting row
+     * @param fromCol    starting column
+     * @param toRow      ending row
+     * @param toCol      ending column
+     * @param start      the value of the cell with index 0
+     * @param increment  the difference between the values of consecutive cells
+     * @param firstIndex the index of the top left cell of the range in the sequence
+     * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+     */
+    @Override
+    public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+        double increment, long firstIndex) throws IllegalArgumentException {
+      long width = area(new Region(fromRow, fromCol, fromRow, toCol));
+      long bandHeight = Math.max(1, CHUNK / width);
+      for (long from = fromRow; from <= toRow; from += bandHeight) {
+        int to = (int) Math.min(toRow, from + bandHeight - 1);
+        this.progress.advance((to - from + 1) * width);
+        this.base.fillRange((int) from, fromCol, to, toCol, start, increment,
+            firstIndex + (from - fromRow) * width);
+      }
+    }
+
+    /**
+     * Copy a range of cells, using the underlying spreadsheet's range copy.
+     *
+     * @param fromRow starting row of the source
+     * @param fromCol starting column of the source
+     * @param toRow   ending row of the source
+     * @param toCol   ending column of the source
+     * @param destRow the row that the starting row is copied to
+     * @param destCol the column that the starting column is copied to
+     * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+     *                                  destination range does not fit in the spreadsheet
+     */
+    @Override
+    public void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+        int destCol) throws IllegalArgumentException {
+      this.progress.check();
+      this.base.copyRange(fromRow, fromCol, toRow, toCol, destRow, destCol);
+      this.progress.advance(2 * area(new Region(fromRow, fromCol, toRow, toCol)));
+    }
+
+    /**
+     * Move a range of cells, using the underlying spreadsheet's range move.
+     *
+     * @param fromRow starting row of the source
+     * @param fromCol starting column of the source
+     * @param toRow   ending row of the source
+     * @param toCol   ending column of the source
+     * @param destRow the row that the starting row is moved to
+     * @param destCol the column that the starting column is moved to
+     * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+     *                                  destination range does not fit in the spreadsheet
+     */
+    @Override
+    public void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+        int destCol) throws IllegalArgumentException {
+      this.progress.check();
+      this.base.moveRange(fromRow, fromCol, toRow, toCol, destRow, destCol);
+      this.progress.advance(2 * area(new Region(fromRow, fromCol, toRow, toCol)));
+    }
+
+    /**
+     * Return the number of filled cells in a range, using the underlying spreadsheet's count.
+     *
+     * @param fromRow starting row
+     * @param fromCol starting column
+     * @param toRow   ending row
+     * @param toCol   ending column
+     * @return the number of cells in the range that are not empty
+     * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+     */
+    @Override
+    public long countFilled(int fromRow, int fromCol, int toRow, int toCol)
+        throws IllegalArgumentException {
+      this.progress.check();
+      return this.base.countFilled(fromRow, fromCol, toRow, toCol);
+    }
+
+    /**
+     * Return the column of the first filled cell of a row at or after the given column, using the
+     * underlying spreadsheet's search.
+     *
+     * @param row     the row number, starting with 0
+     * @param fromCol the column to start from, starting with 0
+     * @return the column of the next filled cell, or -1 if there is none
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+      this.progress.advance(1);
+      return this.base.nextFilled(row, fromCol);
+    }
+  }
+}
@@ -0,0 +1,635 @@
+package spreadsheet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class saves the changes made to a spreadsheet to a directory in the background.
+ *
+ * <p>The cells are grouped into square tiles, and every tile that holds a cell is saved as one
+ * file. Each write is recorded in a change buffer for its tile. A background thread regularly,
+ * or sooner once enough tiles have changed, takes every changed tile, applies its changes to the
+ * tile's file and replaces the file atomically. The cost of a save is therefore proportional to
+ * the number of tiles changed, not to the size of the spreadsheet, and a crash loses at most the
+ * changes made since the last save.
+ *
+ * <p>A range of cells written at once, such as a bulk fill, is recorded as the range alone, so
+ * recording it costs the same whatever its area. When the range is saved, the cells of each tile
+ * that it covers are read from the spreadsheet that holds them, one tile at a time, while holding
+ * the lock of that spreadsheet. Whoever writes to it should hold the same lock while writing and
+ * recording, so that the saver never reads a cell as it is being written.
+ *
+ * <p>Recording a write only touches the change buffer of its tile or the list of changed ranges,
+ * never the disk or the spreadsheet itself, so the saver can run while the spreadsheet is being
+ * written to.
+ */
+public class AutoSaver implements AutoCloseable {
+
+  /**
+   * The number of rows and of columns in a tile.
+   */
+  static final int TILE_SIZE = 64;
+
+  private static final String TILE_PREFIX = "tile-";
+  private static final String TILE_SUFFIX = ".bin";
+
+  private final Path directory;
+  private final int dirtyTileTrigger;
+  private final Map<Long, TileChanges> changes;
+  // the ranges changed since the last save, and how many tiles they cover, guarded by the list
+  private final List<ChangedRange> ranges;
+  private long rangeTiles;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicBoolean saveQueued;
+  private volatile IOException lastFailure;
+  private volatile boolean closed;
+
+  /**
+   * Create a saver that saves to the given directory every interval, or as soon as the given
+   * number of tiles have changed.
+   *
+   * @param directory        the directory to save the tiles in, which is created if needed
+   * @param intervalMillis   the time between saves, in milliseconds
+   * @param dirtyTileTrigger the number of changed tiles that triggers a save before the interval
+   *                         is over
+   * @throws IllegalArgumentException if the directory is null or the interval or trigger is not
+   *                                  positive
+   * @throws IllegalStateException    if the directory cannot be created
+   */
+  public AutoSaver(Path directory, long intervalMillis, int dirtyTileTrigger)
+      throws IllegalArgumentException, IllegalStateException {
+    if (directory == null) {
+      throw new IllegalArgumentException("Directory cannot be null");
+    }
+    if (intervalMillis <= 0 || dirtyTileTrigger <= 0) {
+      throw new IllegalArgumentException("Interval and trigger must be positive");
+    }
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+    this.directory = directory;
+    this.dirtyTileTrigger = dirtyTileTrigger;
+    this.changes = new ConcurrentHashMap<Long, TileChanges>();
+    this.ranges = new ArrayList<ChangedRange>();
+    this.saveQueued = new AtomicBoolean();
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "spreadsheet-autosave");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.scheduler.scheduleWithFixedDelay(this::saveQuietly, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Record that a cell was set.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting with 0
+   * @param value the new value of the cell
+   * @throws IllegalStateException if the saver is closed
+   */
+  public void recordSet(int row, int col, double value) throws IllegalStateException {
+    record(row, col, value, TileChanges.SET);
+  }
+
+  /**
+   * Record that a cell was emptied.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @throws IllegalStateException if the saver is closed
+   */
+  public void recordClear(int row, int col) throws IllegalStateException {
+    record(row, col, 0, TileChanges.CLEARED);
+  }
+
+  /**
+   * Record that any cell of a range may have changed. The cells are not read now but when the
+   * range is saved, from the given spreadsheet, while holding its lock.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @param source  the spreadsheet to read the cells of the range from
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  spreadsheet is null
+   * @throws IllegalStateException    if the saver is closed
+   */
+  public void recordRange(int fromRow, int fromCol, int toRow, int toCol, SpreadSheet source)
+      throws IllegalArgumentException, IllegalStateException {
+    if (source == null) {
+      throw new IllegalArgumentException("Sheet cannot be null");
+    }
+    ChangedRange changed = new ChangedRange(new Region(fromRow, fromCol, toRow, toCol), source);
+    if (this.closed) {
+      throw new IllegalStateException("Saver is closed");
+    }
+    synchronized (this.ranges) {
+      this.ranges.add(changed);
+      this.rangeTiles += changed.tiles();
+    }
+    queueSaveIfDirty();
+  }
+
+  /**
+   * Record a change in the buffer of its tile. If the saver takes the buffer while this is
+   * running, the change is recorded again in a fresh buffer.
+   *
+   * @param row   the row number of the cell
+   * @param col   the column number of the cell
+   * @param value the new value of the cell
+   * @param state SET or CLEARED
+   * @throws IllegalStateException if the saver is closed
+   */
+  private void record(int row, int col, double value, byte state) throws IllegalStateException {
+    if (this.closed) {
+      throw new IllegalStateException("Saver is closed");
+    }
+    long key = tileKey(row / TILE_SIZE, col / TILE_SIZE);
+    int index = (row % TILE_SIZE) * TILE_SIZE + (col % TILE_SIZE);
+    while (true) {
+      TileChanges tile = this.changes.computeIfAbsent(key, k -> new TileChanges());
+      synchronized (tile) {
+        if (!tile.taken) {
+          tile.values[index] = value;
+          tile.states[index] = state;
+          break;
+        }
+      }
+    }
+    queueSaveIfDirty();
+  }
+
+  /**
+   * Queue a save unless one is queued already, if enough tiles have changed. A tile changed both
+   * cell by cell and by ranges is counted more than once here, which only makes the save come
+   * sooner.
+   */
+  private void queueSaveIfDirty() {
+    long dirty;
+    synchronized (this.ranges) {
+      dirty = this.changes.size() + this.rangeTiles;
+    }
+    if (dirty >= this.dirtyTileTrigger && this.saveQueued.compareAndSet(false, true)) {
+      try {
+        this.scheduler.execute(this::saveQuietly);
+      } catch (RejectedExecutionException e) {
+        // closed while this change was being recorded; the closing save has taken what it could
+        this.saveQueued.set(false);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of tiles changed since the last save, whether cell by cell or by a range.
+   *
+   * @return the number of changed tiles
+   */
+  public int getDirtyTileCount() {
+    Set<Long> keys = new HashSet<Long>(this.changes.keySet());
+    for (ChangedRange changed : takeRanges(false)) {
+      for (long tileRow = changed.firstTileRow(); tileRow <= changed.lastTileRow(); tileRow++) {
+        for (long tileCol = changed.firstTileCol(); tileCol <= changed.lastTileCol(); tileCol++) {
+          keys.add(tileKey((int) tileRow, (int) tileCol));
+        }
+      }
+    }
+    return keys.size();
+  }
+
+  /**
+   * Returns the failure of the most recent background save, if it failed.
+   *
+   * @return the failure, or null if the most recent save succeeded
+   */
+  public IOException getLastFailure() {
+    return this.lastFailure;
+  }
+
+  /**
+   * Returns whether this saver has been closed.
+   *
+   * @return true if closed
+   */
+  public boolean isClosed() {
+    return this.closed;
+  }
+
+  /**
+   * Save every changed tile now and wait until it is on disk.
+   *
+   * @throws IOException           if a tile cannot be saved
+   * @throws IllegalStateException if the saver is closed
+   */
+  public void flush() throws IOException, IllegalStateException {
+    if (this.closed) {
+      throw new IllegalStateException("Saver is closed");
+    }
+    saveNow();
+  }
+
+  /**
+   * Save every changed tile on the saver thread and wait until it is on disk.
+   *
+   * @throws IOException if a tile cannot be saved
+   */
+  private void saveNow() throws IOException {
+    try {
+      this.scheduler.submit(() -> {
+        try {
+          save();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while saving");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Save every changed tile and stop the background thread. Changes can no longer be recorded
+   * once this has been called. Closing a closed saver does nothing.
+   *
+   * @throws IOException if a tile cannot be saved
+   */
+  @Override
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    try {
+      saveNow();
+    } finally {
+      this.scheduler.shutdown();
+    }
+  }
+
+  /**
+   * Save in the background, remembering rather than throwing a failure.
+   */
+  private void saveQuietly() {
+    this.saveQueued.set(false);
+    try {
+      save();
+      this.lastFailure = null;
+    } catch (IOException e) {
+      this.lastFailure = e;
+    }
+  }
+
+  /**
+   * Save every changed tile: first the tiles changed cell by cell, then the other tiles of the
+   * changed ranges. Only ever runs on the saver thread.
+   *
+   * @throws IOException if a tile cannot be saved
+   */
+  private void save() throws IOException {
+    List<ChangedRange> taken = takeRanges(true);
+    Set<Long> saved = new HashSet<Long>();
+    try {
+      for (Long key : new ArrayList<Long>(this.changes.keySet())) {
+        saved.add(key);
+        saveTile(key, taken);
+      }
+      for (ChangedRange changed : taken) {
+        for (long tileRow = changed.firstTileRow(); tileRow <= changed.lastTileRow(); tileRow++) {
+          for (long tileCol = changed.firstTileCol(); tileCol <= changed.lastTileCol();
+              tileCol++) {
+            long key = tileKey((int) tileRow, (int) tileCol);
+            if (saved.add(key)) {
+              saveTile(key, taken);
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      // reading the ranges again is harmless, so put all of them back for the next save
+      synchronized (this.ranges) {
+        this.ranges.addAll(0, taken);
+        for (ChangedRange changed : taken) {
+          this.rangeTiles += changed.tiles();
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the ranges changed since the last save.
+   *
+   * @param clear true to forget them, as the save that takes them does
+   * @return the changed ranges
+   */
+  private List<ChangedRange> takeRanges(boolean clear) {
+    synchronized (this.ranges) {
+      List<ChangedRange> taken = new ArrayList<ChangedRange>(this.ranges);
+      if (clear) {
+        this.ranges.clear();
+        this.rangeTiles = 0;
+      }
+      return taken;
+    }
+  }
+
+  /**
+   * Take the changes of a tile and save them, together with the cells of the given ranges that
+   * lie in the tile.
+   *
+   * @param key    the key of the tile
+   * @param ranges the changed ranges being saved
+   * @throws IOException if the tile cannot be saved
+   */
+  private void saveTile(long key, List<ChangedRange> ranges) throws IOException {
+    TileChanges tile = this.changes.remove(key);
+    if (tile != null) {
+      synchronized (tile) {
+        // from now on writers record into a fresh buffer
+        tile.taken = true;
+      }
+    }
+    try {
+      saveTile(key, tile, ranges);
+    } catch (IOException e) {
+      // put the changes back so that the next save retries them, unless newer ones arrived
+      if (tile != null) {
+        restore(key, tile);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Put back the changes of a tile that failed to save, below any changes recorded since.
+   *
+   * @param key  the key of the tile
+   * @param tile the changes that failed to save
+   */
+  private void restore(long key, TileChanges tile) {
+    TileChanges fresh = this.changes.computeIfAbsent(key, k -> new TileChanges());
+    synchronized (fresh) {
+      for (int i = 0; i < tile.states.length; i++) {
+        if (tile.states[i] != TileChanges.UNCHANGED && fresh.states[i] == TileChanges.UNCHANGED) {
+          fresh.states[i] = tile.states[i];
+          fresh.values[i] = tile.values[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Apply the changes of a tile to its file, replacing the file atomically. The cells of the
+   * changed ranges are read from their spreadsheet after the recorded changes are applied, since
+   * they were read later and so are at least as new.
+   *
+   * @param key    the key of the tile
+   * @param tile   the changes to apply, or null if the tile only changed by ranges
+   * @param ranges the changed ranges being saved
+   * @throws IOException if the file cannot be read or written
+   */
+  private void saveTile(long key, TileChanges tile, List<ChangedRange> ranges)
+      throws IOException {
+    Path file = this.directory.resolve(TILE_PREFIX + (key >>> 32) + "-" + (int) key
+        + TILE_SUFFIX);
+    double[] values = new double[TILE_SIZE * TILE_SIZE];
+    boolean[] filled = new boolean[TILE_SIZE * TILE_SIZE];
+    if (Files.exists(file)) {
+      readTile(file, values, filled);
+    }
+    for (int i = 0; tile != null && i < values.length; i++) {
+      if (tile.states[i] == TileChanges.SET) {
+        values[i] = tile.values[i];
+        filled[i] = true;
+      } else if (tile.states[i] == TileChanges.CLEARED) {
+        filled[i] = false;
+      }
+    }
+    for (ChangedRange changed : ranges) {
+      changed.read((key >>> 32) * TILE_SIZE, (long) (int) key * TILE_SIZE, values, filled);
+    }
+    int count = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (filled[i]) {
+        count++;
+      }
+    }
+    if (count == 0) {
+      Files.deleteIfExists(file);
+      return;
+    }
+    Path temp = this.directory.resolve(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(temp)))) {
+      out.writeInt(count);
+      for (int i = 0; i < values.length; i++) {
+        if (filled[i]) {
+          out.writeShort(i);
+          out.writeDouble(values[i]);
+        }
+      }
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Load the cells saved in a directory into a spreadsheet.
+   *
+   * @param directory the directory that the tiles were saved in
+   * @param sheet     the spreadsheet to set the cells of
+   * @throws IOException if a tile cannot be read
+   */
+  public static void load(Path directory, SpreadSheet sheet) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+        TILE_PREFIX + "*" + TILE_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        String[] parts = name.substring(TILE_PREFIX.length(),
+            name.length() - TILE_SUFFIX.length()).split("-");
+        int firstRow = Integer.parseInt(parts[0]) * TILE_SIZE;
+        int firstCol = Integer.parseInt(parts[1]) * TILE_SIZE;
+        double[] values = new double[TILE_SIZE * TILE_SIZE];
+        boolean[] filled = new boolean[TILE_SIZE * TILE_SIZE];
+        readTile(file, values, filled);
+        for (int i = 0; i < values.length; i++) {
+          if (filled[i]) {
+            sheet.set(firstRow + i / TILE_SIZE, firstCol + i % TILE_SIZE, values[i]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Read the cells of a tile file.
+   *
+   * @param file   the file
+   * @param values where to put the values, by position in the tile
+   * @param filled where to mark the positions that hold a value
+   * @throws IOException if the file cannot be read
+   */
+  private static void readTile(Path file, double[] values, boolean[] filled) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        Files.newInputStream(file)))) {
+      int count = in.readInt();
+      for (int k = 0; k < count; k++) {
+        int index = in.readUnsignedShort();
+        values[index] = in.readDouble();
+        filled[index] = true;
+      }
+    }
+  }
+
+  /**
+   * Returns the key of a tile.
+   *
+   * @param tileRow the row of the tile
+   * @param tileCol the column of the tile
+   * @return the key
+   */
+  private static long tileKey(int tileRow, int tileCol) {
+    return ((long) tileRow << 32) | (tileCol & 0xFFFFFFFFL);
+  }
+
+  /**
+   * A range whose cells changed, and the spreadsheet to read them from when it is saved.
+   */
+  private static final class ChangedRange {
+
+    private final Region range;
+    private final SpreadSheet source;
+
+    /**
+     * Remember a changed range.
+     *
+     * @param range  the range
+     * @param source the spreadsheet that holds its cells
+     */
+    private ChangedRange(Region range, SpreadSheet source) {
+      this.range = range;
+      this.source = source;
+    }
+
+    /**
+     * Returns the row of the first tile that this range covers.
+     *
+     * @return the tile row
+     */
+    private long firstTileRow() {
+      return this.range.getFromRow() / TILE_SIZE;
+    }
+
+    /**
+     * Returns the row of the last tile that this range covers.
+     *
+     * @return the tile row
+     */
+    private long lastTileRow() {
+      return this.range.getToRow() / TILE_SIZE;
+    }
+
+    /**
+     * Returns the column of the first tile that this range covers.
+     *
+     * @return the tile column
+     */
+    private long firstTileCol() {
+      return this.range.getFromCol() / TILE_SIZE;
+    }
+
+    /**
+     * Returns the column of the last tile that this range covers.
+     *
+     * @return the tile column
+     */
+    private long lastTileCol() {
+      return this.range.getToCol() / TILE_SIZE;
+    }
+
+    /**
+     * Returns the number of tiles that this range covers.
+     *
+     * @return the number of tiles
+     */
+    private long tiles() {
+      return (lastTileRow() - firstTileRow() + 1) * (lastTileCol() - firstTileCol() + 1);
+    }
+
+    /**
+     * Read the cells of this range that lie in a tile over the cells of the tile, holding the
+     * lock of the spreadsheet: those that are filled are set, and the others emptied.
+     *
+     * @param firstRow the first row of the tile
+     * @param firstCol the first column of the tile
+     * @param values   the values of the cells of the tile, by position in the tile
+     * @param filled   whether the cells of the tile hold a value, by position in the tile
+     */
+    private void read(long firstRow, long firstCol, double[] values, boolean[] filled) {
+      long fromRow = Math.max(firstRow, this.range.getFromRow());
+      long toRow = Math.min(firstRow + TILE_SIZE - 1, this.range.getToRow());
+      int fromCol = (int) Math.max(firstCol, this.range.getFromCol());
+      int toCol = (int) Math.min(firstCol + TILE_SIZE - 1, this.range.getToCol());
+      if (fromRow > toRow || fromCol > toCol) {
+        return;
+      }
+      synchronized (this.source) {
+        for (long i = fromRow; i <= toRow; i++) {
+          int offset = (int) (i - firstRow) * TILE_SIZE - (int) firstCol;
+          for (int j = fromCol; j <= toCol; j++) {
+            filled[offset + j] = false;
+          }
+          for (int j = this.source.nextFilled((int) i, fromCol); j >= 0 && j <= toCol;
+              j = j == Integer.MAX_VALUE ? -1 : this.source.nextFilled((int) i, j + 1)) {
+            values[offset + j] = this.source.get((int) i, j);
+            filled[offset + j] = true;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The changes recorded for one tile since it was last saved.
+   */
+  private static final class TileChanges {
+
+    private static final byte UNCHANGED = 0;
+    private static final byte SET = 1;
+    private static final byte CLEARED = 2;
+
+    private final double[] values = new double[TILE_SIZE * TILE_SIZE];
+    private final byte[] states = new byte[TILE_SIZE * TILE_SIZE];
+    // set by the saver once it has taken these changes, guarded by this object
+    private boolean taken;
+  }
+}
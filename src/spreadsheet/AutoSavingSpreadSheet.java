@@ -0,0 +1,502 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents a spreadsheet that saves its changes to disk in the background. It wraps another
+ * macro spreadsheet, which holds the cells, and records every write, whether made directly or by
+ * a macro, with an {@link AutoSaver}. Writes never wait for the disk. A range fill made by a macro
+ * is recorded as its range, and the saver reads its cells back from the wrapped spreadsheet when
+ * it saves them, so the fill costs nothing per cell here. Writes hold the lock of the wrapped
+ * spreadsheet, which is what the saver holds while it reads.
+ *
+ * <p>To recover after a crash, create the wrapped spreadsheet, load it with
+ * {@link AutoSaver#load} from the same directory, then wrap it again.
+ */
+public class AutoSavingSpreadSheet implements MacroSpreadSheet, AutoCloseable {
+
+  private final MacroSpreadSheet delegate;
+  private final AutoSaver saver;
+
+  /**
+   * Create a spreadsheet that saves the changes made to the given one with the given saver.
+   *
+   * @param delegate the spreadsheet that holds the cells
+   * @param saver    the saver to record the changes with
+   * @throws IllegalArgumentException if the spreadsheet or saver is null
+   */
+  public AutoSavingSpreadSheet(MacroSpreadSheet delegate, AutoSaver saver)
+      throws IllegalArgumentException {
+    if (delegate == null || saver == null) {
+      throw new IllegalArgumentException("Sheet or saver is null");
+    }
+    this.delegate = delegate;
+    this.saver = saver;
+  }
+
+  /**
+   * Returns the saver that this spreadsheet records its changes with.
+   *
+   * @return the saver
+   */
+  public AutoSaver getSaver() {
+    return this.saver;
+  }
+
+  /**
+   * Returns the value of the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the value of the cell, or 0 if it is empty
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    return this.delegate.get(row, col);
+  }
+
+  /**
+   * Sets the value of the specified cell.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting with 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   * @throws IllegalStateException    if this spreadsheet is closed
+   */
+  @Override
+  public void set(int row, int col, double value)
+      throws IllegalArgumentException, IllegalStateException {
+    checkOpen();
+    synchronized (this.delegate) {
+      this.delegate.set(row, col, value);
+      this.saver.recordSet(row, col, value);
+    }
+  }
+
+  /**
+   * Empties the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @throws IllegalArgumentException if the row or column are negative
+   * @throws IllegalStateException    if this spreadsheet is closed
+   */
+  @Override
+  public void clear(int row, int col) throws IllegalArgumentException, IllegalStateException {
+    checkOpen();
+    synchronized (this.delegate) {
+      this.delegate.clear(row, col);
+      this.saver.recordClear(row, col);
+    }
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    return this.delegate.isEmpty(row, col);
+  }
+
+  /**
+   * Returns the width of this spreadsheet.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.delegate.getWidth();
+  }
+
+  /**
+   * Returns the height of this spreadsheet.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.delegate.getHeight();
+  }
+
+  /**
+   * Returns an estimate of the heap memory used by this spreadsheet.
+   *
+   * @return the estimated memory footprint, in bytes
+   */
+  @Override
+  public long memoryFootprint() {
+    return this.delegate.memoryFootprint();
+  }
+
+  /**
+   * Copies the values of a run of cells in one row into the given buffer.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the first column to copy, starting with 0
+   * @param toCol   the last column to copy (inclusive)
+   * @param dest    the buffer to copy the values into
+   * @param offset  the position in the buffer of the value of the first column
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+      throws IllegalArgumentException {
+    this.delegate.getRow(row, fromCol, toCol, dest, offset);
+  }
+
+  /**
+   * Returns the number of filled cells in a range.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @return the number of cells in the range that are not empty
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  @Override
+  public long countFilled(int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    return this.delegate.countFilled(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Returns the column of the first filled cell of a row at or after the given column.
+   *
+   * @param row     the row number, starting with 0
+   * @param fromCol the column to start from, starting with 0
+   * @return the column of the next filled cell, or -1 if there is none
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+    return this.delegate.nextFilled(row, fromCol);
+  }
+
+  /**
+   * Executes the given macro on the wrapped spreadsheet, then records what it wrote, once the
+   * wrapped spreadsheet has committed it. The wrapped spreadsheet still sees the macro as one
+   * macro, so its change listeners are told about it as usual. Nothing is recorded if the macro
+   * throws.
+   *
+   * @param macro the macro to be executed
+   * @throws IllegalStateException if this spreadsheet is closed
+   */
+  @Override
+  public void executeMacro(SpreadSheetMacro macro) throws IllegalStateException {
+    checkOpen();
+    RecordingMacro recording = new RecordingMacro(macro);
+    synchronized (this.delegate) {
+      this.delegate.executeMacro(recording);
+      recording.record();
+    }
+  }
+
+  /**
+   * Registers a listener to be told which regions of this spreadsheet change.
+   *
+   * @param listener the listener to add
+   * @throws IllegalArgumentException if the listener is null
+   */
+  @Override
+  public void addChangeListener(SheetChangeListener listener) throws IllegalArgumentException {
+    this.delegate.addChangeListener(listener);
+  }
+
+  /**
+   * Stops telling a listener about changes to this spreadsheet.
+   *
+   * @param listener the listener to remove
+   */
+  @Override
+  public void removeChangeListener(SheetChangeListener listener) {
+    this.delegate.removeChangeListener(listener);
+  }
+
+  /**
+   * Saves the remaining changes and stops saving in the background.
+   *
+   * @throws IOException if the changes cannot be saved
+   */
+  @Override
+  public void close() throws IOException {
+    this.saver.close();
+  }
+
+  /**
+   * Refuse a write once the saver is closed, before it reaches the spreadsheet, since it could
+   * no longer be saved.
+   *
+   * @throws IllegalStateException if this spreadsheet is closed
+   */
+  private void checkOpen() throws IllegalStateException {
+    if (this.saver.isClosed()) {
+      throw new IllegalStateException("Spreadsheet is closed");
+    }
+  }
+
+  /**
+   * A macro that runs another macro against a view of the sheet that remembers every write, for
+   * them to be recorded once the macro is done.
+   */
+  private final class RecordingMacro implements SpreadSheetMacro {
+
+    private final SpreadSheetMacro macro;
+    private RecordingSheet recording;
+
+    /**
+     * Create a recording macro.
+     *
+     * @param macro the macro to run
+     */
+    private RecordingMacro(SpreadSheetMacro macro) {
+      this.macro = macro;
+    }
+
+    /**
+     * Executes the macro on a view of the given spreadsheet that remembers what it writes.
+     *
+     * @param sheet the spreadsheet
+     */
+    @Override
+    public void execute(SpreadSheet sheet) {
+      this.recording = new RecordingSheet(sheet);
+      this.macro.execute(this.recording);
+    }
+
+    /**
+     * Record what the macro wrote: each range fill as its range, whose cells the saver reads
+     * from the wrapped spreadsheet when it saves them, and each other write as a cell.
+     */
+    private void record() {
+      if (this.recording == null) {
+        return;
+      }
+      for (Region range : this.recording.fills) {
+        saver.recordRange(range.getFromRow(), range.getFromCol(), range.getToRow(),
+            range.getToCol(), delegate);
+      }
+      this.recording.writes.forEach((row, col, set, value) -> {
+        if (set) {
+          saver.recordSet(row, col, value);
+        } else {
+          saver.recordClear(row, col);
+        }
+      }, false);
+    }
+
+    /**
+     * Returns the region of cells that the macro reads.
+     *
+     * @return the region read, or null if no cells are read
+     */
+    @Override
+    public Region getReadRegion() {
+      return this.macro.getReadRegion();
+    }
+
+    /**
+     * Returns the region of cells that the macro may write.
+     *
+     * @return the region written, or null if no cells are written
+     */
+    @Override
+    public Region getWriteRegion() {
+      return this.macro.getWriteRegion();
+    }
+
+    /**
+     * Returns the kind of write that the macro makes.
+     *
+     * @return the kind of write
+     */
+    @Override
+    public WriteKind getWriteKind() {
+      return this.macro.getWriteKind();
+    }
+  }
+
+  /**
+   * A view of a sheet that remembers every write, for the saver to record once the macro is done.
+   * A range fill is forwarded as one fill and remembered as its range alone, so that neither the
+   * sheet nor the saver holds a write per cell.
+   */
+  private static final class RecordingSheet implements SpreadSheet {
+
+    private final SpreadSheet sheet;
+    private final WriteBuffer writes;
+    private final List<Region> fills;
+
+    /**
+     * Create a recording view.
+     *
+     * @param sheet the sheet to write to
+     */
+    private RecordingSheet(SpreadSheet sheet) {
+      this.sheet = sheet;
+      this.writes = new WriteBuffer();
+      this.fills = new ArrayList<Region>();
+    }
+
+    /**
+     * Fills a range of cells with a sequence of values. Writes remembered earlier for cells of the
+     * range are forgotten, since the fill replaces them.
+     *
+     * @param fromRow    starting row
+     * @param fromCol    starting column
+     * @param toRow      ending row
+     * @param toCol      ending column
+     * @param start      the value of the cell with index 0
+     * @param increment  the difference between the values of consecutive cells
+     * @param firstIndex the index of the top left cell of the range in the sequence
+     * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+     */
+    @Override
+    public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+        double increment, long firstIndex) throws IllegalArgumentException {
+      this.sheet.fillRange(fromRow, fromCol, toRow, toCol, start, increment, firstIndex);
+      Region range = new Region(fromRow, fromCol, toRow, toCol);
+      if (this.writes.size() > 0) {
+        this.writes.removeRange(range);
+      }
+      this.fills.add(range);
+    }
+
+    /**
+     * Returns the value of the specified cell.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return the value of the cell, or 0 if it is empty
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public double get(int row, int col) throws IllegalArgumentException {
+      return this.sheet.get(row, col);
+    }
+
+    /**
+     * Sets the value of the specified cell.
+     *
+     * @param row   the row number of the cell, starting with 0
+     * @param col   the column number of the cell, starting with 0
+     * @param value the value that this cell must be set to
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void set(int row, int col, double value) throws IllegalArgumentException {
+      this.sheet.set(row, col, value);
+      this.writes.set(row, col, value);
+    }
+
+    /**
+     * Empties the specified cell.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void clear(int row, int col) throws IllegalArgumentException {
+      this.sheet.clear(row, col);
+      this.writes.clear(row, col);
+    }
+
+    /**
+     * Returns whether the specified cell is empty.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return true if the cell is empty, false otherwise
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+      return this.sheet.isEmpty(row, col);
+    }
+
+    /**
+     * Returns the width of this spreadsheet.
+     *
+     * @return the width of this spreadsheet
+     */
+    @Override
+    public int getWidth() {
+      return this.sheet.getWidth();
+    }
+
+    /**
+     * Returns the height of this spreadsheet.
+     *
+     * @return the height of this spreadsheet
+     */
+    @Override
+    public int getHeight() {
+      return this.sheet.getHeight();
+    }
+
+    /**
+     * Returns an estimate of the heap memory used by this spreadsheet.
+     *
+     * @return the estimated memory footprint, in bytes
+     */
+    @Override
+    public long memoryFootprint() {
+      return this.sheet.memoryFootprint();
+    }
+
+    /**
+     * Copies the values of a run of cells in one row into the given buffer.
+     *
+     * @param row     the row number of the cells, starting with 0
+     * @param fromCol the first column to copy, starting with 0
+     * @param toCol   the last column to copy (inclusive)
+     * @param dest    the buffer to copy the values into
+     * @param offset  the position in the buffer of the value of the first column
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+        throws IllegalArgumentException {
+      this.sheet.getRow(row, fromCol, toCol, dest, offset);
+    }
+
+    /**
+     * Returns the number of filled cells in a range.
+     *
+     * @param fromRow starting row
+     * @param fromCol starting column
+     * @param toRow   ending row
+     * @param toCol   ending column
+     * @return the number of cells in the range that are not empty
+     * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+     */
+    @Override
+    public long countFilled(int fromRow, int fromCol, int toRow, int toCol)
+        throws IllegalArgumentException {
+      return this.sheet.countFilled(fromRow, fromCol, toRow, toCol);
+    }
+
+    /**
+     * Returns the column of the first filled cell of a row at or after the given column.
+     *
+     * @param row     the row number, starting with 0
+     * @param fromCol the column to start from, starting with 0
+     * @return the column of the next filled cell, or -1 if there is none
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+      return this.sheet.nextFilled(row, fromCol);
+    }
+  }
+}
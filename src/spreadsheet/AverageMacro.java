@@ -37,10 +37,6 @@ public class AverageMacro implements SpreadSheetMacro {
     if (fromRow > toRow || fromCol > toCol) {
       throw new IllegalArgumentException("Invalid range");
     }
-    // check for valid destination cell
-    if (destRow < fromRow || destRow > toRow || destCol < fromCol || destCol > toCol) {
-      throw new IllegalArgumentException("Invalid destination cell");
-    }
     this.fromRow = fromRow;
     this.fromCol = fromCol;
     this.toRow = toRow;
@@ -58,19 +54,38 @@ public class AverageMacro implements SpreadSheetMacro {
    */
   @Override
   public void execute(SpreadSheet sheet) {
-    // get the sum of the cells
-    double sum = 0;
-    int count = 0;
-    for (int i = this.fromRow; i <= this.toRow; i++) {
-      for (int j = this.fromCol; j <= this.toCol; j++) {
-        sum += sheet.get(i, j);
-        count++;
-      }
-    }
-    // get the average
-    double average = sum / count;
-    // set the value of the destination cell to the average
-    sheet.set(this.destRow, this.destCol, average);
+    // the average is the AVERAGE aggregate, which sums the range one row buffer at a time
+    new AggregateMacro(AggregateMacro.Function.AVERAGE, this.fromRow, this.fromCol, this.toRow,
+        this.toCol, this.destRow, this.destCol).execute(sheet);
+  }
+
+  /**
+   * Returns the range of cells that this macro reads.
+   *
+   * @return the region read
+   */
+  @Override
+  public Region getReadRegion() {
+    return new Region(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
 
+  /**
+   * Returns the destination cell, which is the only cell this macro writes.
+   *
+   * @return the region written
+   */
+  @Override
+  public Region getWriteRegion() {
+    return new Region(this.destRow, this.destCol, this.destRow, this.destCol);
+  }
+
+  /**
+   * Returns OVERWRITE, since the destination is assigned regardless of its old value.
+   *
+   * @return the kind of write
+   */
+  @Override
+  public WriteKind getWriteKind() {
+    return WriteKind.OVERWRITE;
   }
 }
@@ -50,10 +50,46 @@ public class BulkAssignMacro implements SpreadSheetMacro {
    */
   @Override
   public void execute(SpreadSheet sheet) {
-    for (int i = fromRow; i <= toRow; i++) {
-      for (int j = fromCol; j <= toCol; j++) {
-        sheet.set(i, j, value);
-      }
-    }
+    // one fill rather than a write per cell, so a transaction can take the range as one write
+    sheet.fillRange(this.fromRow, this.fromCol, this.toRow, this.toCol, this.value, 0, 0);
+  }
+
+  /**
+   * Returns null, since this macro reads no cells.
+   *
+   * @return null
+   */
+  @Override
+  public Region getReadRegion() {
+    return null;
+  }
+
+  /**
+   * Returns the range of cells that this macro assigns.
+   *
+   * @return the region written
+   */
+  @Override
+  public Region getWriteRegion() {
+    return new Region(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
+
+  /**
+   * Returns OVERWRITE, since every cell of the range is assigned.
+   *
+   * @return the kind of write
+   */
+  @Override
+  public WriteKind getWriteKind() {
+    return WriteKind.OVERWRITE;
+  }
+
+  /**
+   * Returns the value that this macro assigns.
+   *
+   * @return the value
+   */
+  double getValue() {
+    return this.value;
   }
 }
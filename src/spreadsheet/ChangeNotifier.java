@@ -0,0 +1,193 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class delivers change events from a spreadsheet to its {@link SheetChangeListener}s without
+ * slowing down the thread that writes to the spreadsheet.
+ *
+ * <p>A write only records the region it changed, merging it into the pending regions when the
+ * union is still a rectangle. A single dispatcher thread waits for the first pending region,
+ * waits a further batching window for more to arrive, then hands everything pending to every
+ * listener at once. While a slow listener runs, new regions keep being merged. If more than the
+ * given number of regions are pending, they are collapsed into the one region that bounds them
+ * all, so the memory held for a slow listener stays bounded and the writer never waits for it.
+ *
+ * <p>The dispatcher thread is started when the first listener is added and stopped when the last
+ * one is removed. A listener that throws is reported to the uncaught exception handler of the
+ * dispatcher thread, and the other listeners are still notified.
+ */
+public class ChangeNotifier {
+
+  private final long windowMillis;
+  private final int maxPending;
+  private final List<SheetChangeListener> listeners;
+  private final Object lock;
+  private List<Region> pending;
+  private Thread dispatcher;
+
+  /**
+   * Create a notifier.
+   *
+   * @param windowMillis how long to wait for more changes before notifying, in milliseconds
+   * @param maxPending   how many regions may be pending before they are collapsed into one
+   * @throws IllegalArgumentException if the window is negative or the limit is not positive
+   */
+  public ChangeNotifier(long windowMillis, int maxPending) throws IllegalArgumentException {
+    if (windowMillis < 0) {
+      throw new IllegalArgumentException("Window cannot be negative");
+    }
+    if (maxPending <= 0) {
+      throw new IllegalArgumentException("Pending limit must be positive");
+    }
+    this.windowMillis = windowMillis;
+    this.maxPending = maxPending;
+    this.listeners = new CopyOnWriteArrayList<SheetChangeListener>();
+    this.lock = new Object();
+    this.pending = new ArrayList<Region>();
+  }
+
+  /**
+   * Add a listener, starting the dispatcher thread if this is the first one.
+   *
+   * @param listener the listener to add
+   * @throws IllegalArgumentException if the listener is null
+   */
+  public void addListener(SheetChangeListener listener) throws IllegalArgumentException {
+    if (listener == null) {
+      throw new IllegalArgumentException("Listener cannot be null");
+    }
+    synchronized (this.lock) {
+      this.listeners.add(listener);
+      if (this.dispatcher == null) {
+        this.dispatcher = new Thread(this::dispatch, "spreadsheet-change-notifier");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+      }
+    }
+  }
+
+  /**
+   * Remove a listener, stopping the dispatcher thread if this was the last one. Changes that are
+   * still pending when the last listener is removed are dropped.
+   *
+   * @param listener the listener to remove
+   * @return true if the listener had been added, false otherwise
+   */
+  public boolean removeListener(SheetChangeListener listener) {
+    synchronized (this.lock) {
+      boolean removed = this.listeners.remove(listener);
+      if (this.listeners.isEmpty() && this.dispatcher != null) {
+        this.dispatcher.interrupt();
+        this.dispatcher = null;
+        this.pending = new ArrayList<Region>();
+      }
+      return removed;
+    }
+  }
+
+  /**
+   * Check if any listener is registered, so that callers can skip working out what changed.
+   *
+   * @return true if there is a listener, false otherwise
+   */
+  public boolean hasListeners() {
+    return !this.listeners.isEmpty();
+  }
+
+  /**
+   * Record that a region of cells changed. This never waits for a listener.
+   *
+   * @param region the region that changed
+   */
+  public void publish(Region region) {
+    if (region == null || this.listeners.isEmpty()) {
+      return;
+    }
+    synchronized (this.lock) {
+      coalesce(region);
+      this.lock.notifyAll();
+    }
+  }
+
+  /**
+   * Merge a region into the pending regions. Must be called holding the lock.
+   *
+   * @param region the region that changed
+   */
+  private void coalesce(Region region) {
+    Region merged = region;
+    // consecutive writes usually extend the last region, so try that first
+    int last = this.pending.size() - 1;
+    if (last >= 0) {
+      Region union = Region.union(this.pending.get(last), merged);
+      if (union != null) {
+        this.pending.remove(last);
+        merged = union;
+      }
+    }
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int k = 0; k < this.pending.size(); k++) {
+        Region union = Region.union(this.pending.get(k), merged);
+        if (union != null) {
+          this.pending.remove(k);
+          merged = union;
+          changed = true;
+          break;
+        }
+      }
+    }
+    this.pending.add(merged);
+    if (this.pending.size() > this.maxPending) {
+      Region bounds = this.pending.get(0);
+      for (Region other : this.pending) {
+        bounds = Region.bounding(bounds, other);
+      }
+      this.pending.clear();
+      this.pending.add(bounds);
+    }
+  }
+
+  /**
+   * The loop of the dispatcher thread.
+   */
+  private void dispatch() {
+    Thread self = Thread.currentThread();
+    try {
+      while (!self.isInterrupted()) {
+        synchronized (this.lock) {
+          while (this.pending.isEmpty()) {
+            this.lock.wait();
+          }
+        }
+        if (this.windowMillis > 0) {
+          Thread.sleep(this.windowMillis);
+        }
+        List<Region> batch;
+        synchronized (this.lock) {
+          if (this.dispatcher != self) {
+            return;
+          }
+          batch = Collections.unmodifiableList(this.pending);
+          this.pending = new ArrayList<Region>();
+        }
+        for (SheetChangeListener listener : this.listeners) {
+          try {
+            listener.cellsChanged(batch);
+          } catch (RuntimeException e) {
+            // one failing listener must not stop the others from being notified, but its
+            // failure is reported rather than lost
+            self.getUncaughtExceptionHandler().uncaughtException(self, e);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      // the last listener was removed
+    }
+  }
+}
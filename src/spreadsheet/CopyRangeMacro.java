@@ -0,0 +1,84 @@
+package spreadsheet;
+//copy-range from-row-num from-col-num to-row-num to-col-num dest-row-num dest-col-num.
+// This will copy a range of cells so that its first cell lands on the destination cell.
+// Empty cells stay empty. For example copy-range A 0 B 9 D 0 copies A0:B9 to D0:E9.
+
+/**
+ * This class represents the CopyRangeMacro class that implements the SpreadSheetMacro interface.
+ * This class represents a macro that copies a range of cells to another position. It hands the
+ * whole range to {@link SpreadSheet#copyRange}, so that storage backends can transfer it in
+ * blocks.
+ */
+public class CopyRangeMacro implements SpreadSheetMacro {
+
+  private final int fromRow;
+  private final int fromCol;
+  private final int toRow;
+  private final int toCol;
+  private final int destRow;
+  private final int destCol;
+
+  /**
+   * Constructs a new CopyRangeMacro object that takes the start and end cells of the source and
+   * the destination cell.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @param destRow the row that the starting row is copied to
+   * @param destCol the column that the starting column is copied to
+   */
+  public CopyRangeMacro(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+      int destCol) {
+    Region.checkTransfer(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    this.fromRow = fromRow;
+    this.fromCol = fromCol;
+    this.toRow = toRow;
+    this.toCol = toCol;
+    this.destRow = destRow;
+    this.destCol = destCol;
+  }
+
+  /**
+   * Copies the range of cells of the given spreadsheet to the destination.
+   *
+   * @param sheet the spreadsheet
+   */
+  @Override
+  public void execute(SpreadSheet sheet) {
+    sheet.copyRange(this.fromRow, this.fromCol, this.toRow, this.toCol, this.destRow,
+        this.destCol);
+  }
+
+  /**
+   * Returns the source range.
+   *
+   * @return the region read
+   */
+  @Override
+  public Region getReadRegion() {
+    return new Region(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
+
+  /**
+   * Returns the destination range.
+   *
+   * @return the region written
+   */
+  @Override
+  public Region getWriteRegion() {
+    return new Region(this.destRow, this.destCol, this.destRow + (this.toRow - this.fromRow),
+        this.destCol + (this.toCol - this.fromCol));
+  }
+
+  /**
+   * Returns OVERWRITE, since every destination cell is set or emptied to match the source.
+   *
+   * @return the kind of write
+   */
+  @Override
+  public WriteKind getWriteKind() {
+    return WriteKind.OVERWRITE;
+  }
+}
@@ -2,24 +2,248 @@ package spreadsheet;
 
 /**
  * Represents a spreadsheet that can execute a macro.
+ *
+ * <p>Every macro runs as a transaction: its writes are buffered and applied together once it
+ * returns, so a macro that throws part way leaves the spreadsheet as it was.
+ *
+ * <p>Changes are reported to change listeners in coalesced form: a macro as the region it writes,
+ * and direct writes as the cells or ranges they touch. Nothing is recorded while no listener is
+ * registered.
  */
 public class EnhancedSpreadSheet extends SparseSpreadSheet implements MacroSpreadSheet {
 
+  /**
+   * How long the notifier waits for more changes before notifying, in milliseconds.
+   */
+  private static final long NOTIFY_WINDOW_MILLIS = 10;
+
+  /**
+   * How many regions may be pending before the notifier collapses them into one.
+   */
+  private static final int NOTIFY_MAX_PENDING = 256;
+
+  private final ChangeNotifier notifier;
+  // how many macros or range transfers are running, since their individual writes are not reported
+  private int macroDepth;
+
   /**
    * Constructs a new EnhancedSpreadSheet object.
    */
   public EnhancedSpreadSheet() {
     super();
+    this.notifier = new ChangeNotifier(NOTIFY_WINDOW_MILLIS, NOTIFY_MAX_PENDING);
+    this.macroDepth = 0;
   }
 
   /**
-   * Executes the given macro on the current spreadsheet.
+   * Executes the given macro on the current spreadsheet as a transaction. The macro writes to a
+   * buffer, through which it also reads, and the buffer is applied to the spreadsheet in one
+   * row-major pass once the macro returns; range fills go straight to the spreadsheet. If the macro
+   * throws, the transaction is rolled back and the spreadsheet is left unchanged. Listeners are
+   * told about the macro after it is applied.
    *
    * @param macro the macro to be executed
    */
   @Override
   public void executeMacro(SpreadSheetMacro macro) {
-    macro.execute(this);
+    TransactionSheet transaction = new TransactionSheet(this);
+    boolean notify = this.notifier.hasListeners();
+    int height = notify ? getHeight() : 0;
+    int width = notify ? getWidth() : 0;
+    this.macroDepth++;
+    try {
+      macro.execute(transaction);
+      transaction.commit();
+    } catch (RuntimeException | Error e) {
+      transaction.rollback();
+      throw e;
+    } finally {
+      this.macroDepth--;
+    }
+    if (notify) {
+      publish(macro.getWriteRegion(), Math.max(height, getHeight()),
+          Math.max(width, getWidth()));
+    }
+  }
+
+  /**
+   * Registers a listener to be told which regions of this spreadsheet change.
+   *
+   * @param listener the listener to add
+   * @throws IllegalArgumentException if the listener is null
+   */
+  @Override
+  public void addChangeListener(SheetChangeListener listener) throws IllegalArgumentException {
+    this.notifier.addListener(listener);
+  }
+
+  /**
+   * Stops telling a listener about changes to this spreadsheet.
+   *
+   * @param listener the listener to remove
+   */
+  @Override
+  public void removeChangeListener(SheetChangeListener listener) {
+    this.notifier.removeListener(listener);
+  }
 
+  /**
+   * Sets the value of the cell at the specified row and column, reporting the change when it is
+   * not made by a macro.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    super.set(row, col, value);
+    if (this.macroDepth == 0 && this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(row, col, row, col));
+    }
+  }
+
+  /**
+   * Empties the cell at the specified row and column, reporting the change when it is not made by
+   * a macro.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting at 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void clear(int row, int col) throws IllegalArgumentException {
+    super.clear(row, col);
+    if (this.macroDepth == 0 && this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(row, col, row, col));
+    }
+  }
+
+  /**
+   * Sets a run of cells in one row, reporting the run as one change when it is not made by a
+   * macro.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the column of the first cell to set, starting with 0
+   * @param values  the buffer holding the values
+   * @param offset  the position in the buffer of the value of the first cell
+   * @param length  the number of cells to set
+   * @throws IllegalArgumentException if the row or column are negative or the buffer does not
+   *                                  hold that many values
+   */
+  @Override
+  public void setRow(int row, int fromCol, double[] values, int offset, int length)
+      throws IllegalArgumentException {
+    super.setRow(row, fromCol, values, offset, length);
+    if (length > 0 && this.macroDepth == 0 && this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(row, fromCol, row, fromCol + length - 1));
+    }
+  }
+
+  /**
+   * Fills a range of cells with a sequence of values, reporting the range as one change when it is
+   * not filled by a macro.
+   *
+   * @param fromRow    starting row
+   * @param fromCol    starting column
+   * @param toRow      ending row
+   * @param toCol      ending column
+   * @param start      the value of the cell with index 0
+   * @param increment  the difference between the values of consecutive cells
+   * @param firstIndex the index of the top left cell of the range in the sequence
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+      double increment, long firstIndex) throws IllegalArgumentException {
+    this.macroDepth++;
+    try {
+      super.fillRange(fromRow, fromCol, toRow, toCol, start, increment, firstIndex);
+    } finally {
+      this.macroDepth--;
+    }
+    if (this.macroDepth == 0 && this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(fromRow, fromCol, toRow, toCol));
+    }
+  }
+
+  /**
+   * Copies a range of cells with the bulk copy of the underlying storage, reporting the
+   * destination range as one change rather than each cell it writes.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is copied to
+   * @param destCol the column that the starting column is copied to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  @Override
+  public void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws IllegalArgumentException {
+    // the cells are reported together below, so keep set and clear from reporting them
+    this.macroDepth++;
+    try {
+      super.copyRange(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    } finally {
+      this.macroDepth--;
+    }
+    if (this.macroDepth == 0 && this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(destRow, destCol, destRow + (toRow - fromRow),
+          destCol + (toCol - fromCol)));
+    }
+  }
+
+  /**
+   * Moves a range of cells with the bulk move of the underlying storage, reporting the source and
+   * destination ranges as one change each rather than each cell it writes.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is moved to
+   * @param destCol the column that the starting column is moved to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  @Override
+  public void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws IllegalArgumentException {
+    this.macroDepth++;
+    try {
+      super.moveRange(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    } finally {
+      this.macroDepth--;
+    }
+    if (this.macroDepth == 0 && this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(fromRow, fromCol, toRow, toCol));
+      this.notifier.publish(new Region(destRow, destCol, destRow + (toRow - fromRow),
+          destCol + (toCol - fromCol)));
+    }
+  }
+
+  /**
+   * Reports a region that a macro wrote. A macro that does not say what it writes is reported as
+   * the whole spreadsheet, as large as it was before or after the macro.
+   *
+   * @param region the region written, or null if nothing was written
+   * @param height the height of the spreadsheet
+   * @param width  the width of the spreadsheet
+   */
+  private void publish(Region region, int height, int width) {
+    if (region == null) {
+      return;
+    }
+    if (region.equals(Region.ALL)) {
+      if (height == 0 || width == 0) {
+        return;
+      }
+      region = new Region(0, 0, height - 1, width - 1);
+    }
+    this.notifier.publish(region);
   }
 }
@@ -0,0 +1,413 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * This class represents a spreadsheet that can no longer be changed, made by
+ * {@link SparseSpreadSheet#freeze()}. Its cells are stored in compressed sparse row form: the
+ * columns and values of all cells in three primitive arrays, ordered by row and then by column,
+ * with the position in those arrays where each row starts. A cell costs 12 bytes and is found by a
+ * binary search within its row.
+ *
+ * <p>When the rows of the spreadsheet are densely used, the row starts are indexed directly by row
+ * number. Otherwise only the rows that hold a cell are kept, in a sorted array that is searched
+ * first.
+ *
+ * <p>All fields are final and never change after construction, so a frozen spreadsheet can be
+ * shared between threads without locking. Writes throw {@link UnsupportedOperationException};
+ * {@link #thaw()} returns a changeable copy.
+ */
+public final class FrozenSpreadSheet implements SpreadSheet {
+
+  // the row number of each stored row, or null if rowStart is indexed by row number
+  private final int[] rowNumbers;
+  private final int[] rowStart;
+  private final int[] columns;
+  private final double[] values;
+  private final int width;
+  private final int height;
+
+  /**
+   * Create a frozen spreadsheet from cells sorted by row and then by column.
+   *
+   * @param keys   the position of every cell, as the row in the high and the column in the low 32
+   *               bits, in ascending order
+   * @param values the value of every cell, in the same order
+   */
+  FrozenSpreadSheet(long[] keys, double[] values) {
+    int cells = keys.length;
+    this.columns = new int[cells];
+    this.values = Arrays.copyOf(values, cells);
+    int distinctRows = 0;
+    int maxCol = -1;
+    for (int k = 0; k < cells; k++) {
+      if (k == 0 || (keys[k] >>> 32) != (keys[k - 1] >>> 32)) {
+        distinctRows++;
+      }
+      this.columns[k] = (int) keys[k];
+      maxCol = Math.max(maxCol, this.columns[k]);
+    }
+    this.height = cells == 0 ? 0 : (int) (keys[cells - 1] >>> 32) + 1;
+    this.width = maxCol + 1;
+    if (this.height <= 2L * distinctRows + 16) {
+      // direct indexing costs no more than keeping the row numbers
+      this.rowNumbers = null;
+      this.rowStart = new int[this.height + 1];
+      for (int k = 0; k < cells; k++) {
+        this.rowStart[(int) (keys[k] >>> 32) + 1]++;
+      }
+      for (int i = 0; i < this.height; i++) {
+        this.rowStart[i + 1] += this.rowStart[i];
+      }
+    } else {
+      this.rowNumbers = new int[distinctRows];
+      this.rowStart = new int[distinctRows + 1];
+      int r = -1;
+      for (int k = 0; k < cells; k++) {
+        int row = (int) (keys[k] >>> 32);
+        if (r < 0 || this.rowNumbers[r] != row) {
+          r++;
+          this.rowNumbers[r] = row;
+          this.rowStart[r] = k;
+        }
+      }
+      this.rowStart[distinctRows] = cells;
+    }
+  }
+
+  /**
+   * Returns the position in the row starts of the given row.
+   *
+   * @param row the row number
+   * @return the position, or -1 if the row holds no cell
+   */
+  private int rowSlot(int row) {
+    if (this.rowNumbers == null) {
+      return row < this.height ? row : -1;
+    }
+    int slot = Arrays.binarySearch(this.rowNumbers, row);
+    return slot < 0 ? -1 : slot;
+  }
+
+  /**
+   * Returns the position in the column and value arrays of the given cell.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the position, or a negative number if the cell is empty
+   */
+  private int find(int row, int col) {
+    int slot = rowSlot(row);
+    if (slot < 0) {
+      return -1;
+    }
+    return Arrays.binarySearch(this.columns, this.rowStart[slot], this.rowStart[slot + 1], col);
+  }
+
+  /**
+   * Returns the value of the cell at the specified row and column.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the value of the cell at the specified row and column
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    int k = find(row, col);
+    return k < 0 ? 0 : this.values[k];
+  }
+
+  /**
+   * Always fails, since a frozen spreadsheet cannot be changed.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void set(int row, int col, double value) throws UnsupportedOperationException {
+    throw new UnsupportedOperationException("Frozen spreadsheet cannot be changed");
+  }
+
+  /**
+   * Always fails, since a frozen spreadsheet cannot be changed.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting at 0
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void clear(int row, int col) throws UnsupportedOperationException {
+    throw new UnsupportedOperationException("Frozen spreadsheet cannot be changed");
+  }
+
+  /**
+   * Always fails, since a frozen spreadsheet cannot be changed.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the column of the first cell to set, starting with 0
+   * @param values  the buffer holding the values
+   * @param offset  the position in the buffer of the value of the first cell
+   * @param length  the number of cells to set
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void setRow(int row, int fromCol, double[] values, int offset, int length)
+      throws UnsupportedOperationException {
+    throw new UnsupportedOperationException("Frozen spreadsheet cannot be changed");
+  }
+
+  /**
+   * Always fails, since a frozen spreadsheet cannot be changed.
+   *
+   * @param fromRow    starting row
+   * @param fromCol    starting column
+   * @param toRow      ending row
+   * @param toCol      ending column
+   * @param start      the value of the cell with index 0
+   * @param increment  the difference between the values of consecutive cells
+   * @param firstIndex the index of the top left cell of the range in the sequence
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+      double increment, long firstIndex) throws UnsupportedOperationException {
+    throw new UnsupportedOperationException("Frozen spreadsheet cannot be changed");
+  }
+
+  /**
+   * Always fails, since a frozen spreadsheet cannot be changed.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is copied to
+   * @param destCol the column that the starting column is copied to
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws UnsupportedOperationException {
+    throw new UnsupportedOperationException("Frozen spreadsheet cannot be changed");
+  }
+
+  /**
+   * Always fails, since a frozen spreadsheet cannot be changed.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is moved to
+   * @param destCol the column that the starting column is moved to
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws UnsupportedOperationException {
+    throw new UnsupportedOperationException("Frozen spreadsheet cannot be changed");
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    return find(row, col) < 0;
+  }
+
+  /**
+   * Copies the values of a run of cells in one row into the given buffer. The buffer is zeroed
+   * and the stored cells of the run are then written into it, found by one binary search for the
+   * first column.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the first column to copy, starting with 0
+   * @param toCol   the last column to copy (inclusive)
+   * @param dest    the buffer to copy the values into
+   * @param offset  the position in the buffer of the value of the first column
+   * @throws IllegalArgumentException if the row or columns are negative, the columns are out of
+   *                                  order or the buffer is too small
+   */
+  @Override
+  public void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+      throws IllegalArgumentException {
+    if ((row < 0) || (fromCol < 0) || (toCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    if ((offset < 0) || (dest.length - offset < toCol - fromCol + 1)) {
+      throw new IllegalArgumentException("Buffer is too small");
+    }
+    Arrays.fill(dest, offset, offset + (toCol - fromCol) + 1, 0);
+    int slot = rowSlot(row);
+    if (slot < 0) {
+      return;
+    }
+    int end = this.rowStart[slot + 1];
+    int k = Arrays.binarySearch(this.columns, this.rowStart[slot], end, fromCol);
+    if (k < 0) {
+      k = -k - 1;
+    }
+    for (; k < end && this.columns[k] <= toCol; k++) {
+      dest[offset + this.columns[k] - fromCol] = this.values[k];
+    }
+  }
+
+  /**
+   * Returns the number of filled cells in a range, from two binary searches in each stored row of
+   * the range.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @return the number of cells in the range that are not empty
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  @Override
+  public long countFilled(int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    if ((fromRow < 0) || (fromCol < 0) || (toRow < 0) || (toCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((fromRow > toRow) || (fromCol > toCol)) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    int firstSlot;
+    int lastSlot;
+    if (this.rowNumbers == null) {
+      firstSlot = fromRow;
+      lastSlot = Math.min(toRow, this.height - 1);
+    } else {
+      firstSlot = insertionPoint(this.rowNumbers, 0, this.rowNumbers.length, fromRow);
+      lastSlot = insertionPoint(this.rowNumbers, 0, this.rowNumbers.length,
+          (long) toRow + 1) - 1;
+    }
+    long count = 0;
+    for (int slot = firstSlot; slot <= lastSlot; slot++) {
+      int start = this.rowStart[slot];
+      int end = this.rowStart[slot + 1];
+      count += insertionPoint(this.columns, start, end, (long) toCol + 1)
+          - insertionPoint(this.columns, start, end, fromCol);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the column of the first filled cell of a row at or after the given column, by binary
+   * search within the row.
+   *
+   * @param row     the row number, starting with 0
+   * @param fromCol the column to start from, starting with 0
+   * @return the column of the next filled cell, or -1 if there is none
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+    if ((row < 0) || (fromCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    int slot = rowSlot(row);
+    if (slot < 0) {
+      return -1;
+    }
+    int k = insertionPoint(this.columns, this.rowStart[slot], this.rowStart[slot + 1], fromCol);
+    return k < this.rowStart[slot + 1] ? this.columns[k] : -1;
+  }
+
+  /**
+   * Returns the position of the first element of a sorted part of an array that is not less than
+   * the given key.
+   *
+   * @param array the array
+   * @param from  the first position of the part
+   * @param to    the position after the part
+   * @param key   the key, which may be one past the largest int
+   * @return the position, between from and to
+   */
+  private static int insertionPoint(int[] array, int from, int to, long key) {
+    if (key > Integer.MAX_VALUE) {
+      return to;
+    }
+    int k = Arrays.binarySearch(array, from, to, (int) key);
+    return k >= 0 ? k : -k - 1;
+  }
+
+  /**
+   * Return the width of this spreadsheet. The width is defined by the cell with the highest column
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Return the height of this spreadsheet. The height is defined by the cell with the highest row
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * Return an estimate of the heap memory used by this spreadsheet: its primitive arrays and
+   * nothing per cell beyond a column and a value.
+   *
+   * @return the estimated memory footprint of this spreadsheet, in bytes
+   */
+  @Override
+  public long memoryFootprint() {
+    long self = MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 4 * MemoryLayout.REFERENCE
+        + 2 * 4);
+    return self + (this.rowNumbers == null ? 0 : MemoryLayout.array(this.rowNumbers.length, 4))
+        + MemoryLayout.array(this.rowStart.length, 4) + MemoryLayout.array(this.columns.length, 4)
+        + MemoryLayout.array(this.values.length, 8);
+  }
+
+  /**
+   * Returns the number of cells in this spreadsheet.
+   *
+   * @return the number of cells
+   */
+  public int size() {
+    return this.values.length;
+  }
+
+  /**
+   * Returns a changeable copy of this spreadsheet.
+   *
+   * @return a sparse spreadsheet holding the same cells
+   */
+  public SparseSpreadSheet thaw() {
+    SparseSpreadSheet copy = new SparseSpreadSheet();
+    int slots = this.rowStart.length - 1;
+    for (int slot = 0; slot < slots; slot++) {
+      int row = this.rowNumbers == null ? slot : this.rowNumbers[slot];
+      for (int k = this.rowStart[slot]; k < this.rowStart[slot + 1]; k++) {
+        copy.set(row, this.columns[k], this.values[k]);
+      }
+    }
+    return copy;
+  }
+}
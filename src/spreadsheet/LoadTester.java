@@ -0,0 +1,286 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class replays a stream of commands in the language of the
+ * {@link SpreadSheetControllerEnhanced} against a sheet and reports the throughput and latency
+ * percentiles. The commands can go through the controller, which includes parsing them, or
+ * straight to the {@link MacroSpreadSheet}, in which case they are parsed before the clock
+ * starts.
+ *
+ * <p>When a target rate is given, every command has a scheduled start time and its latency is
+ * measured from that time rather than from when it actually started. A slow command therefore also
+ * counts against the commands that queued up behind it, as they would in production.
+ */
+public class LoadTester {
+
+  /**
+   * The ways of replaying commands.
+   */
+  public enum Mode {
+    /**
+     * Each command is parsed and executed by a controller.
+     */
+    CONTROLLER,
+    /**
+     * Each command is parsed up front and executed on the sheet directly.
+     */
+    DIRECT
+  }
+
+  private final MacroSpreadSheet sheet;
+  private final Mode mode;
+  private double sink;
+
+  /**
+   * Create a load tester that replays commands against the given sheet.
+   *
+   * @param sheet the sheet to replay commands against
+   * @param mode  the way of replaying commands
+   * @throws IllegalArgumentException if the sheet or mode is null
+   */
+  public LoadTester(MacroSpreadSheet sheet, Mode mode) throws IllegalArgumentException {
+    if (sheet == null || mode == null) {
+      throw new IllegalArgumentException("Sheet or mode is null");
+    }
+    this.sheet = sheet;
+    this.mode = mode;
+  }
+
+  /**
+   * Replay the given commands.
+   *
+   * @param commands the commands, one per element
+   * @param rate     the target number of commands per second, or 0 to replay as fast as possible
+   * @return the report of the replay
+   * @throws IllegalArgumentException if a command cannot be parsed or the rate is negative
+   */
+  public Report replay(List<String> commands, double rate) throws IllegalArgumentException {
+    if (rate < 0) {
+      throw new IllegalArgumentException("Rate cannot be negative");
+    }
+    List<Runnable> operations = new ArrayList<Runnable>(commands.size());
+    for (String command : commands) {
+      operations.add(this.mode == Mode.CONTROLLER ? controllerOperation(command)
+          : directOperation(command));
+    }
+
+    long[] latencies = new long[operations.size()];
+    int errors = 0;
+    long interval = rate == 0 ? 0 : (long) (1_000_000_000L / rate);
+    long start = System.nanoTime();
+    for (int k = 0; k < operations.size(); k++) {
+      long scheduled = start + k * interval;
+      long now = System.nanoTime();
+      if (interval > 0 && now < scheduled) {
+        LockSupport.parkNanos(scheduled - now);
+        now = System.nanoTime();
+      }
+      long begin = interval > 0 ? scheduled : now;
+      try {
+        operations.get(k).run();
+      } catch (RuntimeException e) {
+        errors++;
+      }
+      latencies[k] = System.nanoTime() - begin;
+    }
+    long elapsed = System.nanoTime() - start;
+    return new Report(latencies, errors, elapsed);
+  }
+
+  /**
+   * Returns an operation that has a controller parse and execute the command.
+   *
+   * @param command the command
+   * @return the operation
+   */
+  private Runnable controllerOperation(String command) {
+    return () -> {
+      StringBuilder output = new StringBuilder();
+      new SpreadSheetControllerEnhanced(this.sheet, new StringReader(command), output)
+          .processCommand(this.sheet);
+    };
+  }
+
+  /**
+   * Returns an operation that executes the already parsed command on the sheet.
+   *
+   * @param command the command
+   * @return the operation
+   * @throws IllegalArgumentException if the command cannot be parsed
+   */
+  private Runnable directOperation(String command) throws IllegalArgumentException {
+    SpreadSheetControllerEnhanced parser = new SpreadSheetControllerEnhanced(this.sheet,
+        new StringReader(""), new StringBuilder());
+    Scanner sc = new Scanner(command);
+    String instruction = sc.next();
+    SpreadSheetMacro macro = parser.readMacro(instruction, sc);
+    if (macro != null) {
+      return () -> this.sheet.executeMacro(macro);
+    }
+    int row = parser.getRowNum(sc.next());
+    int col = sc.nextInt() - 1;
+    switch (instruction) {
+      case "assign-value":
+        double value = sc.nextDouble();
+        return () -> this.sheet.set(row, col, value);
+      case "print-value":
+        return () -> this.sink += this.sheet.get(row, col);
+      default:
+        throw new IllegalArgumentException("Undefined instruction: " + instruction);
+    }
+  }
+
+  /**
+   * Reads a command log: a file with one command per line. Blank lines are skipped.
+   *
+   * @param file the file to read
+   * @return the commands
+   * @throws IOException if the file cannot be read
+   */
+  public static List<String> readLog(Path file) throws IOException {
+    List<String> commands = new ArrayList<String>();
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      if (!line.isBlank()) {
+        commands.add(line.trim());
+      }
+    }
+    return commands;
+  }
+
+  /**
+   * Writes a command log: a file with one command per line.
+   *
+   * @param file     the file to write
+   * @param commands the commands
+   * @throws IOException if the file cannot be written
+   */
+  public static void writeLog(Path file, List<String> commands) throws IOException {
+    Files.write(file, commands, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The throughput and latency of a replay.
+   */
+  public static class Report {
+
+    private final long[] sorted;
+    private final int errors;
+    private final long elapsedNanos;
+
+    /**
+     * Create a report.
+     *
+     * @param latencies    the latency of each command, in nanoseconds
+     * @param errors       the number of commands that failed
+     * @param elapsedNanos the duration of the replay, in nanoseconds
+     */
+    private Report(long[] latencies, int errors, long elapsedNanos) {
+      this.sorted = latencies.clone();
+      Arrays.sort(this.sorted);
+      this.errors = errors;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the number of commands replayed.
+     *
+     * @return the number of commands
+     */
+    public int getCommands() {
+      return this.sorted.length;
+    }
+
+    /**
+     * Returns the number of commands that failed.
+     *
+     * @return the number of failed commands
+     */
+    public int getErrors() {
+      return this.errors;
+    }
+
+    /**
+     * Returns the number of commands replayed per second.
+     *
+     * @return the throughput
+     */
+    public double getThroughput() {
+      return this.elapsedNanos == 0 ? 0 : this.sorted.length * 1e9 / this.elapsedNanos;
+    }
+
+    /**
+     * Returns a latency percentile.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency below which the given percentage of commands completed, in nanoseconds
+     * @throws IllegalArgumentException if the percentile is out of range
+     */
+    public long getLatency(double percentile) throws IllegalArgumentException {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("Percentile must be between 0 and 100");
+      }
+      if (this.sorted.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(percentile / 100 * this.sorted.length) - 1;
+      return this.sorted[Math.max(0, index)];
+    }
+
+    /**
+     * Returns the report as one line, with latencies in microseconds.
+     *
+     * @return the report
+     */
+    @Override
+    public String toString() {
+      return String.format("commands=%d errors=%d throughput=%.0f/s latency(us) p50=%.1f "
+              + "p90=%.1f p99=%.1f p99.9=%.1f max=%.1f", getCommands(), this.errors,
+          getThroughput(), getLatency(50) / 1e3, getLatency(90) / 1e3, getLatency(99) / 1e3,
+          getLatency(99.9) / 1e3, getLatency(100) / 1e3);
+    }
+  }
+
+  /**
+   * main method of the load tester.
+   *
+   * <p>Usage: {@code java spreadsheet.LoadTester mode rate source [skew]}, where the mode is
+   * controller or direct, the rate is in commands per second (0 for as fast as possible) and the
+   * source is either the path of a command log or a number of commands to generate with the
+   * default mix over a 1000 by 100 area.
+   *
+   * @param args the command line arguments
+   * @throws IOException if the command log cannot be read
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.out.println("Usage: LoadTester controller|direct rate log-file|count [skew]");
+      return;
+    }
+    Mode mode = Mode.valueOf(args[0].toUpperCase());
+    double rate = Double.parseDouble(args[1]);
+    List<String> commands;
+    Path log = Paths.get(args[2]);
+    if (Files.isRegularFile(log)) {
+      commands = readLog(log);
+    } else {
+      double skew = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+      commands = new WorkloadGenerator(1000, 100, WorkloadGenerator.defaultMix(), skew, 50, 42)
+          .generate(Integer.parseInt(args[2]));
+    }
+    // one replay to warm up the JIT compiler, then the measured one on a fresh sheet
+    new LoadTester(new EnhancedSpreadSheet(), mode).replay(commands, 0);
+    System.out.println(new LoadTester(new EnhancedSpreadSheet(), mode).replay(commands, rate));
+  }
+}
@@ -0,0 +1,112 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents the planning stage that a batch of macros goes through before it is
+ * executed. The planner only looks at the regions that each macro reads and writes, so it works
+ * with any macro, and it never changes what the batch leaves in the spreadsheet.
+ *
+ * <p>It makes two rewrites:
+ * <ul>
+ *   <li>A macro whose writes are all overwritten by a later macro, with no macro in between
+ *   reading them, is dropped.</li>
+ *   <li>Consecutive bulk assignments of the same value whose ranges together form a rectangle
+ *   are merged into one bulk assignment.</li>
+ * </ul>
+ */
+public final class MacroPlanner {
+
+  private MacroPlanner() {
+    // not to be instantiated
+  }
+
+  /**
+   * Returns the plan for a batch of macros: an equivalent list of macros that does no more work
+   * than the batch itself.
+   *
+   * @param macros the macros in the order they were given
+   * @return the macros to execute, in the order they must be executed
+   * @throws IllegalArgumentException if the list or one of its macros is null
+   */
+  public static List<SpreadSheetMacro> plan(List<SpreadSheetMacro> macros)
+      throws IllegalArgumentException {
+    if (macros == null || macros.contains(null)) {
+      throw new IllegalArgumentException("Macros cannot be null");
+    }
+    // merging first lets a merged assignment overwrite what neither half covers on its own, and
+    // dropping dead writes can bring more assignments next to each other
+    return mergeBulkAssignments(removeDeadWrites(mergeBulkAssignments(macros)));
+  }
+
+  /**
+   * Drops every macro whose write region is overwritten by a later macro before anything reads
+   * it.
+   *
+   * @param macros the macros in execution order
+   * @return the macros that are still needed, in execution order
+   */
+  private static List<SpreadSheetMacro> removeDeadWrites(List<SpreadSheetMacro> macros) {
+    List<SpreadSheetMacro> result = new ArrayList<SpreadSheetMacro>();
+    for (int i = 0; i < macros.size(); i++) {
+      if (!isDead(macros, i)) {
+        result.add(macros.get(i));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Check if the writes of the given macro are overwritten before anything reads them.
+   *
+   * @param macros the macros in execution order
+   * @param index  the position of the macro to check
+   * @return true if the macro can be dropped, false otherwise
+   */
+  private static boolean isDead(List<SpreadSheetMacro> macros, int index) {
+    Region written = macros.get(index).getWriteRegion();
+    if (written == null) {
+      return false;
+    }
+    for (int k = index + 1; k < macros.size(); k++) {
+      SpreadSheetMacro later = macros.get(k);
+      Region read = later.getReadRegion();
+      if (read != null && read.intersects(written)) {
+        return false;
+      }
+      Region overwritten = later.getWriteRegion();
+      if (later.getWriteKind() == SpreadSheetMacro.WriteKind.OVERWRITE && overwritten != null
+          && overwritten.contains(written)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Merges runs of bulk assignments of the same value whose ranges form a rectangle.
+   *
+   * @param macros the macros in execution order
+   * @return the macros after merging, in execution order
+   */
+  private static List<SpreadSheetMacro> mergeBulkAssignments(List<SpreadSheetMacro> macros) {
+    List<SpreadSheetMacro> result = new ArrayList<SpreadSheetMacro>();
+    for (SpreadSheetMacro macro : macros) {
+      int last = result.size() - 1;
+      if (last >= 0 && result.get(last) instanceof BulkAssignMacro
+          && macro instanceof BulkAssignMacro) {
+        BulkAssignMacro first = (BulkAssignMacro) result.get(last);
+        BulkAssignMacro second = (BulkAssignMacro) macro;
+        Region union = Region.union(first.getWriteRegion(), second.getWriteRegion());
+        if (union != null && Double.compare(first.getValue(), second.getValue()) == 0) {
+          result.set(last, new BulkAssignMacro(union.getFromRow(), union.getFromCol(),
+              union.getToRow(), union.getToCol(), first.getValue()));
+          continue;
+        }
+      }
+      result.add(macro);
+    }
+    return result;
+  }
+}
@@ -1,5 +1,7 @@
 package spreadsheet;
 
+import java.util.List;
+
 /**
  * Represents a spreadsheet that can execute a macro.
  */
@@ -12,4 +14,34 @@ public interface MacroSpreadSheet extends SpreadSheet {
    */
   void executeMacro(SpreadSheetMacro macro);
 
+  /**
+   * Register a listener to be told which regions of this spreadsheet change. A macro is reported
+   * as the region it writes once it has finished, not as the individual cells it sets. Listeners
+   * are called asynchronously, so a slow listener never slows down writes.
+   *
+   * @param listener the listener to add
+   * @throws IllegalArgumentException if the listener is null
+   */
+  void addChangeListener(SheetChangeListener listener) throws IllegalArgumentException;
+
+  /**
+   * Stop telling a listener about changes to this spreadsheet.
+   *
+   * @param listener the listener to remove
+   */
+  void removeChangeListener(SheetChangeListener listener);
+
+  /**
+   * Executes a batch of macros on the current spreadsheet, in order. The batch first goes through
+   * the {@link MacroPlanner}, so macros whose effects would be overwritten are never executed.
+   *
+   * @param macros the macros to be executed
+   * @throws IllegalArgumentException if the list or one of its macros is null
+   */
+  default void executeMacros(List<SpreadSheetMacro> macros) throws IllegalArgumentException {
+    for (SpreadSheetMacro macro : MacroPlanner.plan(macros)) {
+      executeMacro(macro);
+    }
+  }
+
 }
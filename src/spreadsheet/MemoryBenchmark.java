@@ -0,0 +1,232 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * A harness that compares the memory used by the spreadsheet implementations. It fills a sheet of
+ * each implementation with cells in a given pattern and density, then reports the bytes per cell
+ * from the sheet's own {@link SpreadSheet#memoryFootprint()} estimate next to the bytes per cell
+ * measured by sampling the heap before and after filling it.
+ *
+ * <p>Usage: {@code java spreadsheet.MemoryBenchmark [rows cols [density [pattern]]]}, where the
+ * pattern is one of block, random, rows or diagonal. Without arguments every pattern is run at a
+ * few densities over a 1000 by 1000 area. Heap sampling is only accurate when nothing else runs in
+ * the JVM, so run the harness on its own.
+ */
+public class MemoryBenchmark {
+
+  /**
+   * The shapes in which cells are filled.
+   */
+  public enum Pattern {
+    /**
+     * A solid block in the top left corner of the area, holding the requested number of cells.
+     */
+    BLOCK,
+    /**
+     * Cells scattered uniformly at random over the area.
+     */
+    RANDOM,
+    /**
+     * Whole rows, spread evenly down the area.
+     */
+    ROWS,
+    /**
+     * Bands along the diagonal of the area.
+     */
+    DIAGONAL
+  }
+
+  private final Map<String, Supplier<SpreadSheet>> implementations;
+
+  /**
+   * Create a harness that compares the given implementations.
+   *
+   * @param implementations the factories of the sheets to compare, by name
+   * @throws IllegalArgumentException if there are no implementations
+   */
+  public MemoryBenchmark(Map<String, Supplier<SpreadSheet>> implementations)
+      throws IllegalArgumentException {
+    if (implementations == null || implementations.isEmpty()) {
+      throw new IllegalArgumentException("No implementations to compare");
+    }
+    this.implementations = new LinkedHashMap<String, Supplier<SpreadSheet>>(implementations);
+  }
+
+  /**
+   * Fill the given sheet with cells.
+   *
+   * @param sheet   the sheet to fill
+   * @param rows    the number of rows in the area
+   * @param cols    the number of columns in the area
+   * @param density the fraction of the area to fill, between 0 and 1
+   * @param pattern the shape in which to fill the cells
+   * @param seed    the seed for the random pattern
+   * @return the number of cells filled
+   * @throws IllegalArgumentException if the area or the density is invalid
+   */
+  public static long fill(SpreadSheet sheet, int rows, int cols, double density, Pattern pattern,
+      long seed) throws IllegalArgumentException {
+    if (rows <= 0 || cols <= 0) {
+      throw new IllegalArgumentException("Area must have at least one cell");
+    }
+    if (density < 0 || density > 1) {
+      throw new IllegalArgumentException("Density must be between 0 and 1");
+    }
+    long target = Math.round(density * rows * cols);
+    Random random = new Random(seed);
+    switch (pattern) {
+      case BLOCK: {
+        // as square as it can be, but wide enough that the block fits in the rows of the area
+        int side = (int) Math.min(cols,
+            Math.max((target + rows - 1) / rows, (long) Math.ceil(Math.sqrt(target))));
+        for (long k = 0; k < target; k++) {
+          sheet.set((int) (k / side), (int) (k % side), k);
+        }
+        break;
+      }
+      case RANDOM:
+        for (int i = 0; i < rows; i++) {
+          for (int j = 0; j < cols; j++) {
+            if (random.nextDouble() < density) {
+              sheet.set(i, j, random.nextDouble());
+            }
+          }
+        }
+        break;
+      case ROWS: {
+        long filledRows = Math.max(1, Math.round(density * rows));
+        for (long k = 0; k < filledRows; k++) {
+          int row = (int) (k * rows / filledRows);
+          for (int j = 0; j < cols; j++) {
+            sheet.set(row, j, j);
+          }
+        }
+        break;
+      }
+      default: {
+        int band = (int) Math.max(1, Math.round(density * cols));
+        for (int i = 0; i < rows; i++) {
+          int start = (int) ((long) i * cols / rows);
+          for (int j = start; j < Math.min(cols, start + band); j++) {
+            sheet.set(i, j, i);
+          }
+        }
+        break;
+      }
+    }
+    long filled = 0;
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < cols; j++) {
+        if (!sheet.isEmpty(i, j)) {
+          filled++;
+        }
+      }
+    }
+    return filled;
+  }
+
+  /**
+   * Measure every implementation with one pattern and density and write one line per
+   * implementation to the given output.
+   *
+   * @param rows    the number of rows in the area
+   * @param cols    the number of columns in the area
+   * @param density the fraction of the area to fill, between 0 and 1
+   * @param pattern the shape in which to fill the cells
+   * @param out     where to write the report
+   * @throws IllegalStateException if the report cannot be written
+   */
+  public void run(int rows, int cols, double density, Pattern pattern, Appendable out)
+      throws IllegalStateException {
+    for (Map.Entry<String, Supplier<SpreadSheet>> implementation :
+        this.implementations.entrySet()) {
+      long before = usedHeap();
+      SpreadSheet sheet = implementation.getValue().get();
+      long cells = fill(sheet, rows, cols, density, pattern, 42);
+      long after = usedHeap();
+      long estimate = sheet.memoryFootprint();
+      write(out, String.format("%-12s %-8s %5.2f %10d %10.1f %10.1f%n", implementation.getKey(),
+          pattern.name().toLowerCase(), density, cells, perCell(estimate, cells),
+          perCell(after - before, cells)));
+      // keep the sheet reachable until the heap has been sampled
+      Reference.reachabilityFence(sheet);
+    }
+  }
+
+  /**
+   * Returns the bytes per cell of a size.
+   *
+   * @param bytes the size
+   * @param cells the number of cells
+   * @return the bytes per cell, or 0 if there are no cells
+   */
+  private static double perCell(long bytes, long cells) {
+    return cells == 0 ? 0 : (double) bytes / cells;
+  }
+
+  /**
+   * Returns the heap in use after asking the JVM to collect garbage.
+   *
+   * @return the used heap, in bytes
+   */
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // a few rounds, since one request does not always collect everything
+    for (int k = 0; k < 4; k++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  /**
+   * Write a message to the given output.
+   *
+   * @param out     the output
+   * @param message the message to write
+   * @throws IllegalStateException if the message cannot be written
+   */
+  private static void write(Appendable out, String message) throws IllegalStateException {
+    try {
+      out.append(message);
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  /**
+   * main method of the harness.
+   *
+   * @param args the rows, columns, density and pattern, all optional
+   */
+  public static void main(String[] args) {
+    Map<String, Supplier<SpreadSheet>> implementations =
+        new LinkedHashMap<String, Supplier<SpreadSheet>>();
+    implementations.put("sparse", SparseSpreadSheet::new);
+    implementations.put("adaptive", AdaptiveSpreadSheet::new);
+    MemoryBenchmark benchmark = new MemoryBenchmark(implementations);
+
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int cols = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    System.out.printf("%-12s %-8s %5s %10s %10s %10s%n", "sheet", "pattern", "dens", "cells",
+        "est B/cell", "heap B/cell");
+    if (args.length > 2) {
+      double density = Double.parseDouble(args[2]);
+      Pattern pattern = args.length > 3 ? Pattern.valueOf(args[3].toUpperCase()) : Pattern.RANDOM;
+      benchmark.run(rows, cols, density, pattern, System.out);
+      return;
+    }
+    for (Pattern pattern : Pattern.values()) {
+      for (double density : new double[] {0.01, 0.1, 0.5, 1.0}) {
+        benchmark.run(rows, cols, density, pattern, System.out);
+      }
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package spreadsheet;
+
+/**
+ * This class holds the object layout that the memory footprint estimates are based on: a 64-bit
+ * HotSpot JVM with compressed object pointers, which is the default for heaps under 32 GB. Objects
+ * have a 12 byte header, references take 4 bytes and every object is padded to a multiple of 8
+ * bytes.
+ */
+final class MemoryLayout {
+
+  /**
+   * The size of an object header, in bytes.
+   */
+  static final int OBJECT_HEADER = 12;
+
+  /**
+   * The size of an array header, including its length, in bytes.
+   */
+  static final int ARRAY_HEADER = 16;
+
+  /**
+   * The size of a reference, in bytes.
+   */
+  static final int REFERENCE = 4;
+
+  /**
+   * The size of a boxed Double: a header and the value.
+   */
+  static final long BOXED_DOUBLE = align(OBJECT_HEADER + 8);
+
+  /**
+   * The size of a HashMap entry: a header, the hash and the key, value and next references.
+   */
+  static final long HASH_MAP_ENTRY = align(OBJECT_HEADER + 4 + 3 * REFERENCE);
+
+  /**
+   * The size of a HashMap object itself, without its table and entries.
+   */
+  static final long HASH_MAP = align(OBJECT_HEADER + 4 * REFERENCE + 4 * 4);
+
+  private MemoryLayout() {
+    // not to be instantiated
+  }
+
+  /**
+   * Rounds a size up to the next multiple of 8 bytes.
+   *
+   * @param bytes the size
+   * @return the padded size
+   */
+  static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  /**
+   * Returns the size of an array.
+   *
+   * @param length      the number of elements
+   * @param elementSize the size of one element, in bytes
+   * @return the size of the array, in bytes
+   */
+  static long array(long length, int elementSize) {
+    return align(ARRAY_HEADER + length * elementSize);
+  }
+
+  /**
+   * Returns the size of a HashMap with the given number of entries, not counting the keys and
+   * values. The table is sized as HashMap sizes it with the default load factor of 0.75.
+   *
+   * @param entries the number of entries
+   * @return the size of the map, in bytes
+   */
+  static long hashMap(long entries) {
+    long capacity = 0;
+    if (entries > 0) {
+      capacity = 16;
+      while (entries > capacity * 3 / 4) {
+        capacity *= 2;
+      }
+    }
+    return HASH_MAP + (capacity == 0 ? 0 : array(capacity, REFERENCE))
+        + entries * HASH_MAP_ENTRY;
+  }
+}
@@ -0,0 +1,86 @@
+package spreadsheet;
+//move-range from-row-num from-col-num to-row-num to-col-num dest-row-num dest-col-num.
+// This will move a range of cells so that its first cell lands on the destination cell, and empty
+// the source cells that the destination does not cover. Empty cells stay empty. For example
+// move-range A 0 B 9 D 0 moves A0:B9 to D0:E9.
+
+/**
+ * This class represents the MoveRangeMacro class that implements the SpreadSheetMacro interface.
+ * This class represents a macro that moves a range of cells to another position. It hands the
+ * whole range to {@link SpreadSheet#moveRange}, so that storage backends can transfer it in
+ * blocks.
+ */
+public class MoveRangeMacro implements SpreadSheetMacro {
+
+  private final int fromRow;
+  private final int fromCol;
+  private final int toRow;
+  private final int toCol;
+  private final int destRow;
+  private final int destCol;
+
+  /**
+   * Constructs a new MoveRangeMacro object that takes the start and end cells of the source and
+   * the destination cell.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @param destRow the row that the starting row is moved to
+   * @param destCol the column that the starting column is moved to
+   */
+  public MoveRangeMacro(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+      int destCol) {
+    Region.checkTransfer(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    this.fromRow = fromRow;
+    this.fromCol = fromCol;
+    this.toRow = toRow;
+    this.toCol = toCol;
+    this.destRow = destRow;
+    this.destCol = destCol;
+  }
+
+  /**
+   * Moves the range of cells of the given spreadsheet to the destination.
+   *
+   * @param sheet the spreadsheet
+   */
+  @Override
+  public void execute(SpreadSheet sheet) {
+    sheet.moveRange(this.fromRow, this.fromCol, this.toRow, this.toCol, this.destRow,
+        this.destCol);
+  }
+
+  /**
+   * Returns the source range.
+   *
+   * @return the region read
+   */
+  @Override
+  public Region getReadRegion() {
+    return new Region(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
+
+  /**
+   * Returns the smallest region holding both the source and the destination ranges.
+   *
+   * @return the region written
+   */
+  @Override
+  public Region getWriteRegion() {
+    return new Region(Math.min(this.fromRow, this.destRow), Math.min(this.fromCol, this.destCol),
+        Math.max(this.toRow, this.destRow + (this.toRow - this.fromRow)),
+        Math.max(this.toCol, this.destCol + (this.toCol - this.fromCol)));
+  }
+
+  /**
+   * Returns PARTIAL, since cells between the source and destination ranges are left alone.
+   *
+   * @return the kind of write
+   */
+  @Override
+  public WriteKind getWriteKind() {
+    return WriteKind.PARTIAL;
+  }
+}
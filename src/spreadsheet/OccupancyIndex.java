@@ -0,0 +1,711 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * This class records which cells of a spreadsheet are filled, as one compressed bitmap per row,
+ * so that emptiness can be answered without touching the values.
+ *
+ * <p>The bitmap of a row follows the Roaring layout. The columns are split into chunks of 65536
+ * by their high 16 bits, and each chunk that holds a filled cell has a container for the low 16
+ * bits. A container with few cells is a sorted array of them; one with more than
+ * {@value #ARRAY_LIMIT} cells is a bitmap of the whole chunk. Both use at most 8 KB, and either
+ * answers a membership test, a count over a range of columns, or a search for the next filled
+ * column with a binary search or a short scan of words, never a scan of the cells.
+ *
+ * <p>The rows are kept in an open-addressing table keyed by the primitive row number, so no
+ * lookup allocates.
+ *
+ * <p>The cost is dominated by the rows, not the cells. Every row that holds a cell needs its
+ * bitmap object, its chunk and container arrays, and at least one container with its array:
+ * about 130 bytes for a row with a single cell, plus its slots in the row table. Each further
+ * cell in an array container costs 2 bytes, and a bitmap container costs 8 KB however full it is.
+ * So the index is about 2 bytes per cell only in rows with many cells, and well over 100 bytes
+ * per cell when every cell is on a row of its own. {@link #footprint()} counts all of this.
+ */
+final class OccupancyIndex {
+
+  /**
+   * The largest number of cells kept in an array container.
+   */
+  static final int ARRAY_LIMIT = 4096;
+
+  private int[] rowKeys;
+  private RowBitmap[] rowBitmaps;
+  private int rowCount;
+  private long cells;
+
+  /**
+   * Create an empty index.
+   */
+  OccupancyIndex() {
+    this.rowKeys = new int[16];
+    this.rowBitmaps = new RowBitmap[16];
+  }
+
+  /**
+   * Returns the number of filled cells.
+   *
+   * @return the number of filled cells
+   */
+  long size() {
+    return this.cells;
+  }
+
+  /**
+   * Returns whether a cell is filled.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return true if the cell is filled
+   */
+  boolean contains(int row, int col) {
+    RowBitmap bitmap = this.rowBitmaps[slot(row)];
+    return bitmap != null && bitmap.contains(col);
+  }
+
+  /**
+   * Mark a cell as filled.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return true if the cell was empty before
+   */
+  boolean add(int row, int col) {
+    int slot = slot(row);
+    RowBitmap bitmap = this.rowBitmaps[slot];
+    if (bitmap == null) {
+      if ((this.rowCount + 1) * 2 > this.rowKeys.length) {
+        growRows();
+        slot = slot(row);
+      }
+      bitmap = new RowBitmap();
+      this.rowKeys[slot] = row;
+      this.rowBitmaps[slot] = bitmap;
+      this.rowCount++;
+    }
+    if (bitmap.add(col)) {
+      this.cells++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Mark a cell as empty, dropping the bitmap of its row if the row is now empty.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return true if the cell was filled before
+   */
+  boolean remove(int row, int col) {
+    int slot = slot(row);
+    RowBitmap bitmap = this.rowBitmaps[slot];
+    if (bitmap == null || !bitmap.remove(col)) {
+      return false;
+    }
+    this.cells--;
+    if (bitmap.cardinality() == 0) {
+      removeRow(slot);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of filled cells in a range. Whichever is smaller is visited: the rows of
+   * the range or the rows that hold a cell.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @return the number of filled cells
+   */
+  long count(int fromRow, int fromCol, int toRow, int toCol) {
+    long total = 0;
+    if ((long) toRow - fromRow + 1 < this.rowCount) {
+      // a long row, so the loop ends when the range reaches the last row
+      for (long i = fromRow; i <= toRow; i++) {
+        RowBitmap bitmap = this.rowBitmaps[slot((int) i)];
+        if (bitmap != null) {
+          total += bitmap.count(fromCol, toCol);
+        }
+      }
+      return total;
+    }
+    for (int s = 0; s < this.rowBitmaps.length; s++) {
+      RowBitmap bitmap = this.rowBitmaps[s];
+      if (bitmap != null && this.rowKeys[s] >= fromRow && this.rowKeys[s] <= toRow) {
+        total += bitmap.count(fromCol, toCol);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns the first filled column of a row at or after the given column.
+   *
+   * @param row     the row number
+   * @param fromCol the column to start from
+   * @return the column, or -1 if there is none
+   */
+  int next(int row, int fromCol) {
+    RowBitmap bitmap = this.rowBitmaps[slot(row)];
+    return bitmap == null ? -1 : bitmap.next(fromCol);
+  }
+
+  /**
+   * Returns the estimated heap memory used by this index, in bytes.
+   *
+   * @return the memory footprint
+   */
+  long footprint() {
+    long total = MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 2 * MemoryLayout.REFERENCE + 4
+        + 8) + MemoryLayout.array(this.rowKeys.length, 4)
+        + MemoryLayout.array(this.rowBitmaps.length, MemoryLayout.REFERENCE);
+    for (RowBitmap bitmap : this.rowBitmaps) {
+      if (bitmap != null) {
+        total += bitmap.footprint();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns the slot of the row table that holds a row, or the free slot where it would go.
+   *
+   * @param row the row number
+   * @return the slot
+   */
+  private int slot(int row) {
+    int mask = this.rowKeys.length - 1;
+    int slot = hash(row) & mask;
+    while (this.rowBitmaps[slot] != null && this.rowKeys[slot] != row) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Spreads the bits of a row number over the table.
+   *
+   * @param row the row number
+   * @return the hash
+   */
+  private static int hash(int row) {
+    int h = row * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Double the size of the row table.
+   */
+  private void growRows() {
+    int[] oldKeys = this.rowKeys;
+    RowBitmap[] oldBitmaps = this.rowBitmaps;
+    this.rowKeys = new int[oldKeys.length * 2];
+    this.rowBitmaps = new RowBitmap[oldKeys.length * 2];
+    for (int k = 0; k < oldKeys.length; k++) {
+      if (oldBitmaps[k] != null) {
+        int slot = slot(oldKeys[k]);
+        this.rowKeys[slot] = oldKeys[k];
+        this.rowBitmaps[slot] = oldBitmaps[k];
+      }
+    }
+  }
+
+  /**
+   * Remove a row from the table, shifting later rows of the probe run back into the hole.
+   *
+   * @param slot the slot of the row
+   */
+  private void removeRow(int slot) {
+    int mask = this.rowKeys.length - 1;
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (this.rowBitmaps[next] != null) {
+      int home = hash(this.rowKeys[next]) & mask;
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        this.rowKeys[hole] = this.rowKeys[next];
+        this.rowBitmaps[hole] = this.rowBitmaps[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    this.rowBitmaps[hole] = null;
+    this.rowCount--;
+  }
+
+  /**
+   * The filled columns of one row: a sorted array of chunk numbers, the high 16 bits of the
+   * columns, each with a container of the low 16 bits.
+   */
+  private static final class RowBitmap {
+
+    private int[] chunks = new int[1];
+    private Container[] containers = new Container[1];
+    private int size;
+    private int cardinality;
+
+    /**
+     * Returns the number of filled columns.
+     *
+     * @return the number of filled columns
+     */
+    int cardinality() {
+      return this.cardinality;
+    }
+
+    /**
+     * Returns the position of a chunk in the chunk array, as by {@link Arrays#binarySearch}.
+     *
+     * @param chunk the chunk number
+     * @return the position, or (-(insertion point) - 1) if there is no such chunk
+     */
+    private int find(int chunk) {
+      // most rows only use the first chunk
+      if (this.size > 0 && this.chunks[0] == chunk) {
+        return 0;
+      }
+      return Arrays.binarySearch(this.chunks, 0, this.size, chunk);
+    }
+
+    /**
+     * Returns whether a column is filled.
+     *
+     * @param col the column number
+     * @return true if the column is filled
+     */
+    boolean contains(int col) {
+      int k = find(col >>> 16);
+      return k >= 0 && this.containers[k].contains(col & 0xFFFF);
+    }
+
+    /**
+     * Mark a column as filled.
+     *
+     * @param col the column number
+     * @return true if the column was empty before
+     */
+    boolean add(int col) {
+      int k = find(col >>> 16);
+      if (k < 0) {
+        k = -k - 1;
+        if (this.size == this.chunks.length) {
+          this.chunks = Arrays.copyOf(this.chunks, this.size * 2);
+          this.containers = Arrays.copyOf(this.containers, this.size * 2);
+        }
+        System.arraycopy(this.chunks, k, this.chunks, k + 1, this.size - k);
+        System.arraycopy(this.containers, k, this.containers, k + 1, this.size - k);
+        this.chunks[k] = col >>> 16;
+        this.containers[k] = new ArrayContainer();
+        this.size++;
+      }
+      Container container = this.containers[k];
+      int before = container.cardinality();
+      this.containers[k] = container.add(col & 0xFFFF);
+      if (this.containers[k].cardinality() == before) {
+        return false;
+      }
+      this.cardinality++;
+      return true;
+    }
+
+    /**
+     * Mark a column as empty.
+     *
+     * @param col the column number
+     * @return true if the column was filled before
+     */
+    boolean remove(int col) {
+      int k = find(col >>> 16);
+      if (k < 0) {
+        return false;
+      }
+      Container container = this.containers[k];
+      int before = container.cardinality();
+      this.containers[k] = container.remove(col & 0xFFFF);
+      if (this.containers[k].cardinality() == before) {
+        return false;
+      }
+      this.cardinality--;
+      if (this.containers[k].cardinality() == 0) {
+        System.arraycopy(this.chunks, k + 1, this.chunks, k, this.size - k - 1);
+        System.arraycopy(this.containers, k + 1, this.containers, k, this.size - k - 1);
+        this.size--;
+        this.containers[this.size] = null;
+      }
+      return true;
+    }
+
+    /**
+     * Returns the number of filled columns in a range.
+     *
+     * @param fromCol the first column
+     * @param toCol   the last column (inclusive)
+     * @return the number of filled columns
+     */
+    int count(int fromCol, int toCol) {
+      if (fromCol == 0 && toCol == Integer.MAX_VALUE) {
+        return this.cardinality;
+      }
+      int k = find(fromCol >>> 16);
+      if (k < 0) {
+        k = -k - 1;
+      }
+      int total = 0;
+      for (; k < this.size && this.chunks[k] <= toCol >>> 16; k++) {
+        int lo = this.chunks[k] == fromCol >>> 16 ? fromCol & 0xFFFF : 0;
+        int hi = this.chunks[k] == toCol >>> 16 ? toCol & 0xFFFF : 0xFFFF;
+        total += this.containers[k].count(lo, hi);
+      }
+      return total;
+    }
+
+    /**
+     * Returns the first filled column at or after the given one.
+     *
+     * @param fromCol the column to start from
+     * @return the column, or -1 if there is none
+     */
+    int next(int fromCol) {
+      int k = find(fromCol >>> 16);
+      if (k >= 0) {
+        int low = this.containers[k].next(fromCol & 0xFFFF);
+        if (low >= 0) {
+          return (this.chunks[k] << 16) | low;
+        }
+        k++;
+      } else {
+        k = -k - 1;
+      }
+      // every container holds a cell, so the next chunk starts with one
+      return k < this.size ? (this.chunks[k] << 16) | this.containers[k].next(0) : -1;
+    }
+
+    /**
+     * Returns the estimated heap memory used by this bitmap, in bytes.
+     *
+     * @return the memory footprint
+     */
+    long footprint() {
+      long total = MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 2 * MemoryLayout.REFERENCE
+          + 2 * 4) + MemoryLayout.array(this.chunks.length, 4)
+          + MemoryLayout.array(this.containers.length, MemoryLayout.REFERENCE);
+      for (int k = 0; k < this.size; k++) {
+        total += this.containers[k].footprint();
+      }
+      return total;
+    }
+  }
+
+  /**
+   * The filled cells of one chunk of 65536 columns, by the low 16 bits of their column.
+   */
+  private abstract static class Container {
+
+    /**
+     * Returns the number of filled cells.
+     *
+     * @return the number of filled cells
+     */
+    abstract int cardinality();
+
+    /**
+     * Returns whether a cell is filled.
+     *
+     * @param low the low 16 bits of the column
+     * @return true if the cell is filled
+     */
+    abstract boolean contains(int low);
+
+    /**
+     * Mark a cell as filled.
+     *
+     * @param low the low 16 bits of the column
+     * @return this container, or the one that replaces it if it had to change layout
+     */
+    abstract Container add(int low);
+
+    /**
+     * Mark a cell as empty.
+     *
+     * @param low the low 16 bits of the column
+     * @return this container, or the one that replaces it if it had to change layout
+     */
+    abstract Container remove(int low);
+
+    /**
+     * Returns the number of filled cells in a range.
+     *
+     * @param lo the first low column
+     * @param hi the last low column (inclusive)
+     * @return the number of filled cells
+     */
+    abstract int count(int lo, int hi);
+
+    /**
+     * Returns the first filled low column at or after the given one.
+     *
+     * @param from the low column to start from
+     * @return the low column, or -1 if there is none
+     */
+    abstract int next(int from);
+
+    /**
+     * Returns the estimated heap memory used by this container, in bytes.
+     *
+     * @return the memory footprint
+     */
+    abstract long footprint();
+  }
+
+  /**
+   * A container that keeps its filled low columns in a sorted array.
+   */
+  private static final class ArrayContainer extends Container {
+
+    private char[] values = new char[4];
+    private int size;
+
+    /**
+     * Returns the number of filled cells.
+     *
+     * @return the number of filled cells
+     */
+    @Override
+    int cardinality() {
+      return this.size;
+    }
+
+    /**
+     * Returns whether a cell is filled, by binary search.
+     *
+     * @param low the low 16 bits of the column
+     * @return true if the cell is filled
+     */
+    @Override
+    boolean contains(int low) {
+      return Arrays.binarySearch(this.values, 0, this.size, (char) low) >= 0;
+    }
+
+    /**
+     * Mark a cell as filled, turning into a bitmap once there are too many cells for an array.
+     *
+     * @param low the low 16 bits of the column
+     * @return this container, or the bitmap that replaces it
+     */
+    @Override
+    Container add(int low) {
+      int k = Arrays.binarySearch(this.values, 0, this.size, (char) low);
+      if (k >= 0) {
+        return this;
+      }
+      if (this.size == ARRAY_LIMIT) {
+        BitmapContainer bitmap = new BitmapContainer();
+        for (int i = 0; i < this.size; i++) {
+          bitmap.add(this.values[i]);
+        }
+        return bitmap.add(low);
+      }
+      k = -k - 1;
+      if (this.size == this.values.length) {
+        this.values = Arrays.copyOf(this.values, Math.min(ARRAY_LIMIT, this.size * 2));
+      }
+      System.arraycopy(this.values, k, this.values, k + 1, this.size - k);
+      this.values[k] = (char) low;
+      this.size++;
+      return this;
+    }
+
+    /**
+     * Mark a cell as empty.
+     *
+     * @param low the low 16 bits of the column
+     * @return this container
+     */
+    @Override
+    Container remove(int low) {
+      int k = Arrays.binarySearch(this.values, 0, this.size, (char) low);
+      if (k >= 0) {
+        System.arraycopy(this.values, k + 1, this.values, k, this.size - k - 1);
+        this.size--;
+      }
+      return this;
+    }
+
+    /**
+     * Returns the number of filled cells in a range, from two binary searches.
+     *
+     * @param lo the first low column
+     * @param hi the last low column (inclusive)
+     * @return the number of filled cells
+     */
+    @Override
+    int count(int lo, int hi) {
+      return insertionPoint(hi + 1) - insertionPoint(lo);
+    }
+
+    /**
+     * Returns the first filled low column at or after the given one, by binary search.
+     *
+     * @param from the low column to start from
+     * @return the low column, or -1 if there is none
+     */
+    @Override
+    int next(int from) {
+      int k = insertionPoint(from);
+      return k < this.size ? this.values[k] : -1;
+    }
+
+    /**
+     * Returns the number of filled low columns below the given one.
+     *
+     * @param low the low column, up to 65536
+     * @return the number of smaller filled low columns
+     */
+    private int insertionPoint(int low) {
+      if (low > 0xFFFF) {
+        return this.size;
+      }
+      int k = Arrays.binarySearch(this.values, 0, this.size, (char) low);
+      return k >= 0 ? k : -k - 1;
+    }
+
+    /**
+     * Returns the estimated heap memory used by this container, in bytes.
+     *
+     * @return the memory footprint
+     */
+    @Override
+    long footprint() {
+      return MemoryLayout.align(MemoryLayout.OBJECT_HEADER + MemoryLayout.REFERENCE + 4)
+          + MemoryLayout.array(this.values.length, 2);
+    }
+  }
+
+  /**
+   * A container that keeps a bit for every low column of its chunk.
+   */
+  private static final class BitmapContainer extends Container {
+
+    private final long[] words = new long[1024];
+    private int cardinality;
+
+    /**
+     * Returns the number of filled cells.
+     *
+     * @return the number of filled cells
+     */
+    @Override
+    int cardinality() {
+      return this.cardinality;
+    }
+
+    /**
+     * Returns whether a cell is filled.
+     *
+     * @param low the low 16 bits of the column
+     * @return true if the cell is filled
+     */
+    @Override
+    boolean contains(int low) {
+      return (this.words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * Mark a cell as filled.
+     *
+     * @param low the low 16 bits of the column
+     * @return this container
+     */
+    @Override
+    Container add(int low) {
+      if (!contains(low)) {
+        this.words[low >>> 6] |= 1L << low;
+        this.cardinality++;
+      }
+      return this;
+    }
+
+    /**
+     * Mark a cell as empty, turning back into an array once the cells fit in one.
+     *
+     * @param low the low 16 bits of the column
+     * @return this container, or the array that replaces it
+     */
+    @Override
+    Container remove(int low) {
+      if (!contains(low)) {
+        return this;
+      }
+      this.words[low >>> 6] &= ~(1L << low);
+      this.cardinality--;
+      if (this.cardinality > ARRAY_LIMIT / 2) {
+        return this;
+      }
+      // wait until well below the limit, so a row around it does not convert on every write
+      Container array = new ArrayContainer();
+      for (int v = next(0); v >= 0; v = next(v + 1)) {
+        array = array.add(v);
+      }
+      return array;
+    }
+
+    /**
+     * Returns the number of filled cells in a range, by counting the bits of whole words.
+     *
+     * @param lo the first low column
+     * @param hi the last low column (inclusive)
+     * @return the number of filled cells
+     */
+    @Override
+    int count(int lo, int hi) {
+      int first = lo >>> 6;
+      int last = hi >>> 6;
+      long firstMask = -1L << lo;
+      long lastMask = -1L >>> (63 - (hi & 63));
+      if (first == last) {
+        return Long.bitCount(this.words[first] & firstMask & lastMask);
+      }
+      int total = Long.bitCount(this.words[first] & firstMask);
+      for (int w = first + 1; w < last; w++) {
+        total += Long.bitCount(this.words[w]);
+      }
+      return total + Long.bitCount(this.words[last] & lastMask);
+    }
+
+    /**
+     * Returns the first filled low column at or after the given one.
+     *
+     * @param from the low column to start from
+     * @return the low column, or -1 if there is none
+     */
+    @Override
+    int next(int from) {
+      if (from > 0xFFFF) {
+        return -1;
+      }
+      int w = from >>> 6;
+      long word = this.words[w] & (-1L << from);
+      while (word == 0) {
+        if (++w == this.words.length) {
+          return -1;
+        }
+        word = this.words[w];
+      }
+      return w * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Returns the estimated heap memory used by this container, in bytes.
+     *
+     * @return the memory footprint
+     */
+    @Override
+    long footprint() {
+      return MemoryLayout.align(MemoryLayout.OBJECT_HEADER + MemoryLayout.REFERENCE + 4)
+          + MemoryLayout.array(this.words.length, 8);
+    }
+  }
+}
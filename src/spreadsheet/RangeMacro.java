@@ -53,13 +53,38 @@ public class RangeMacro implements SpreadSheetMacro {
    * @param sheet the spreadsheet
    */
   public void execute(SpreadSheet sheet) {
-    double value = this.startValue;
-    for (int i = this.fromRow; i <= this.toRow; i++) {
-      for (int j = this.fromCol; j <= this.toCol; j++) {
-        sheet.set(i, j, value);
-        value += this.increment;
-      }
-    }
+    // each value is computed from the index of its cell rather than by adding up the increments
+    sheet.fillRange(this.fromRow, this.fromCol, this.toRow, this.toCol, this.startValue,
+        this.increment, 0);
+  }
+
+  /**
+   * Returns null, since this macro reads no cells.
+   *
+   * @return null
+   */
+  @Override
+  public Region getReadRegion() {
+    return null;
   }
 
+  /**
+   * Returns the range of cells that this macro assigns.
+   *
+   * @return the region written
+   */
+  @Override
+  public Region getWriteRegion() {
+    return new Region(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
+
+  /**
+   * Returns OVERWRITE, since every cell of the range is assigned.
+   *
+   * @return the kind of write
+   */
+  @Override
+  public WriteKind getWriteKind() {
+    return WriteKind.OVERWRITE;
+  }
 }
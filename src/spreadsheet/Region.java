@@ -0,0 +1,208 @@
+package spreadsheet;
+
+import java.util.Objects;
+
+/**
+ * This class represents a rectangular region of cells in a spreadsheet, from a starting cell to an
+ * ending cell (both inclusive). Regions are used by macros to describe which cells they read and
+ * write.
+ */
+public final class Region {
+
+  /**
+   * The region that covers every cell of a spreadsheet.
+   */
+  public static final Region ALL = new Region(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+  private final int fromRow;
+  private final int fromCol;
+  private final int toRow;
+  private final int toCol;
+
+  /**
+   * Create a new region.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  public Region(int fromRow, int fromCol, int toRow, int toCol) throws IllegalArgumentException {
+    if (fromRow < 0 || fromCol < 0 || toRow < 0 || toCol < 0) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (fromRow > toRow || fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    this.fromRow = fromRow;
+    this.fromCol = fromCol;
+    this.toRow = toRow;
+    this.toCol = toCol;
+  }
+
+  /**
+   * Returns the starting row of this region.
+   *
+   * @return the starting row
+   */
+  public int getFromRow() {
+    return this.fromRow;
+  }
+
+  /**
+   * Returns the starting column of this region.
+   *
+   * @return the starting column
+   */
+  public int getFromCol() {
+    return this.fromCol;
+  }
+
+  /**
+   * Returns the ending row of this region.
+   *
+   * @return the ending row
+   */
+  public int getToRow() {
+    return this.toRow;
+  }
+
+  /**
+   * Returns the ending column of this region.
+   *
+   * @return the ending column
+   */
+  public int getToCol() {
+    return this.toCol;
+  }
+
+  /**
+   * Check if this region contains every cell of another region.
+   *
+   * @param other the other region
+   * @return true if the other region lies inside this one, false otherwise
+   */
+  public boolean contains(Region other) {
+    return this.fromRow <= other.fromRow && other.toRow <= this.toRow
+        && this.fromCol <= other.fromCol && other.toCol <= this.toCol;
+  }
+
+  /**
+   * Check if this region shares at least one cell with another region.
+   *
+   * @param other the other region
+   * @return true if the regions overlap, false otherwise
+   */
+  public boolean intersects(Region other) {
+    return this.fromRow <= other.toRow && other.fromRow <= this.toRow
+        && this.fromCol <= other.toCol && other.fromCol <= this.toCol;
+  }
+
+  /**
+   * Returns the union of two regions if it is itself a rectangle.
+   *
+   * @param a the first region
+   * @param b the second region
+   * @return the union, or null if the union is not a rectangle
+   */
+  static Region union(Region a, Region b) {
+    if (a.contains(b)) {
+      return a;
+    }
+    if (b.contains(a)) {
+      return b;
+    }
+    boolean sameCols = a.fromCol == b.fromCol && a.toCol == b.toCol;
+    boolean sameRows = a.fromRow == b.fromRow && a.toRow == b.toRow;
+    // the ranges must overlap or touch along the axis in which they differ
+    if (sameCols && (long) a.fromRow <= (long) b.toRow + 1
+        && (long) b.fromRow <= (long) a.toRow + 1) {
+      return new Region(Math.min(a.fromRow, b.fromRow), a.fromCol,
+          Math.max(a.toRow, b.toRow), a.toCol);
+    }
+    if (sameRows && (long) a.fromCol <= (long) b.toCol + 1
+        && (long) b.fromCol <= (long) a.toCol + 1) {
+      return new Region(a.fromRow, Math.min(a.fromCol, b.fromCol), a.toRow,
+          Math.max(a.toCol, b.toCol));
+    }
+    return null;
+  }
+
+  /**
+   * Returns the smallest region that holds both of two regions.
+   *
+   * @param a the first region
+   * @param b the second region
+   * @return the bounding region
+   */
+  static Region bounding(Region a, Region b) {
+    return new Region(Math.min(a.fromRow, b.fromRow), Math.min(a.fromCol, b.fromCol),
+        Math.max(a.toRow, b.toRow), Math.max(a.toCol, b.toCol));
+  }
+
+  /**
+   * Check the arguments of a copy or move of a range of cells.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row goes to
+   * @param destCol the column that the starting column goes to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  static void checkTransfer(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+      int destCol) throws IllegalArgumentException {
+    if (fromRow < 0 || fromCol < 0 || toRow < 0 || toCol < 0 || destRow < 0 || destCol < 0) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (fromRow > toRow || fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    if ((long) destRow + (toRow - fromRow) > Integer.MAX_VALUE
+        || (long) destCol + (toCol - fromCol) > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Destination range does not fit in the spreadsheet");
+    }
+  }
+
+  /**
+   * Check if this region is equal to another object.
+   *
+   * @param o the object to compare to
+   * @return true if the objects are equal, false otherwise
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Region)) {
+      return false;
+    }
+    Region other = (Region) o;
+    return this.fromRow == other.fromRow && this.fromCol == other.fromCol
+        && this.toRow == other.toRow && this.toCol == other.toCol;
+  }
+
+  /**
+   * Get the hash code of this region.
+   *
+   * @return the hash code of this region
+   */
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
+
+  /**
+   * Returns a string of the form (fromRow,fromCol)-(toRow,toCol).
+   *
+   * @return the string representation of this region
+   */
+  @Override
+  public String toString() {
+    return "(" + this.fromRow + "," + this.fromCol + ")-(" + this.toRow + "," + this.toCol + ")";
+  }
+}
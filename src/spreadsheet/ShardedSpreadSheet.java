@@ -0,0 +1,1354 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Represents a spreadsheet whose rows are split into shards that work in parallel. The rows are
+ * grouped into bands of a fixed height, and the bands are dealt out to the shards in turn, so that
+ * both the top of the spreadsheet and any large range are spread over every shard. Each shard owns
+ * its own storage and a single thread, and only that thread ever touches the storage, so no locks
+ * are needed.
+ *
+ * <p>Writes to a cell are handed to its shard without waiting for them, and reads wait for the
+ * shard to answer. Since a shard runs its tasks in order, a read always sees the writes handed to
+ * the same shard before it. If a shard falls far behind, writers wait for room in its queue.
+ *
+ * <p>Macros that this class knows how to split are run on every shard at once: bulk and range
+ * assignments run the part of their range that each shard owns, and sums, minimums, maximums and
+ * averages combine one partial result per shard. Range copies and moves are done a block of the
+ * destination at a time: the source cells of the block are read from their shards in one task per
+ * band, and the block is written by the shard that owns it. Any other macro is run as a
+ * transaction, which reads a block of a band at a time from the shard that owns it and routes
+ * each write to the shard that owns the cell.
+ *
+ * <p>A macro submitted to an {@link AsyncMacroExecutor} comes wrapped to report its progress.
+ * The wrapped macro is taken out and split as usual, but then its progress is not reported, and
+ * instead every shard checks before each band, and a transfer before each block, whether the
+ * macro has been stopped. The writes of such a macro are kept in a transaction on each shard, so
+ * that stopping it drops all of them.
+ *
+ * <p>Every operation may be called from any thread. A split macro is atomic on each shard, but
+ * not across shards with respect to other threads writing at the same time.
+ */
+public class ShardedSpreadSheet implements MacroSpreadSheet, AutoCloseable {
+
+  /**
+   * How many tasks may wait for a shard before writers have to wait.
+   */
+  private static final int QUEUE_CAPACITY = 4096;
+
+  /**
+   * How long the notifier waits for more changes before notifying, in milliseconds.
+   */
+  private static final long NOTIFY_WINDOW_MILLIS = 10;
+
+  /**
+   * How many regions may be pending before the notifier collapses them into one.
+   */
+  private static final int NOTIFY_MAX_PENDING = 256;
+
+  /**
+   * How many rows of a band are read or written in one task by a transaction or a range transfer.
+   */
+  private static final int BLOCK_ROWS = 64;
+
+  /**
+   * How many columns of a row a transaction reads in one task.
+   */
+  private static final int READ_BLOCK_COLS = 256;
+
+  /**
+   * How many columns of a row a range transfer reads and writes in one task.
+   */
+  private static final int TRANSFER_BLOCK_COLS = 4096;
+
+  private final Shard[] shards;
+  private final int bandHeight;
+  private final ChangeNotifier notifier;
+  // the cells of this spreadsheet, written without reporting each cell
+  private final SpreadSheet quiet;
+
+  /**
+   * Create an empty spreadsheet with one shard per processor and bands of 64 rows.
+   */
+  public ShardedSpreadSheet() {
+    this(Runtime.getRuntime().availableProcessors(), 64);
+  }
+
+  /**
+   * Create an empty spreadsheet with the given number of shards and band height.
+   *
+   * @param shardCount the number of shards
+   * @param bandHeight the number of consecutive rows that belong to the same shard
+   * @throws IllegalArgumentException if the number of shards or the band height is not positive
+   */
+  public ShardedSpreadSheet(int shardCount, int bandHeight) throws IllegalArgumentException {
+    if (shardCount <= 0 || bandHeight <= 0) {
+      throw new IllegalArgumentException("Shard count and band height must be positive");
+    }
+    this.shards = new Shard[shardCount];
+    for (int k = 0; k < shardCount; k++) {
+      this.shards[k] = new Shard(k);
+    }
+    this.bandHeight = bandHeight;
+    this.notifier = new ChangeNotifier(NOTIFY_WINDOW_MILLIS, NOTIFY_MAX_PENDING);
+    this.quiet = new QuietSheet();
+  }
+
+  /**
+   * Returns the number of shards.
+   *
+   * @return the number of shards
+   */
+  public int getShardCount() {
+    return this.shards.length;
+  }
+
+  /**
+   * Returns the value of the cell at the specified row and column, asking its shard.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the value of the cell at the specified row and column
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    check(row, col);
+    return shardOf(row).call(storage -> storage.get(row, col));
+  }
+
+  /**
+   * Sets the value of the cell at the specified row and column, without waiting for its shard.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    this.quiet.set(row, col, value);
+    if (this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(row, col, row, col));
+    }
+  }
+
+  /**
+   * Empties the cell at the specified row and column, without waiting for its shard.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting at 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void clear(int row, int col) throws IllegalArgumentException {
+    this.quiet.clear(row, col);
+    if (this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(row, col, row, col));
+    }
+  }
+
+  /**
+   * Returns whether the specified cell is empty, asking its shard.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    check(row, col);
+    return shardOf(row).call(storage -> storage.isEmpty(row, col));
+  }
+
+  /**
+   * Copies the values of a run of cells in one row into the given buffer, in one task on the
+   * shard that owns the row.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the first column to copy, starting with 0
+   * @param toCol   the last column to copy (inclusive)
+   * @param dest    the buffer to copy the values into
+   * @param offset  the position in the buffer of the value of the first column
+   * @throws IllegalArgumentException if the row or columns are negative, the columns are out of
+   *                                  order or the buffer is too small
+   */
+  @Override
+  public void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+      throws IllegalArgumentException {
+    check(row, fromCol);
+    shardOf(row).call(storage -> {
+      storage.getRow(row, fromCol, toCol, dest, offset);
+      return null;
+    });
+  }
+
+  /**
+   * Returns the column of the first filled cell of a row at or after the given column, asking
+   * the shard that owns the row.
+   *
+   * @param row     the row number, starting with 0
+   * @param fromCol the column to start from, starting with 0
+   * @return the column of the next filled cell, or -1 if there is none
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+    check(row, fromCol);
+    return shardOf(row).call(storage -> storage.nextFilled(row, fromCol));
+  }
+
+  /**
+   * Returns the number of filled cells in a range, counted by every shard at once over the bands
+   * it owns.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @return the number of cells in the range that are not empty
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  @Override
+  public long countFilled(int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    checkRange(fromRow, fromCol, toRow, toCol);
+    long count = 0;
+    for (double part : onEveryShard(fromRow, toRow, null, (storage, from, to, partial) ->
+        (Double.isNaN(partial) ? 0 : partial) + storage.countFilled(from, fromCol, to, toCol))) {
+      count += (long) part;
+    }
+    return count;
+  }
+
+  /**
+   * Return the width of this spreadsheet, the largest width of any shard.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    int width = 0;
+    for (Shard shard : this.shards) {
+      width = Math.max(width, shard.call(SpreadSheet::getWidth));
+    }
+    return width;
+  }
+
+  /**
+   * Return the height of this spreadsheet, the largest height of any shard.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    int height = 0;
+    for (Shard shard : this.shards) {
+      height = Math.max(height, shard.call(SpreadSheet::getHeight));
+    }
+    return height;
+  }
+
+  /**
+   * Return an estimate of the heap memory used by this spreadsheet: the storage of every shard.
+   * The threads and queues of the shards are not counted.
+   *
+   * @return the estimated memory footprint of this spreadsheet, in bytes
+   */
+  @Override
+  public long memoryFootprint() {
+    long total = MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 2 * MemoryLayout.REFERENCE + 4)
+        + MemoryLayout.array(this.shards.length, MemoryLayout.REFERENCE);
+    for (Shard shard : this.shards) {
+      total += shard.call(SpreadSheet::memoryFootprint);
+    }
+    return total;
+  }
+
+  /**
+   * Copies a range of cells a block of the destination at a time, reporting the destination range
+   * as one change.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is copied to
+   * @param destCol the column that the starting column is copied to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  @Override
+  public void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws IllegalArgumentException {
+    this.quiet.copyRange(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    if (this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(destRow, destCol, destRow + (toRow - fromRow),
+          destCol + (toCol - fromCol)));
+    }
+  }
+
+  /**
+   * Moves a range of cells a block of the destination at a time, then empties the source cells
+   * outside the destination on every shard at once. The source and destination ranges are
+   * reported as one change each.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is moved to
+   * @param destCol the column that the starting column is moved to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  @Override
+  public void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws IllegalArgumentException {
+    this.quiet.moveRange(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    if (this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(fromRow, fromCol, toRow, toCol));
+      this.notifier.publish(new Region(destRow, destCol, destRow + (toRow - fromRow),
+          destCol + (toCol - fromCol)));
+    }
+  }
+
+  /**
+   * Executes the given macro, split over the shards if it is a bulk assignment, a range
+   * assignment, a range copy or move or an aggregate, and otherwise as a transaction that reads
+   * from the shards a block at a time. A macro wrapped by an {@link AsyncMacroExecutor} is split
+   * too if the macro it wraps can be, and is then stopped as soon as a shard sees that it must.
+   *
+   * @param macro the macro to be executed
+   * @throws CancellationException if a wrapped macro was stopped while it was split
+   */
+  @Override
+  public void executeMacro(SpreadSheetMacro macro) throws CancellationException {
+    boolean notify = this.notifier.hasListeners();
+    int height = notify ? getHeight() : 0;
+    int width = notify ? getWidth() : 0;
+    SpreadSheetMacro inner = macro;
+    BooleanSupplier stopped = null;
+    if (macro instanceof AsyncMacroExecutor.MonitoredMacro) {
+      AsyncMacroExecutor.MonitoredMacro monitored = (AsyncMacroExecutor.MonitoredMacro) macro;
+      Thread caller = Thread.currentThread();
+      inner = monitored.getMacro();
+      stopped = () -> monitored.isStopped() || caller.isInterrupted();
+    }
+    if (inner instanceof BulkAssignMacro || inner instanceof RangeMacro
+        || inner instanceof CopyRangeMacro || inner instanceof MoveRangeMacro) {
+      // their ranges were checked when they were made, and their one fill or transfer is split
+      // over the shards
+      inner.execute(stopped == null ? this.quiet : new QuietSheet(stopped));
+    } else if (inner instanceof AggregateMacro || inner instanceof AverageMacro) {
+      AggregateMacro.Function function = inner instanceof AverageMacro
+          ? AggregateMacro.Function.AVERAGE : ((AggregateMacro) inner).getFunction();
+      Region dest = inner.getWriteRegion();
+      set(dest.getFromRow(), dest.getFromCol(),
+          aggregate(function, inner.getReadRegion(), stopped));
+    } else {
+      // the cells are reported together below, so commit them without reporting each one
+      TransactionSheet transaction = new TransactionSheet(new BlockReader());
+      try {
+        macro.execute(transaction);
+        transaction.commit();
+      } catch (RuntimeException | Error e) {
+        transaction.rollback();
+        throw e;
+      }
+    }
+    if (notify) {
+      Region region = macro.getWriteRegion();
+      if (region != null && region.equals(Region.ALL)) {
+        height = Math.max(height, getHeight());
+        width = Math.max(width, getWidth());
+        region = height == 0 || width == 0 ? null : new Region(0, 0, height - 1, width - 1);
+      }
+      this.notifier.publish(region);
+    }
+  }
+
+  /**
+   * Fills a range of cells with a sequence of values, each shard filling the bands it owns at
+   * once. Each band is filled with the index of its own first cell, so the values are exactly
+   * those of filling the range whole.
+   *
+   * @param fromRow    starting row
+   * @param fromCol    starting column
+   * @param toRow      ending row
+   * @param toCol      ending column
+   * @param start      the value of the cell with index 0
+   * @param increment  the difference between the values of consecutive cells
+   * @param firstIndex the index of the top left cell of the range in the sequence
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+      double increment, long firstIndex) throws IllegalArgumentException {
+    this.quiet.fillRange(fromRow, fromCol, toRow, toCol, start, increment, firstIndex);
+    if (this.notifier.hasListeners()) {
+      this.notifier.publish(new Region(fromRow, fromCol, toRow, toCol));
+    }
+  }
+
+  /**
+   * Computes an aggregate of a range, one partial result per shard over the bands it owns.
+   *
+   * @param function the function to compute
+   * @param range    the range
+   * @param stopped  tells whether to stop before the next band, or null to never stop
+   * @return the aggregate
+   * @throws CancellationException if it was stopped
+   */
+  private double aggregate(AggregateMacro.Function function, Region range,
+      BooleanSupplier stopped) throws CancellationException {
+    AggregateMacro.Function partialFunction = function == AggregateMacro.Function.AVERAGE
+        ? AggregateMacro.Function.SUM : function;
+    double identity = function == AggregateMacro.Function.MIN ? Double.POSITIVE_INFINITY
+        : function == AggregateMacro.Function.MAX ? Double.NEGATIVE_INFINITY : 0;
+    double result = identity;
+    for (double part : onEveryShard(range.getFromRow(), range.getToRow(), stopped,
+        (storage, from, to, partial) -> {
+          double band = new AggregateMacro(partialFunction, from, range.getFromCol(), to,
+              range.getToCol(), 0, 0).compute(storage);
+          return Double.isNaN(partial) ? band : merge(partialFunction, partial, band);
+        })) {
+      if (!Double.isNaN(part)) {
+        result = merge(partialFunction, result, part);
+      }
+    }
+    if (function == AggregateMacro.Function.AVERAGE) {
+      long count = ((long) range.getToRow() - range.getFromRow() + 1)
+          * ((long) range.getToCol() - range.getFromCol() + 1);
+      result = result / count;
+    }
+    return result;
+  }
+
+  /**
+   * Combines two partial results of an aggregate.
+   *
+   * @param function SUM, MIN or MAX
+   * @param a        one partial result
+   * @param b        the other partial result
+   * @return the combined result
+   */
+  private static double merge(AggregateMacro.Function function, double a, double b) {
+    switch (function) {
+      case MIN:
+        return Math.min(a, b);
+      case MAX:
+        return Math.max(a, b);
+      default:
+        return a + b;
+    }
+  }
+
+  /**
+   * Copies or moves a range of cells a block of the destination at a time. The blocks are taken in
+   * the order that walks away from the source, as the default range copy does cell by cell, so no
+   * source cell is overwritten before it is read. The writes of a block are handed to its shard
+   * without waiting for them; any later read of the same cells goes to the same shard and so sees
+   * them. If the transfer can be stopped, the writes are instead kept in a transaction on each
+   * shard, and the source is read as it was before the transfer, until every block is done.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row goes to
+   * @param destCol the column that the starting column goes to
+   * @param move    true to empty the source cells outside the destination, false to leave them
+   * @param stopped tells whether to stop before the next block, or null to never stop
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   * @throws CancellationException    if it was stopped
+   */
+  private void transfer(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol,
+      boolean move, BooleanSupplier stopped)
+      throws IllegalArgumentException, CancellationException {
+    Region.checkTransfer(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    int destToRow = destRow + (toRow - fromRow);
+    int destToCol = destCol + (toCol - fromCol);
+    boolean upwards = destRow > fromRow;
+    boolean leftwards = destCol > fromCol;
+    ShardWrites writes = new ShardWrites(stopped != null);
+    try {
+      long row = upwards ? destToRow : destRow;
+      while (row >= destRow && row <= destToRow) {
+        long blockFrom = upwards
+            ? Math.max(Math.max(destRow, bandStart(row)), row - BLOCK_ROWS + 1) : row;
+        long blockTo = upwards
+            ? row : Math.min(Math.min(destToRow, bandEnd(row)), row + BLOCK_ROWS - 1);
+        long col = leftwards ? destToCol : destCol;
+        while (col >= destCol && col <= destToCol) {
+          long chunkFrom = leftwards ? Math.max(destCol, col - TRANSFER_BLOCK_COLS + 1) : col;
+          long chunkTo = leftwards ? col : Math.min(destToCol, col + TRANSFER_BLOCK_COLS - 1);
+          checkStopped(stopped);
+          transferBlock((int) blockFrom, (int) chunkFrom, (int) blockTo, (int) chunkTo,
+              fromRow - destRow, fromCol - destCol, writes);
+          col = leftwards ? chunkFrom - 1 : chunkTo + 1;
+        }
+        row = upwards ? blockFrom - 1 : blockTo + 1;
+      }
+      if (move) {
+        onEveryShard(fromRow, toRow, stopped, (storage, from, to, partial) -> {
+          SpreadSheet target = writes.on(storage);
+          for (int i = from; i <= to; i++) {
+            for (int j = storage.nextFilled(i, fromCol); j >= 0 && j <= toCol;
+                j = j == Integer.MAX_VALUE ? -1 : storage.nextFilled(i, j + 1)) {
+              if (i < destRow || i > destToRow || j < destCol || j > destToCol) {
+                target.clear(i, j);
+              }
+            }
+          }
+          return partial;
+        });
+      }
+      writes.finish(true);
+    } catch (RuntimeException | Error e) {
+      writes.finish(false);
+      throw e;
+    }
+  }
+
+  /**
+   * Copies the cells of one block of a transfer: the filled source cells are read in one task per
+   * band that they lie in, and the block is written in one task by the shard that owns it, setting
+   * each run of filled cells and emptying the cells whose source cell is empty.
+   *
+   * @param fromRow  the first row of the destination block, all of it in one band
+   * @param fromCol  the first column of the destination block
+   * @param toRow    the last row of the destination block
+   * @param toCol    the last column of the destination block
+   * @param rowShift what to add to a destination row to get its source row
+   * @param colShift what to add to a destination column to get its source column
+   * @param writes   where each shard writes the block
+   */
+  private void transferBlock(int fromRow, int fromCol, int toRow, int toCol, long rowShift,
+      long colShift, ShardWrites writes) {
+    int cols = toCol - fromCol + 1;
+    double[] values = new double[(toRow - fromRow + 1) * cols];
+    boolean[] filled = new boolean[values.length];
+    int sourceRow = (int) (fromRow + rowShift);
+    int sourceToRow = (int) (toRow + rowShift);
+    int sourceCol = (int) (fromCol + colShift);
+    for (long band = sourceRow; band <= sourceToRow; band = bandEnd(band) + 1) {
+      int from = (int) band;
+      int to = (int) Math.min(sourceToRow, bandEnd(band));
+      shardOf(from).call(storage -> {
+        readBlock(storage, from, to, sourceCol, cols, values, filled, (from - sourceRow) * cols);
+        return null;
+      });
+    }
+    shardOf(fromRow).send(storage -> {
+      SpreadSheet target = writes.on(storage);
+      for (int i = fromRow; i <= toRow; i++) {
+        int offset = (i - fromRow) * cols;
+        for (int j = storage.nextFilled(i, fromCol); j >= 0 && j <= toCol;
+            j = j == Integer.MAX_VALUE ? -1 : storage.nextFilled(i, j + 1)) {
+          if (!filled[offset + j - fromCol]) {
+            target.clear(i, j);
+          }
+        }
+        for (int k = 0; k < cols; k++) {
+          int run = k;
+          while (k < cols && filled[offset + k]) {
+            k++;
+          }
+          if (k > run) {
+            target.setRow(i, fromCol + run, values, offset + run, k - run);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Reads the filled cells of a block of the storage of a shard into a buffer, row after row.
+   * Empty cells are left as they are in the buffer.
+   *
+   * @param storage the storage of the shard
+   * @param fromRow the first row of the block
+   * @param toRow   the last row of the block
+   * @param fromCol the first column of the block
+   * @param cols    the number of columns of the block
+   * @param values  the buffer for the values of the cells
+   * @param filled  the buffer for whether the cells are filled
+   * @param offset  the position in the buffers of the first cell of the block
+   */
+  private static void readBlock(SpreadSheet storage, int fromRow, int toRow, int fromCol,
+      int cols, double[] values, boolean[] filled, int offset) {
+    long toCol = (long) fromCol + cols - 1;
+    for (int i = fromRow; i <= toRow; i++) {
+      int rowOffset = offset + (i - fromRow) * cols;
+      for (int j = storage.nextFilled(i, fromCol); j >= 0 && j <= toCol;
+          j = j == Integer.MAX_VALUE ? -1 : storage.nextFilled(i, j + 1)) {
+        values[rowOffset + j - fromCol] = storage.get(i, j);
+        filled[rowOffset + j - fromCol] = true;
+      }
+    }
+  }
+
+  /**
+   * Returns the first row of the band that holds a row.
+   *
+   * @param row the row number
+   * @return the first row of its band
+   */
+  private long bandStart(long row) {
+    return row / this.bandHeight * this.bandHeight;
+  }
+
+  /**
+   * Returns the last row of the band that holds a row.
+   *
+   * @param row the row number
+   * @return the last row of its band, at most the last row of the spreadsheet
+   */
+  private long bandEnd(long row) {
+    return Math.min(Integer.MAX_VALUE, bandStart(row) + this.bandHeight - 1);
+  }
+
+  /**
+   * Runs a task on every shard at once, over each band of a row range that the shard owns, and
+   * waits for all of them. The task folds the bands of a shard into one partial result, starting
+   * from NaN.
+   *
+   * @param fromRow the first row of the range
+   * @param toRow   the last row of the range
+   * @param stopped tells whether to stop before the next band, or null to never stop
+   * @param task    the task to run for each band
+   * @return the partial result of every shard that owns a band of the range
+   * @throws CancellationException if a shard was stopped
+   */
+  private List<Double> onEveryShard(int fromRow, int toRow, BooleanSupplier stopped,
+      BandTask task) throws CancellationException {
+    List<List<int[]>> bands = new ArrayList<List<int[]>>();
+    for (int k = 0; k < this.shards.length; k++) {
+      bands.add(new ArrayList<int[]>());
+    }
+    for (long band = fromRow / this.bandHeight; band <= toRow / this.bandHeight; band++) {
+      int from = (int) Math.max(fromRow, band * this.bandHeight);
+      int to = (int) Math.min(toRow, band * this.bandHeight + this.bandHeight - 1);
+      bands.get((int) (band % this.shards.length)).add(new int[] {from, to});
+    }
+    List<Future<Double>> futures = new ArrayList<Future<Double>>();
+    for (int k = 0; k < this.shards.length; k++) {
+      List<int[]> owned = bands.get(k);
+      if (!owned.isEmpty()) {
+        futures.add(this.shards[k].submit(storage -> {
+          double partial = Double.NaN;
+          for (int[] band : owned) {
+            checkStopped(stopped);
+            partial = task.run(storage, band[0], band[1], partial);
+          }
+          return partial;
+        }));
+      }
+    }
+    List<Double> results = new ArrayList<Double>();
+    for (Future<Double> future : futures) {
+      results.add(await(future));
+    }
+    return results;
+  }
+
+  /**
+   * Registers a listener to be told which regions of this spreadsheet change.
+   *
+   * @param listener the listener to add
+   * @throws IllegalArgumentException if the listener is null
+   */
+  @Override
+  public void addChangeListener(SheetChangeListener listener) throws IllegalArgumentException {
+    this.notifier.addListener(listener);
+  }
+
+  /**
+   * Stops telling a listener about changes to this spreadsheet.
+   *
+   * @param listener the listener to remove
+   */
+  @Override
+  public void removeChangeListener(SheetChangeListener listener) {
+    this.notifier.removeListener(listener);
+  }
+
+  /**
+   * Stops the threads of the shards once they have finished the tasks already handed to them.
+   */
+  @Override
+  public void close() {
+    for (Shard shard : this.shards) {
+      shard.executor.shutdown();
+    }
+  }
+
+  /**
+   * Returns the shard that owns a row.
+   *
+   * @param row the row number
+   * @return the shard
+   */
+  private Shard shardOf(int row) {
+    return this.shards[(row / this.bandHeight) % this.shards.length];
+  }
+
+  /**
+   * Check that a cell position is not negative.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  private static void check(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+  }
+
+  /**
+   * Check that a range is valid.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  private static void checkRange(int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    if ((fromRow < 0) || (fromCol < 0) || (toRow < 0) || (toCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((fromRow > toRow) || (fromCol > toCol)) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+  }
+
+  /**
+   * Stop an operation if it has been told to.
+   *
+   * @param stopped tells whether to stop, or null to never stop
+   * @throws CancellationException if the operation must stop
+   */
+  private static void checkStopped(BooleanSupplier stopped) throws CancellationException {
+    if (stopped != null && stopped.getAsBoolean()) {
+      throw new CancellationException("Macro was cancelled");
+    }
+  }
+
+  /**
+   * Waits for the result of a task on a shard, rethrowing what the task threw.
+   *
+   * @param future the task
+   * @param <T>    the type of the result
+   * @return the result
+   * @throws IllegalStateException if the thread is interrupted while waiting
+   */
+  private static <T> T await(Future<T> future) throws IllegalStateException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a shard");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Something to be done to the storage of a shard, on the shard's thread.
+   *
+   * @param <T> the type of the result
+   */
+  private interface ShardTask<T> {
+
+    /**
+     * Does the task.
+     *
+     * @param storage the storage of the shard
+     * @return the result
+     */
+    T run(SpreadSheet storage);
+  }
+
+  /**
+   * Something to be done to one band of rows of a shard, folding a partial result.
+   */
+  private interface BandTask {
+
+    /**
+     * Does the task for one band.
+     *
+     * @param storage the storage of the shard
+     * @param fromRow the first row of the band
+     * @param toRow   the last row of the band
+     * @param partial the result so far for the shard, or NaN for its first band
+     * @return the result including this band
+     */
+    double run(SpreadSheet storage, int fromRow, int toRow, double partial);
+  }
+
+  /**
+   * The cells of this spreadsheet as a spreadsheet that does not report its writes. Writes are
+   * routed to their shards just as by this spreadsheet, and reads are answered by it. A range
+   * fill, copy or move may be given a test of whether to stop, in which case it is undone on
+   * every shard if it stops or fails.
+   */
+  private class QuietSheet implements SpreadSheet {
+
+    private final BooleanSupplier stopped;
+
+    /**
+     * Create the cells of this spreadsheet as a spreadsheet whose writes never stop.
+     */
+    QuietSheet() {
+      this(null);
+    }
+
+    /**
+     * Create the cells of this spreadsheet as a spreadsheet whose range writes stop once the
+     * given test says so.
+     *
+     * @param stopped tells whether to stop, or null to never stop
+     */
+    QuietSheet(BooleanSupplier stopped) {
+      this.stopped = stopped;
+    }
+
+    /**
+     * Returns the value of the specified cell.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return the value of the cell, or 0 if it is empty
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public double get(int row, int col) throws IllegalArgumentException {
+      return ShardedSpreadSheet.this.get(row, col);
+    }
+
+    /**
+     * Sets the value of the specified cell, without waiting for its shard.
+     *
+     * @param row   the row number of the cell, starting with 0
+     * @param col   the column number of the cell, starting at 0
+     * @param value the value that this cell must be set to
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void set(int row, int col, double value) throws IllegalArgumentException {
+      check(row, col);
+      shardOf(row).send(storage -> storage.set(row, col, value));
+    }
+
+    /**
+     * Empties the specified cell, without waiting for its shard.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting at 0
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void clear(int row, int col) throws IllegalArgumentException {
+      check(row, col);
+      shardOf(row).send(storage -> storage.clear(row, col));
+    }
+
+    /**
+     * Returns whether the specified cell is empty.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return true if the cell is empty, false otherwise
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+      return ShardedSpreadSheet.this.isEmpty(row, col);
+    }
+
+    /**
+     * Return the width of the spreadsheet.
+     *
+     * @return the width of the spreadsheet
+     */
+    @Override
+    public int getWidth() {
+      return ShardedSpreadSheet.this.getWidth();
+    }
+
+    /**
+     * Return the height of the spreadsheet.
+     *
+     * @return the height of the spreadsheet
+     */
+    @Override
+    public int getHeight() {
+      return ShardedSpreadSheet.this.getHeight();
+    }
+
+    /**
+     * Return an estimate of the heap memory used by the spreadsheet.
+     *
+     * @return the estimated memory footprint, in bytes
+     */
+    @Override
+    public long memoryFootprint() {
+      return ShardedSpreadSheet.this.memoryFootprint();
+    }
+
+    /**
+     * Copies the values of a run of cells in one row into the given buffer, in one task on the
+     * shard that owns the row.
+     *
+     * @param row     the row number of the cells, starting with 0
+     * @param fromCol the first column to copy, starting with 0
+     * @param toCol   the last column to copy (inclusive)
+     * @param dest    the buffer to copy the values into
+     * @param offset  the position in the buffer of the value of the first column
+     * @throws IllegalArgumentException if the row or columns are negative, the columns are out of
+     *                                  order or the buffer is too small
+     */
+    @Override
+    public void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+        throws IllegalArgumentException {
+      ShardedSpreadSheet.this.getRow(row, fromCol, toCol, dest, offset);
+    }
+
+    /**
+     * Returns the column of the first filled cell of a row at or after the given column.
+     *
+     * @param row     the row number, starting with 0
+     * @param fromCol the column to start from, starting with 0
+     * @return the column of the next filled cell, or -1 if there is none
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+      return ShardedSpreadSheet.this.nextFilled(row, fromCol);
+    }
+
+    /**
+     * Fills a range of cells with a sequence of values, each shard filling the bands it owns at
+     * once.
+     *
+     * @param fromRow    starting row
+     * @param fromCol    starting column
+     * @param toRow      ending row
+     * @param toCol      ending column
+     * @param start      the value of the cell with index 0
+     * @param increment  the difference between the values of consecutive cells
+     * @param firstIndex the index of the top left cell of the range in the sequence
+     * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+     */
+    @Override
+    public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+        double increment, long firstIndex) throws IllegalArgumentException {
+      checkRange(fromRow, fromCol, toRow, toCol);
+      long width = (long) toCol - fromCol + 1;
+      ShardWrites writes = new ShardWrites(this.stopped != null);
+      try {
+        onEveryShard(fromRow, toRow, this.stopped, (storage, from, to, partial) -> {
+          writes.on(storage).fillRange(from, fromCol, to, toCol, start, increment,
+              firstIndex + (from - fromRow) * width);
+          return partial;
+        });
+        writes.finish(true);
+      } catch (RuntimeException | Error e) {
+        writes.finish(false);
+        throw e;
+      }
+    }
+
+    /**
+     * Copies a range of cells a block of the destination at a time.
+     *
+     * @param fromRow starting row of the source
+     * @param fromCol starting column of the source
+     * @param toRow   ending row of the source
+     * @param toCol   ending column of the source
+     * @param destRow the row that the starting row is copied to
+     * @param destCol the column that the starting column is copied to
+     * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+     *                                  destination range does not fit in the spreadsheet
+     */
+    @Override
+    public void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+        int destCol) throws IllegalArgumentException {
+      transfer(fromRow, fromCol, toRow, toCol, destRow, destCol, false, this.stopped);
+    }
+
+    /**
+     * Moves a range of cells a block of the destination at a time.
+     *
+     * @param fromRow starting row of the source
+     * @param fromCol starting column of the source
+     * @param toRow   ending row of the source
+     * @param toCol   ending column of the source
+     * @param destRow the row that the starting row is moved to
+     * @param destCol the column that the starting column is moved to
+     * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+     *                                  destination range does not fit in the spreadsheet
+     */
+    @Override
+    public void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+        int destCol) throws IllegalArgumentException {
+      transfer(fromRow, fromCol, toRow, toCol, destRow, destCol, true, this.stopped);
+    }
+
+    /**
+     * Returns the number of filled cells in a range, counted by every shard at once.
+     *
+     * @param fromRow starting row
+     * @param fromCol starting column
+     * @param toRow   ending row
+     * @param toCol   ending column
+     * @return the number of cells in the range that are not empty
+     * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+     */
+    @Override
+    public long countFilled(int fromRow, int fromCol, int toRow, int toCol)
+        throws IllegalArgumentException {
+      return ShardedSpreadSheet.this.countFilled(fromRow, fromCol, toRow, toCol);
+    }
+  }
+
+  /**
+   * The spreadsheet that a transaction runs on. A read fetches a block of up to
+   * {@link #BLOCK_ROWS} rows of one band by {@link #READ_BLOCK_COLS} columns from the shard that
+   * owns it, in one task, and later reads in the block are answered from it, so a macro does not
+   * wait for a shard for every cell it reads. A write drops the block. The block does not see
+   * writes made by other threads while it is held, just as a macro run this way is not atomic with
+   * respect to them.
+   */
+  private final class BlockReader extends QuietSheet {
+
+    private final double[] values = new double[BLOCK_ROWS * READ_BLOCK_COLS];
+    private final boolean[] filled = new boolean[BLOCK_ROWS * READ_BLOCK_COLS];
+    private boolean held;
+    private int blockRow;
+    private int blockCol;
+    private int blockRows;
+
+    /**
+     * Returns the value of the specified cell, from the block that holds it.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return the value of the cell, or 0 if it is empty
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public double get(int row, int col) throws IllegalArgumentException {
+      check(row, col);
+      return this.values[locate(row, col)];
+    }
+
+    /**
+     * Returns whether the specified cell is empty, from the block that holds it.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return true if the cell is empty, false otherwise
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+      check(row, col);
+      return !this.filled[locate(row, col)];
+    }
+
+    /**
+     * Returns the column of the first filled cell of a row at or after the given column, looking
+     * first in the block that holds the given cell and then asking the shard about the rest of
+     * the row.
+     *
+     * @param row     the row number, starting with 0
+     * @param fromCol the column to start from, starting with 0
+     * @return the column of the next filled cell, or -1 if there is none
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+      check(row, fromCol);
+      int rowStart = locate(row, fromCol) - (fromCol - this.blockCol);
+      for (int k = fromCol - this.blockCol; k < READ_BLOCK_COLS; k++) {
+        if (this.filled[rowStart + k]) {
+          return this.blockCol + k;
+        }
+      }
+      long next = (long) this.blockCol + READ_BLOCK_COLS;
+      return next > Integer.MAX_VALUE ? -1 : super.nextFilled(row, (int) next);
+    }
+
+    /**
+     * Sets the value of the specified cell, dropping the block.
+     *
+     * @param row   the row number of the cell, starting with 0
+     * @param col   the column number of the cell, starting at 0
+     * @param value the value that this cell must be set to
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void set(int row, int col, double value) throws IllegalArgumentException {
+      this.held = false;
+      super.set(row, col, value);
+    }
+
+    /**
+     * Empties the specified cell, dropping the block.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting at 0
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void clear(int row, int col) throws IllegalArgumentException {
+      this.held = false;
+      super.clear(row, col);
+    }
+
+    /**
+     * Fills a range of cells with a sequence of values, dropping the block.
+     *
+     * @param fromRow    starting row
+     * @param fromCol    starting column
+     * @param toRow      ending row
+     * @param toCol      ending column
+     * @param start      the value of the cell with index 0
+     * @param increment  the difference between the values of consecutive cells
+     * @param firstIndex the index of the top left cell of the range in the sequence
+     * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+     */
+    @Override
+    public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+        double increment, long firstIndex) throws IllegalArgumentException {
+      this.held = false;
+      super.fillRange(fromRow, fromCol, toRow, toCol, start, increment, firstIndex);
+    }
+
+    /**
+     * Copies a range of cells, dropping the block.
+     *
+     * @param fromRow starting row of the source
+     * @param fromCol starting column of the source
+     * @param toRow   ending row of the source
+     * @param toCol   ending column of the source
+     * @param destRow the row that the starting row is copied to
+     * @param destCol the column that the starting column is copied to
+     * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+     *                                  destination range does not fit in the spreadsheet
+     */
+    @Override
+    public void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+        int destCol) throws IllegalArgumentException {
+      this.held = false;
+      super.copyRange(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    }
+
+    /**
+     * Moves a range of cells, dropping the block.
+     *
+     * @param fromRow starting row of the source
+     * @param fromCol starting column of the source
+     * @param toRow   ending row of the source
+     * @param toCol   ending column of the source
+     * @param destRow the row that the starting row is moved to
+     * @param destCol the column that the starting column is moved to
+     * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+     *                                  destination range does not fit in the spreadsheet
+     */
+    @Override
+    public void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+        int destCol) throws IllegalArgumentException {
+      this.held = false;
+      super.moveRange(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    }
+
+    /**
+     * Returns the position of a cell in the block, fetching the block that holds the cell first
+     * if it is not the one held.
+     *
+     * @param row the row number of the cell
+     * @param col the column number of the cell
+     * @return the position of the cell in the buffers of the block
+     */
+    private int locate(int row, int col) {
+      if (!this.held || row < this.blockRow || row - this.blockRow >= this.blockRows
+          || col < this.blockCol || col - this.blockCol >= READ_BLOCK_COLS) {
+        int from = (int) (row - (row - bandStart(row)) % BLOCK_ROWS);
+        int to = (int) Math.min(from + BLOCK_ROWS - 1L, bandEnd(row));
+        int fromCol = col - col % READ_BLOCK_COLS;
+        Arrays.fill(this.values, 0);
+        Arrays.fill(this.filled, false);
+        shardOf(row).call(storage -> {
+          readBlock(storage, from, to, fromCol, READ_BLOCK_COLS, this.values, this.filled, 0);
+          return null;
+        });
+        this.blockRow = from;
+        this.blockCol = fromCol;
+        this.blockRows = to - from + 1;
+        this.held = true;
+      }
+      return (row - this.blockRow) * READ_BLOCK_COLS + (col - this.blockCol);
+    }
+  }
+
+  /**
+   * Where the shards write the cells of one split range write. Unless the write is undoable, each
+   * shard writes straight to its storage. If it is, each shard writes to a transaction over its
+   * storage, made on the shard's thread the first time it writes and only touched by that thread,
+   * so that the write can be committed or rolled back on every shard once all of it is done.
+   */
+  private final class ShardWrites {
+
+    private final TransactionSheet[] transactions;
+
+    /**
+     * Create the writes of one split range write.
+     *
+     * @param undoable true to keep the writes in a transaction on each shard
+     */
+    ShardWrites(boolean undoable) {
+      this.transactions = undoable ? new TransactionSheet[shards.length] : null;
+    }
+
+    /**
+     * Returns the spreadsheet that a shard writes to. Must be called on the shard's thread.
+     *
+     * @param storage the storage of the shard
+     * @return the storage itself, or the transaction of the shard over it
+     */
+    SpreadSheet on(SpreadSheet storage) {
+      if (this.transactions == null) {
+        return storage;
+      }
+      int k = 0;
+      while (shards[k].storage != storage) {
+        k++;
+      }
+      if (this.transactions[k] == null) {
+        this.transactions[k] = new TransactionSheet(storage);
+      }
+      return this.transactions[k];
+    }
+
+    /**
+     * Commit or roll back the transaction of every shard that wrote, and wait for all of them.
+     *
+     * @param commit true to commit, false to roll back
+     */
+    void finish(boolean commit) {
+      if (this.transactions == null) {
+        return;
+      }
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int k = 0; k < shards.length; k++) {
+        int shard = k;
+        futures.add(shards[k].submit(storage -> {
+          TransactionSheet transaction = this.transactions[shard];
+          if (transaction != null && commit) {
+            transaction.commit();
+          } else if (transaction != null) {
+            transaction.rollback();
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        await(future);
+      }
+    }
+  }
+
+  /**
+   * A shard: its storage and the single thread that owns it. The queue of the thread is bounded,
+   * and a writer that finds it full waits for room instead of failing.
+   */
+  private static final class Shard {
+
+    private final SpreadSheet storage;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create a shard.
+     *
+     * @param index the number of the shard, used to name its thread
+     */
+    private Shard(int index) {
+      this.storage = new SparseSpreadSheet();
+      this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), task -> {
+            Thread thread = new Thread(task, "spreadsheet-shard-" + index);
+            thread.setDaemon(true);
+            return thread;
+          }, (task, executor) -> {
+            if (executor.isShutdown()) {
+              throw new RejectedExecutionException("Spreadsheet is closed");
+            }
+            try {
+              executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new RejectedExecutionException("Interrupted while waiting for a shard");
+            }
+          });
+    }
+
+    /**
+     * Hand a task to the shard's thread.
+     *
+     * @param task the task
+     * @param <T>  the type of the result
+     * @return the pending result
+     */
+    private <T> Future<T> submit(ShardTask<T> task) {
+      Callable<T> callable = () -> task.run(this.storage);
+      return this.executor.submit(callable);
+    }
+
+    /**
+     * Run a task on the shard's thread and wait for its result.
+     *
+     * @param task the task
+     * @param <T>  the type of the result
+     * @return the result
+     */
+    private <T> T call(ShardTask<T> task) {
+      return await(submit(task));
+    }
+
+    /**
+     * Hand a write to the shard's thread without waiting for it.
+     *
+     * @param write the write
+     */
+    private void send(Consumer<SpreadSheet> write) {
+      this.executor.execute(() -> write.accept(this.storage));
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package spreadsheet;
+
+import java.util.List;
+
+/**
+ * Represents an observer of the changes made to a {@link MacroSpreadSheet}.
+ */
+public interface SheetChangeListener {
+
+  /**
+   * Called with the regions of cells that changed since the previous call. Nearby changes are
+   * coalesced into larger regions, so a region may also hold cells that did not change. This is
+   * called on a notification thread, never on the thread that made the change.
+   *
+   * @param regions the regions that changed, which do not contain one another
+   */
+  void cellsChanged(List<Region> regions);
+
+}
@@ -0,0 +1,217 @@
+package spreadsheet;
+//sort from-row-num from-col-num to-row-num to-col-num key-col-num asc|desc.
+// This will sort the rows of a range of cells by the values in the key column, carrying the other
+// columns of each row along with it. Empty key cells sort last in either direction. For example
+// sort A 0 J 2 1 asc sorts the rows A to J of columns 0 to 2 by column 1, smallest first.
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class represents the SortMacro class that implements the SpreadSheetMacro interface. This
+ * class represents a macro that sorts the rows of a range of cells by one of its columns.
+ *
+ * <p>The range is extracted into primitive buffers with {@link SpreadSheet#getRow}, sorted with
+ * {@link Arrays#parallelSort}, and written back row by row with {@link SpreadSheet#setRow}. Empty
+ * cells stay empty: they move with their row, and an empty key sorts after every value.
+ */
+public class SortMacro implements SpreadSheetMacro {
+
+  private final int fromRow;
+  private final int fromCol;
+  private final int toRow;
+  private final int toCol;
+  private final int keyCol;
+  private final boolean ascending;
+
+  /**
+   * Constructs a new SortMacro object that takes the start and end cells, the key column and the
+   * direction.
+   *
+   * @param fromRow   starting row
+   * @param fromCol   starting column
+   * @param toRow     ending row
+   * @param toCol     ending column
+   * @param keyCol    the column to sort by, which must lie inside the range
+   * @param ascending true to put the smallest key first, false to put the largest key first
+   */
+  public SortMacro(int fromRow, int fromCol, int toRow, int toCol, int keyCol,
+      boolean ascending) {
+    // check for all valid cells
+    if (fromRow < 0 || fromCol < 0 || toRow < 0 || toCol < 0 || keyCol < 0) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    // check for valid range
+    if (fromRow > toRow || fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    if (keyCol < fromCol || keyCol > toCol) {
+      throw new IllegalArgumentException("Key column must lie inside the range");
+    }
+    this.fromRow = fromRow;
+    this.fromCol = fromCol;
+    this.toRow = toRow;
+    this.toCol = toCol;
+    this.keyCol = keyCol;
+    this.ascending = ascending;
+  }
+
+  /**
+   * Sorts the rows of the range of cells of the given spreadsheet.
+   *
+   * @param sheet the spreadsheet
+   */
+  @Override
+  public void execute(SpreadSheet sheet) {
+    if (this.fromCol == this.toCol) {
+      sortColumn(sheet);
+    } else {
+      sortRows(sheet);
+    }
+  }
+
+  /**
+   * Sorts a range that is a single column. The non-empty values are gathered into one primitive
+   * array, sorted, and written to the top of the range, and the cells below them are emptied.
+   *
+   * @param sheet the spreadsheet
+   */
+  private void sortColumn(SpreadSheet sheet) {
+    int height = this.toRow - this.fromRow + 1;
+    double[] values = new double[height];
+    int count = 0;
+    for (int i = this.fromRow; i <= this.toRow; i++) {
+      double value = sheet.get(i, this.fromCol);
+      // empty cells read as 0, so only a 0 needs to be checked for emptiness
+      if (value != 0 || !sheet.isEmpty(i, this.fromCol)) {
+        values[count++] = value;
+      }
+    }
+    Arrays.parallelSort(values, 0, count);
+    if (!this.ascending) {
+      for (int k = 0; k < count / 2; k++) {
+        double swap = values[k];
+        values[k] = values[count - 1 - k];
+        values[count - 1 - k] = swap;
+      }
+    }
+    for (int k = 0; k < count; k++) {
+      sheet.set(this.fromRow + k, this.fromCol, values[k]);
+    }
+    for (int i = this.fromRow + count; i <= this.toRow; i++) {
+      sheet.clear(i, this.fromCol);
+    }
+  }
+
+  /**
+   * Sorts a range of several columns. Each row is read into its own primitive buffer, and the
+   * buffers are sorted by their key with a stable parallel sort.
+   *
+   * @param sheet the spreadsheet
+   */
+  private void sortRows(SpreadSheet sheet) {
+    int width = this.toCol - this.fromCol + 1;
+    int key = this.keyCol - this.fromCol;
+    Row[] rows = new Row[this.toRow - this.fromRow + 1];
+    for (int i = this.fromRow; i <= this.toRow; i++) {
+      double[] values = new double[width];
+      sheet.getRow(i, this.fromCol, this.toCol, values, 0);
+      boolean[] empty = null;
+      for (int j = 0; j < width; j++) {
+        // empty cells read as 0, so only a 0 needs to be checked for emptiness
+        if (values[j] == 0 && sheet.isEmpty(i, this.fromCol + j)) {
+          if (empty == null) {
+            empty = new boolean[width];
+          }
+          empty[j] = true;
+        }
+      }
+      rows[i - this.fromRow] = new Row(values, empty);
+    }
+
+    Comparator<Row> byKey = (a, b) -> Double.compare(a.values[key], b.values[key]);
+    if (!this.ascending) {
+      byKey = byKey.reversed();
+    }
+    Comparator<Row> order = Comparator.comparing((Row row) -> row.isEmpty(key))
+        .thenComparing(byKey);
+    Arrays.parallelSort(rows, order);
+
+    for (int k = 0; k < rows.length; k++) {
+      Row row = rows[k];
+      int i = this.fromRow + k;
+      if (row.empty == null) {
+        sheet.setRow(i, this.fromCol, row.values, 0, width);
+        continue;
+      }
+      for (int j = 0; j < width; j++) {
+        if (row.empty[j]) {
+          sheet.clear(i, this.fromCol + j);
+        } else {
+          sheet.set(i, this.fromCol + j, row.values[j]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the range of cells that this macro reads.
+   *
+   * @return the region read
+   */
+  @Override
+  public Region getReadRegion() {
+    return new Region(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
+
+  /**
+   * Returns the range of cells that this macro rearranges.
+   *
+   * @return the region written
+   */
+  @Override
+  public Region getWriteRegion() {
+    return new Region(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
+
+  /**
+   * Returns PARTIAL, since the new values depend on the old ones and some cells may be emptied.
+   *
+   * @return the kind of write
+   */
+  @Override
+  public WriteKind getWriteKind() {
+    return WriteKind.PARTIAL;
+  }
+
+  /**
+   * One row of the range being sorted: its values, and which of them were empty.
+   */
+  private static final class Row {
+
+    private final double[] values;
+    // null when no cell of the row is empty, which is the common case
+    private final boolean[] empty;
+
+    /**
+     * Create a row.
+     *
+     * @param values the values of the row, with empty cells as 0
+     * @param empty  which cells are empty, or null if none are
+     */
+    private Row(double[] values, boolean[] empty) {
+      this.values = values;
+      this.empty = empty;
+    }
+
+    /**
+     * Check if the given cell of this row is empty.
+     *
+     * @param index the position of the cell in the row
+     * @return true if the cell is empty, false otherwise
+     */
+    private boolean isEmpty(int index) {
+      return this.empty != null && this.empty[index];
+    }
+  }
+}
@@ -1,24 +1,33 @@
 package spreadsheet;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 
 /**
  * This class represents a sparse spreadsheet. A sparse spreadsheet is a spreadsheet with a large
- * number of empty cells. It represents this efficiently using a hash map.
+ * number of empty cells. It represents this efficiently using a hash map. Alongside the map it
+ * keeps an {@link OccupancyIndex} of the filled cells, which answers emptiness, counts and
+ * searches for filled cells without looking up the values.
  */
 public class SparseSpreadSheet implements SpreadSheet {
 
   private final Map<CellPosition, Double> sheet;
+  private final OccupancyIndex filled;
   private int width;
   private int height;
+  // set when a cell on the edge was cleared, so the width and height must be recomputed
+  private boolean dimensionsStale;
 
   /**
    * Create an empty spreadsheet.
    */
   public SparseSpreadSheet() {
     this.sheet = new HashMap<CellPosition, Double>();
+    this.filled = new OccupancyIndex();
     this.width = 0;
     this.height = 0;
   }
@@ -36,7 +45,10 @@ public class SparseSpreadSheet implements SpreadSheet {
     if ((row < 0) || (col < 0)) {
       throw new IllegalArgumentException("Row or column cannot be negative");
     }
-    return this.sheet.getOrDefault(new CellPosition(row, col), Double.valueOf(0.0));
+    if (!this.filled.contains(row, col)) {
+      return 0;
+    }
+    return this.sheet.get(new CellPosition(row, col));
   }
 
   /**
@@ -53,6 +65,7 @@ public class SparseSpreadSheet implements SpreadSheet {
       throw new IllegalArgumentException("Row or column cannot be negative");
     }
     this.sheet.put(new CellPosition(row, col), Double.valueOf(value));
+    this.filled.add(row, col);
     if ((row + 1) > height) {
       height = row + 1;
     }
@@ -62,6 +75,195 @@ public class SparseSpreadSheet implements SpreadSheet {
     }
   }
 
+  /**
+   * Empties the cell at the specified row and column. If the cell was on the bottom or right edge
+   * of the spreadsheet, the height and width are recomputed the next time they are asked for.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting at 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void clear(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (!this.filled.remove(row, col)) {
+      return;
+    }
+    this.sheet.remove(new CellPosition(row, col));
+    if ((row + 1 == height) || (col + 1 == width)) {
+      this.dimensionsStale = true;
+    }
+  }
+
+  /**
+   * Sets a run of cells in one row. The arguments are checked and the width and height updated
+   * once for the whole run rather than once per cell.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the column of the first cell to set, starting with 0
+   * @param values  the buffer holding the values
+   * @param offset  the position in the buffer of the value of the first cell
+   * @param length  the number of cells to set
+   * @throws IllegalArgumentException if the row or column are negative or the buffer does not
+   *                                  hold that many values
+   */
+  @Override
+  public void setRow(int row, int fromCol, double[] values, int offset, int length)
+      throws IllegalArgumentException {
+    if ((row < 0) || (fromCol < 0) || ((long) fromCol + length - 1 > Integer.MAX_VALUE)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((offset < 0) || (length < 0) || (values.length - offset < length)) {
+      throw new IllegalArgumentException("Buffer is too small");
+    }
+    if (length == 0) {
+      return;
+    }
+    for (int j = 0; j < length; j++) {
+      this.sheet.put(new CellPosition(row, fromCol + j), Double.valueOf(values[offset + j]));
+      this.filled.add(row, fromCol + j);
+    }
+    if ((row + 1) > height) {
+      height = row + 1;
+    }
+
+    if ((fromCol + length) > width) {
+      width = fromCol + length;
+    }
+  }
+
+  /**
+   * Copies a range of cells by re-keying the non-empty cells of the source rather than copying
+   * every cell. The source cells are gathered first, so the source and destination may overlap.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is copied to
+   * @param destCol the column that the starting column is copied to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  @Override
+  public void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws IllegalArgumentException {
+    transfer(fromRow, fromCol, toRow, toCol, destRow, destCol, false);
+  }
+
+  /**
+   * Moves a range of cells by re-keying the non-empty cells of the source. The boxed values are
+   * reused, so nothing is allocated for them.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is moved to
+   * @param destCol the column that the starting column is moved to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  @Override
+  public void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws IllegalArgumentException {
+    transfer(fromRow, fromCol, toRow, toCol, destRow, destCol, true);
+  }
+
+  /**
+   * Copies or moves a range of cells. The non-empty source cells are gathered, removed if moving,
+   * then the destination range is emptied and the gathered cells are put at their new positions.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row goes to
+   * @param destCol the column that the starting column goes to
+   * @param move    true to empty the source cells, false to leave them
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  private void transfer(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol,
+      boolean move) throws IllegalArgumentException {
+    Region.checkTransfer(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    List<CellPosition> positions = new ArrayList<CellPosition>();
+    List<Double> values = new ArrayList<Double>();
+    if ((long) toRow - fromRow + 1 < this.sheet.size()) {
+      // the index skips straight to the filled cells of each row
+      for (int i = fromRow; i <= toRow; i++) {
+        for (int j = this.filled.next(i, fromCol); j >= 0 && j <= toCol;
+            j = j == Integer.MAX_VALUE ? -1 : this.filled.next(i, j + 1)) {
+          CellPosition position = new CellPosition(i, j);
+          positions.add(position);
+          values.add(this.sheet.get(position));
+        }
+      }
+    } else {
+      for (Map.Entry<CellPosition, Double> entry : this.sheet.entrySet()) {
+        CellPosition position = entry.getKey();
+        if (position.row >= fromRow && position.row <= toRow && position.column >= fromCol
+            && position.column <= toCol) {
+          positions.add(position);
+          values.add(entry.getValue());
+        }
+      }
+    }
+    if (move) {
+      for (CellPosition position : positions) {
+        this.sheet.remove(position);
+        this.filled.remove(position.row, position.column);
+      }
+    }
+    clearRange(destRow, destCol, destRow + (toRow - fromRow), destCol + (toCol - fromCol));
+    for (int k = 0; k < positions.size(); k++) {
+      CellPosition position = positions.get(k);
+      int row = destRow + (position.row - fromRow);
+      int col = destCol + (position.column - fromCol);
+      this.sheet.put(new CellPosition(row, col), values.get(k));
+      this.filled.add(row, col);
+      this.height = Math.max(this.height, row + 1);
+      this.width = Math.max(this.width, col + 1);
+    }
+    if (move) {
+      // the source may have held the cells on the edge
+      this.dimensionsStale = true;
+    }
+  }
+
+  /**
+   * Empties every cell of a range, visiting whichever is smaller: the filled cells of the rows of
+   * the range, found through the index, or all the stored cells.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   */
+  private void clearRange(int fromRow, int fromCol, int toRow, int toCol) {
+    if ((long) toRow - fromRow + 1 < this.sheet.size()) {
+      for (int i = fromRow; i <= toRow; i++) {
+        for (int j = this.filled.next(i, fromCol); j >= 0 && j <= toCol;
+            j = this.filled.next(i, j)) {
+          clear(i, j);
+        }
+      }
+      return;
+    }
+    Iterator<CellPosition> positions = this.sheet.keySet().iterator();
+    while (positions.hasNext()) {
+      CellPosition position = positions.next();
+      if (position.row >= fromRow && position.row <= toRow && position.column >= fromCol
+          && position.column <= toCol) {
+        positions.remove();
+        this.filled.remove(position.row, position.column);
+        this.dimensionsStale = true;
+      }
+    }
+  }
+
   /**
    * Returns whether the specified cell is empty.
    *
@@ -75,7 +277,47 @@ public class SparseSpreadSheet implements SpreadSheet {
     if ((row < 0) || (col < 0)) {
       throw new IllegalArgumentException("Row or column cannot be negative");
     }
-    return !this.sheet.containsKey(new CellPosition(row, col));
+    return !this.filled.contains(row, col);
+  }
+
+  /**
+   * Returns the number of filled cells in a range, counted by the occupancy index a row at a time
+   * rather than cell by cell.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @return the number of cells in the range that are not empty
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  @Override
+  public long countFilled(int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    if ((fromRow < 0) || (fromCol < 0) || (toRow < 0) || (toCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((fromRow > toRow) || (fromCol > toCol)) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    return this.filled.count(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Returns the column of the first filled cell of a row at or after the given column, found by
+   * the occupancy index without visiting the empty cells in between.
+   *
+   * @param row     the row number, starting with 0
+   * @param fromCol the column to start from, starting with 0
+   * @return the column of the next filled cell, or -1 if there is none
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+    if ((row < 0) || (fromCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    return this.filled.next(row, fromCol);
   }
 
   /**
@@ -85,6 +327,7 @@ public class SparseSpreadSheet implements SpreadSheet {
    */
   @Override
   public int getWidth() {
+    updateDimensions();
     return this.width;
   }
 
@@ -95,9 +338,66 @@ public class SparseSpreadSheet implements SpreadSheet {
    */
   @Override
   public int getHeight() {
+    updateDimensions();
     return this.height;
   }
 
+  /**
+   * Recompute the width and height from the remaining cells if a cell on the edge was cleared.
+   */
+  private void updateDimensions() {
+    if (!this.dimensionsStale) {
+      return;
+    }
+    int newWidth = 0;
+    int newHeight = 0;
+    for (CellPosition position : this.sheet.keySet()) {
+      newHeight = Math.max(newHeight, position.row + 1);
+      newWidth = Math.max(newWidth, position.column + 1);
+    }
+    this.width = newWidth;
+    this.height = newHeight;
+    this.dimensionsStale = false;
+  }
+
+  /**
+   * Return an estimate of the heap memory used by this spreadsheet. Every cell costs a hash map
+   * entry, a CellPosition key and a boxed Double value, plus its share of the hash table, and
+   * the occupancy index is added on top.
+   *
+   * @return the estimated memory footprint of this spreadsheet, in bytes
+   */
+  @Override
+  public long memoryFootprint() {
+    long cellPosition = MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 2 * 4);
+    long self = MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 2 * MemoryLayout.REFERENCE
+        + 2 * 4 + 1);
+    int cells = this.sheet.size();
+    return self + MemoryLayout.hashMap(cells)
+        + cells * (cellPosition + MemoryLayout.BOXED_DOUBLE) + this.filled.footprint();
+  }
+
+  /**
+   * Returns an unchangeable copy of this spreadsheet in a compact layout that is fast to read. It
+   * is meant for a spreadsheet that has been built and from now on is only read, possibly by many
+   * threads. This spreadsheet is not changed and can still be written to.
+   *
+   * @return the frozen copy
+   */
+  public FrozenSpreadSheet freeze() {
+    long[] keys = new long[this.sheet.size()];
+    int k = 0;
+    for (CellPosition position : this.sheet.keySet()) {
+      keys[k++] = ((long) position.row << 32) | position.column;
+    }
+    Arrays.sort(keys);
+    double[] values = new double[keys.length];
+    for (k = 0; k < keys.length; k++) {
+      values[k] = this.sheet.get(new CellPosition((int) (keys[k] >>> 32), (int) keys[k]));
+    }
+    return new FrozenSpreadSheet(keys, values);
+  }
+
   /**
    * This class represents the position of a cell in a spreadsheet.
    */
@@ -136,13 +436,14 @@ public class SparseSpreadSheet implements SpreadSheet {
     }
 
     /**
-     * Get the hash code of this cell position.
+     * Get the hash code of this cell position. The row is multiplied by a large odd constant so
+     * that cells of nearby rows and columns do not collide, which they do with a multiplier of 31.
      *
      * @return the hash code of this cell position
      */
     @Override
     public int hashCode() {
-      return Objects.hash(this.row, this.column);
+      return this.row * 0x9E3779B9 + this.column;
     }
   }
 }
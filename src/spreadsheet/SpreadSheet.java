@@ -26,6 +26,14 @@ public interface SpreadSheet {
    */
   void set(int row, int col, double value) throws IllegalArgumentException;
 
+  /**
+   * Empty the specified cell. Clearing a cell that is already empty has no effect.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting at 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  void clear(int row, int col) throws IllegalArgumentException;
 
   /**
    * Returns whether the specified cell is empty.
@@ -52,4 +60,243 @@ public interface SpreadSheet {
    * @return the height of this spreadsheet
    */
   int getHeight();
+
+  /**
+   * Return an estimate of the heap memory used by this spreadsheet, in bytes. The estimate counts
+   * every object that the spreadsheet owns, assuming a 64-bit JVM with compressed references.
+   *
+   * @return the estimated memory footprint of this spreadsheet
+   */
+  long memoryFootprint();
+
+  /**
+   * Copy the values of a run of cells in one row into the given buffer. Empty cells are copied as
+   * 0, just as {@link #get(int, int)} reports them. Implementations backed by primitive storage
+   * may override this to copy the run in bulk.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the first column to copy, starting with 0
+   * @param toCol   the last column to copy (inclusive)
+   * @param dest    the buffer to copy the values into
+   * @param offset  the position in the buffer of the value of the first column
+   * @throws IllegalArgumentException if the row or columns are negative, the columns are out of
+   *                                  order or the buffer is too small
+   */
+  default void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+      throws IllegalArgumentException {
+    if ((row < 0) || (fromCol < 0) || (toCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    if ((offset < 0) || (dest.length - offset < toCol - fromCol + 1)) {
+      throw new IllegalArgumentException("Buffer is too small");
+    }
+    for (long j = fromCol; j <= toCol; j++) {
+      dest[(int) (offset + j - fromCol)] = get(row, (int) j);
+    }
+  }
+
+  /**
+   * Set a run of cells in one row to the values in the given buffer. Implementations backed by
+   * primitive storage may override this to copy the run in bulk.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the column of the first cell to set, starting with 0
+   * @param values  the buffer holding the values
+   * @param offset  the position in the buffer of the value of the first cell
+   * @param length  the number of cells to set
+   * @throws IllegalArgumentException if the row or column are negative or the buffer does not
+   *                                  hold that many values
+   */
+  default void setRow(int row, int fromCol, double[] values, int offset, int length)
+      throws IllegalArgumentException {
+    if ((row < 0) || (fromCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((offset < 0) || (length < 0) || (values.length - offset < length)) {
+      throw new IllegalArgumentException("Buffer is too small");
+    }
+    for (int j = 0; j < length; j++) {
+      set(row, fromCol + j, values[offset + j]);
+    }
+  }
+
+  /**
+   * Fill a range of cells with a sequence of values in row-major order. The k-th cell of the
+   * range, counting from 0 at the top left cell, is set to {@code start + (firstIndex + k) *
+   * increment}, so that each value depends only on the position of its cell and not on how the
+   * range is split. Filling a range in bands of rows, each with the index of its own first cell,
+   * gives exactly the same values as filling it whole.
+   *
+   * <p>The range is filled a row at a time through {@link #setRow}. Implementations that buffer
+   * or forward writes may override this to handle the range as one write, whatever its area.
+   *
+   * @param fromRow    starting row
+   * @param fromCol    starting column
+   * @param toRow      ending row
+   * @param toCol      ending column
+   * @param start      the value of the cell with index 0
+   * @param increment  the difference between the values of consecutive cells
+   * @param firstIndex the index of the top left cell of the range in the sequence
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  default void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+      double increment, long firstIndex) throws IllegalArgumentException {
+    if ((fromRow < 0) || (fromCol < 0) || (toRow < 0) || (toCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((fromRow > toRow) || (fromCol > toCol)) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    long width = (long) toCol - fromCol + 1;
+    // a wide row is set in runs, so the buffer stays small however wide the range is
+    double[] run = new double[(int) Math.min(width, 4096)];
+    for (long i = fromRow; i <= toRow; i++) {
+      long rowIndex = firstIndex + (i - fromRow) * width;
+      for (long j = fromCol; j <= toCol; j += run.length) {
+        int length = (int) Math.min(run.length, toCol - j + 1);
+        for (int k = 0; k < length; k++) {
+          run[k] = start + (rowIndex + (j - fromCol) + k) * increment;
+        }
+        setRow((int) i, (int) j, run, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Copy a range of cells so that its top left cell lands on the given destination cell. Empty
+   * cells are copied as empty cells. The source and destination may overlap, in which case the
+   * destination ends up holding what the source held before the copy. Implementations may override
+   * this to transfer whole blocks of storage at once.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is copied to
+   * @param destCol the column that the starting column is copied to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  default void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+      int destCol) throws IllegalArgumentException {
+    Region.checkTransfer(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    // walk away from the destination, so that no source cell is overwritten before it is read
+    int rowStep = destRow > fromRow ? -1 : 1;
+    int colStep = destCol > fromCol ? -1 : 1;
+    int height = toRow - fromRow + 1;
+    int width = toCol - fromCol + 1;
+    for (int di = 0; di < height; di++) {
+      int i = rowStep > 0 ? di : height - 1 - di;
+      for (int dj = 0; dj < width; dj++) {
+        int j = colStep > 0 ? dj : width - 1 - dj;
+        if (isEmpty(fromRow + i, fromCol + j)) {
+          clear(destRow + i, destCol + j);
+        } else {
+          set(destRow + i, destCol + j, get(fromRow + i, fromCol + j));
+        }
+      }
+    }
+  }
+
+  /**
+   * Move a range of cells so that its top left cell lands on the given destination cell. This is
+   * a {@link #copyRange} after which the source cells outside the destination range are emptied.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is moved to
+   * @param destCol the column that the starting column is moved to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  default void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+      int destCol) throws IllegalArgumentException {
+    copyRange(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    int destToRow = destRow + (toRow - fromRow);
+    int destToCol = destCol + (toCol - fromCol);
+    for (int i = fromRow; i <= toRow; i++) {
+      for (int j = fromCol; j <= toCol; j++) {
+        if (i < destRow || i > destToRow || j < destCol || j > destToCol) {
+          clear(i, j);
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the number of filled cells in a range. Implementations that index which cells are
+   * filled may override this to answer without visiting every cell of the range.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @return the number of cells in the range that are not empty
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  default long countFilled(int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    if ((fromRow < 0) || (fromCol < 0) || (toRow < 0) || (toCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((fromRow > toRow) || (fromCol > toCol)) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    long count = 0;
+    int lastRow = Math.min(toRow, getHeight() - 1);
+    int lastCol = Math.min(toCol, getWidth() - 1);
+    for (int i = fromRow; i <= lastRow; i++) {
+      for (int j = fromCol; j <= lastCol; j++) {
+        if (!isEmpty(i, j)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Return the column of the first filled cell of a row at or after the given column.
+   * Implementations that index which cells are filled may override this to skip over empty
+   * cells without visiting them.
+   *
+   * @param row     the row number, starting with 0
+   * @param fromCol the column to start from, starting with 0
+   * @return the column of the next filled cell, or -1 if there is none
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  default int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+    if ((row < 0) || (fromCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    int width = getWidth();
+    for (int j = fromCol; j < width; j++) {
+      if (!isEmpty(row, j)) {
+        return j;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Return a view of a range of this spreadsheet as a spreadsheet of its own, whose cell (0, 0)
+   * is the top left cell of the range. Nothing is copied: reads and writes through the view go to
+   * this spreadsheet, and cells outside the range cannot be reached through it.
+   *
+   * @param fromRow starting row of the range
+   * @param fromCol starting column of the range
+   * @param toRow   ending row of the range
+   * @param toCol   ending column of the range
+   * @return the view
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  default SpreadSheet view(int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    return new SpreadSheetView(this, fromRow, fromCol, toRow, toCol);
+  }
 }
@@ -61,7 +61,7 @@ public class SpreadSheetController {
       if (userInstruction.equals("quit") || userInstruction.equals("q")) {
         quit = true;
       } else {
-        processCommand(sheet);
+        processCommand(sheet, userInstruction, sc);
       }
     }
 
@@ -75,21 +75,32 @@ public class SpreadSheetController {
    *
    * @param sheetObject the sheet object to work with
    */
-  protected void processCommand(Object sheetObject) {
+  public void processCommand(Object sheetObject) {
+    Scanner sc = new Scanner(this.readable);
+    String userInstruction = sc.next();
+    processCommand(sheetObject, userInstruction, sc);
+  }
+
+  /**
+   * Process a command whose name has already been read. Its arguments are read from the given
+   * scanner, so that a scanner that has buffered the rest of the input can keep being used.
+   *
+   * @param sheetObject     the sheet object to work with
+   * @param userInstruction the name of the command
+   * @param sc              the scanner to read the arguments of the command from
+   */
+  protected void processCommand(Object sheetObject, String userInstruction, Scanner sc) {
     // type caste it to SpreadSheet
     SpreadSheet sheet = (SpreadSheet) sheetObject;
     int row;
     int col;
     double value;
-    Scanner sc = new Scanner(this.readable);
-    String userInstruction = sc.next();
     switch (userInstruction) {
       case "assign-value": //assign a value to a cell
         try {
           row = getRowNum(sc.next()); //get in the row string
           col = sc.nextInt(); //get in the column number, starting with 0
           value = sc.nextDouble();
-          System.out.println("Setting cell (" + row + "," + (col - 1));
           sheet.set(row, col - 1, value); //use the spreadsheet
         } catch (IllegalArgumentException e) {
           writeMessage("Error: " + e.getMessage() + System.lineSeparator());
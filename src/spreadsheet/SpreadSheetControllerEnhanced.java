@@ -1,12 +1,27 @@
 package spreadsheet;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Represents a controller for a spreadsheet program.
+ *
+ * <p>The controller can be given a time limit for macros. Each macro is then run in the background
+ * by an {@link AsyncMacroExecutor}, and a macro that runs past the limit is cancelled, so that a
+ * mistyped range cannot freeze the controller. On a sheet that runs macros as transactions, a
+ * cancelled macro leaves no trace.
  */
 public class SpreadSheetControllerEnhanced extends SpreadSheetController {
 
+  // the time limit for a macro in milliseconds, or 0 for none
+  private final long macroTimeout;
+  private AsyncMacroExecutor executor;
+
   /**
    * Create a controller to work with the specified sheet (model), readable (to take inputs) and
    * appendable (to transmit output).
@@ -17,21 +32,177 @@ public class SpreadSheetControllerEnhanced extends SpreadSheetController {
    */
   public SpreadSheetControllerEnhanced(SpreadSheet sheet, Readable readable,
       Appendable appendable) {
+    this(sheet, readable, appendable, 0);
+  }
+
+  /**
+   * Create a controller to work with the specified sheet (model), readable (to take inputs) and
+   * appendable (to transmit output), which cancels any macro that runs longer than the given
+   * time.
+   *
+   * @param sheet        the sheet to work with (the model)
+   * @param readable     the Readable object for inputs
+   * @param appendable   the Appendable objects to transmit any output
+   * @param macroTimeout the time limit for a macro in milliseconds, or 0 for none
+   * @throws IllegalArgumentException if an argument is null or the time limit is negative
+   */
+  public SpreadSheetControllerEnhanced(SpreadSheet sheet, Readable readable,
+      Appendable appendable, long macroTimeout) throws IllegalArgumentException {
     super(sheet, readable, appendable);
+    if (macroTimeout < 0) {
+      throw new IllegalArgumentException("Timeout cannot be negative");
+    }
+    this.macroTimeout = macroTimeout;
   }
 
   /**
-   * Override the processCommand method. This method should check if the command given to it is
-   * "bulk-assign-value". If so, then it should get the additional arguments, and use the macro
-   * object to execute this operation (what would you have to do to make sure this works?).
-   * Otherwise, it should delegate to the inherited processCommand method.
+   * Run the controller as usual, and stop the background executor of macros when it is done.
+   *
+   * @throws IllegalStateException if the controller is unable to transmit output
    */
   @Override
-  public void processCommand(Object sheet) {
+  public void control() throws IllegalStateException {
+    try {
+      super.control();
+    } finally {
+      if (this.executor != null) {
+        this.executor.close();
+        this.executor = null;
+      }
+    }
+  }
+
+  /**
+   * Override the processCommand method. This method checks if the command given to it is a macro
+   * command such as "bulk-assign-value" or a batch of macro commands. If so, then it gets the
+   * additional arguments, and uses the macro object to execute this operation. Otherwise, it
+   * delegates to the inherited processCommand method.
+   *
+   * @param sheet           the sheet object to work with, which must be a MacroSpreadSheet
+   * @param userInstruction the name of the command
+   * @param sc              the scanner to read the arguments of the command from
+   */
+  @Override
+  protected void processCommand(Object sheet, String userInstruction, Scanner sc) {
     // Cast the sheet to a MacroSpreadSheet object
     MacroSpreadSheet macroSheet = (MacroSpreadSheet) sheet;
-    Scanner sc = new Scanner(this.readable);
-    String userInstruction = sc.next();
+
+    if (userInstruction.equals("batch")) {
+      // collect the macros up to end-batch and execute them through the planner
+      List<SpreadSheetMacro> batch = new ArrayList<SpreadSheetMacro>();
+      String instruction = sc.next();
+      while (!instruction.equals("end-batch")) {
+        SpreadSheetMacro macro = readMacro(instruction, sc);
+        if (macro == null) {
+          throw new IllegalArgumentException("Undefined instruction in batch: " + instruction);
+        }
+        batch.add(macro);
+        instruction = sc.next();
+      }
+      if (this.macroTimeout == 0) {
+        macroSheet.executeMacros(batch);
+      } else {
+        for (SpreadSheetMacro planned : MacroPlanner.plan(batch)) {
+          if (!execute(macroSheet, planned)) {
+            // the rest of the batch is dropped with the cancelled macro
+            break;
+          }
+        }
+      }
+      return;
+    }
+
+    SpreadSheetMacro macro = readMacro(userInstruction, sc);
+    if (macro == null) {
+      // Call the superclass method processCommand with the provided parameters
+      super.processCommand(sheet, userInstruction, sc);
+    } else {
+      execute(macroSheet, macro);
+    }
+  }
+
+  /**
+   * Execute a macro on the sheet. If there is a time limit, the macro is run in the background
+   * and cancelled if it has not finished in time; the controller waits until it has stopped, so
+   * the next instruction never sees it half done.
+   *
+   * @param macroSheet the sheet to execute the macro on
+   * @param macro      the macro to execute
+   * @return true if the macro was executed, false if it was cancelled
+   * @throws IllegalStateException if the controller is interrupted while it waits
+   */
+  private boolean execute(MacroSpreadSheet macroSheet, SpreadSheetMacro macro)
+      throws IllegalStateException {
+    if (this.macroTimeout == 0) {
+      macroSheet.executeMacro(macro);
+      return true;
+    }
+    if (this.executor == null) {
+      this.executor = new AsyncMacroExecutor(macroSheet, 1);
+    }
+    CompletableFuture<Void> future = this.executor.submit(macro);
+    try {
+      future.get(this.macroTimeout, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (ExecutionException e) {
+      // fail the same way as a macro executed directly; a macro cannot throw a checked exception
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw (RuntimeException) e.getCause();
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      awaitExecutor();
+      writeMessage("Error: macro did not finish within " + this.macroTimeout
+          + " ms and was cancelled" + System.lineSeparator());
+      return false;
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while executing a macro");
+    }
+  }
+
+  /**
+   * Wait for the background executor to stop running the cancelled macro.
+   *
+   * @throws IllegalStateException if the controller is interrupted while it waits
+   */
+  private void awaitExecutor() throws IllegalStateException {
+    try {
+      this.executor.awaitIdle();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while cancelling a macro");
+    }
+  }
+
+  /**
+   * Reads the arguments of a macro instruction and creates the macro it describes.
+   *
+   * @param userInstruction the name of the instruction
+   * @param sc              the scanner to read the arguments from
+   * @return the macro, or null if the instruction is not a macro instruction
+   * @throws IllegalArgumentException if the arguments are invalid
+   */
+  protected SpreadSheetMacro readMacro(String userInstruction, Scanner sc)
+      throws IllegalArgumentException {
+    switch (userInstruction) {
+      case "bulk-assign-value":
+      case "average":
+      case "sum":
+      case "min":
+      case "max":
+      case "statistics":
+      case "range-assign":
+      case "sort":
+      case "copy-range":
+      case "move-range":
+        break;
+      default:
+        // not a macro instruction, so leave its arguments to be read by someone else
+        return null;
+    }
 
     // Common variables
     int startrow = getRowNum(sc.next()); //get the row string
@@ -58,6 +229,51 @@ public class SpreadSheetControllerEnhanced extends SpreadSheetController {
         macro = new AverageMacro(startrow, startcol, endrow, endcol, destrow, destcol);
         break;
 
+      case "sum":
+      case "min":
+      case "max":
+        int aggrow = getRowNum(sc.next()); //get the row string
+        int aggcol = sc.nextInt(); //get the column number, starting with 1
+
+        // Instantiate an AggregateMacro object for the function named by the instruction
+        macro = new AggregateMacro(AggregateMacro.Function.valueOf(userInstruction.toUpperCase()),
+            startrow, startcol, endrow, endcol, aggrow, aggcol);
+        break;
+
+      case "statistics":
+        int statrow = getRowNum(sc.next()); //get the row string
+        int statcol = sc.nextInt(); //get the column number, starting with 1
+        String names = sc.next(); //get the comma-separated statistic names
+
+        // Instantiate a StatisticsMacro object with the provided parameters
+        macro = new StatisticsMacro(startrow, startcol, endrow, endcol, statrow, statcol,
+            StatisticsMacro.parse(names));
+        break;
+
+      case "sort":
+        int keycol = sc.nextInt(); //get the column number of the key
+        String direction = sc.next(); //get asc or desc
+        if (!direction.equals("asc") && !direction.equals("desc")) {
+          throw new IllegalArgumentException("Sort direction must be asc or desc");
+        }
+
+        // Instantiate a SortMacro object with the provided parameters
+        macro = new SortMacro(startrow, startcol, endrow, endcol, keycol, direction.equals("asc"));
+        break;
+
+      case "copy-range":
+      case "move-range":
+        int torow = getRowNum(sc.next()); //get the row string
+        int tocol = sc.nextInt(); //get the column number, starting with 1
+
+        // Instantiate a CopyRangeMacro or MoveRangeMacro object with the provided parameters
+        if (userInstruction.equals("copy-range")) {
+          macro = new CopyRangeMacro(startrow, startcol, endrow, endcol, torow, tocol);
+        } else {
+          macro = new MoveRangeMacro(startrow, startcol, endrow, endcol, torow, tocol);
+        }
+        break;
+
       case "range-assign":
         double startvalue = sc.nextDouble(); //get the value to be assigned
         double increment = sc.nextDouble(); //get the value to be assigned
@@ -67,15 +283,10 @@ public class SpreadSheetControllerEnhanced extends SpreadSheetController {
         break;
 
       default:
-        // Call the superclass method processCommand with the provided parameters
-        super.processCommand(sheet);
         break;
     }
 
-    // Execute the macro if it is not null
-    if (macro != null) {
-      macroSheet.executeMacro(macro);
-    }
+    return macro;
   }
 
   /**
@@ -85,6 +296,16 @@ public class SpreadSheetControllerEnhanced extends SpreadSheetController {
   protected void printMenu() {
     super.printMenu();
     writeMessage("bulk-assign-value: Assigns a value to a range of cells\n");
+    writeMessage("sum, min or max from-row from-col to-row to-col dest-row dest-col "
+        + "(reduce a range of cells into a cell)" + System.lineSeparator());
+    writeMessage("statistics from-row from-col to-row to-col dest-row dest-col names "
+        + "(compute any of sum,count,min,max,mean,stddev in one pass)" + System.lineSeparator());
+    writeMessage("sort from-row from-col to-row to-col key-col asc|desc "
+        + "(sort the rows of a range by one column)" + System.lineSeparator());
+    writeMessage("copy-range or move-range from-row from-col to-row to-col dest-row dest-col "
+        + "(copy or move a range of cells)" + System.lineSeparator());
+    writeMessage("batch instructions end-batch (plan and execute a batch of macros)"
+        + System.lineSeparator());
     writeMessage("q or quit (quit the program) " + System.lineSeparator());
   }
 }
@@ -2,9 +2,28 @@ package spreadsheet;
 
 /**
  * Represents a macro that can be executed on a spreadsheet.
+ *
+ * <p>Besides executing, a macro may describe which cells it reads and writes. The
+ * {@link MacroPlanner} uses this description to optimize a batch of macros before it touches the
+ * spreadsheet. The defaults describe a macro that may read and write any cell, which the planner
+ * never removes or reorders.
  */
 public interface SpreadSheetMacro {
 
+  /**
+   * The kinds of write that a macro can make to its write region.
+   */
+  enum WriteKind {
+    /**
+     * Every cell of the write region is assigned a value that does not depend on its old value.
+     */
+    OVERWRITE,
+    /**
+     * Some cells of the write region may be assigned, cleared or left alone.
+     */
+    PARTIAL
+  }
+
   /**
    * Executes the macro on the given spreadsheet.
    *
@@ -12,4 +31,31 @@ public interface SpreadSheetMacro {
    */
   void execute(SpreadSheet sheet);
 
+  /**
+   * Returns the region of cells whose values this macro reads.
+   *
+   * @return the region read, or null if the macro reads no cells
+   */
+  default Region getReadRegion() {
+    return Region.ALL;
+  }
+
+  /**
+   * Returns the region of cells that this macro may write.
+   *
+   * @return the region written, or null if the macro writes no cells
+   */
+  default Region getWriteRegion() {
+    return Region.ALL;
+  }
+
+  /**
+   * Returns the kind of write that this macro makes to its write region.
+   *
+   * @return the kind of write
+   */
+  default WriteKind getWriteKind() {
+    return WriteKind.PARTIAL;
+  }
+
 }
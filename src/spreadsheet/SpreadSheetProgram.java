@@ -1,6 +1,8 @@
 package spreadsheet;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 
 /**
  * The driver of this application.
@@ -8,15 +10,30 @@ import java.io.InputStreamReader;
 public class SpreadSheetProgram {
 
   /**
-   * main method of the program.
+   * main method of the program. With "server" and optionally a port and a time limit for macros in
+   * milliseconds as arguments, the program serves a shared spreadsheet to network clients instead
+   * of reading commands from the console. With "--macro-timeout" and a time limit in milliseconds,
+   * the console accepts macro commands and cancels any macro that runs longer than the limit.
    *
    * @param args any command line arguments
+   * @throws IOException          if the server cannot listen on its port
+   * @throws InterruptedException if the server is interrupted
    */
-  public static void main(String[] args) {
-    SpreadSheet model = new SparseSpreadSheet();
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length > 0 && args[0].equals("server")) {
+      SpreadSheetServer.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
     Readable rd = new InputStreamReader(System.in);
     Appendable ap = System.out;
-    SpreadSheetController controller = new SpreadSheetController(model, rd, ap);
+    SpreadSheetController controller;
+    if (args.length > 1 && args[0].equals("--macro-timeout")) {
+      controller = new SpreadSheetControllerEnhanced(new EnhancedSpreadSheet(), rd, ap,
+          Long.parseLong(args[1]));
+    } else {
+      SpreadSheet model = new SparseSpreadSheet();
+      controller = new SpreadSheetController(model, rd, ap);
+    }
     controller.control();
   }
 }
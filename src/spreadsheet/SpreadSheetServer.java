@@ -0,0 +1,337 @@
+package spreadsheet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class serves one spreadsheet to many TCP clients at once. Every client gets a session that
+ * speaks the command language of {@link SpreadSheetControllerEnhanced}, exactly as the program
+ * does over the console, and all sessions work on the same sheet. The sheet must therefore be
+ * safe to use from many threads, such as a {@link ShardedSpreadSheet}.
+ *
+ * <p>Each session runs on a thread of its own. Where the Java runtime has virtual threads, one
+ * virtual thread is started per session, so that thousands of mostly idle sessions cost little
+ * more than their buffers. Otherwise the sessions run on a pool of platform threads with small
+ * stacks.
+ *
+ * <p>A client may send many commands without waiting for their replies. Replies are buffered and
+ * only written to the socket when the session has read every command that has arrived, so a
+ * pipelined stream of commands is answered in a few large writes rather than one per command.
+ */
+public class SpreadSheetServer implements AutoCloseable {
+
+  // the stack size of the platform threads used when there are no virtual threads
+  private static final long STACK_SIZE = 256 * 1024;
+  // the size of the input and output buffer of a session, in characters
+  private static final int BUFFER_SIZE = 4096;
+  // the longest wait before accepting again after accepting failed, in milliseconds
+  private static final long MAX_BACKOFF_MILLIS = 1000;
+
+  private final MacroSpreadSheet sheet;
+  private final long macroTimeout;
+  private final ServerSocket serverSocket;
+  private final ExecutorService sessions;
+  private final Set<Socket> clients;
+  private final AtomicInteger sessionCount;
+  private final AtomicInteger activeCount;
+  private final Thread acceptor;
+
+  /**
+   * Create a server for the given sheet listening on the given port of the loopback address, with
+   * no time limit for macros.
+   *
+   * @param sheet the sheet to serve, which must be safe to use from many threads
+   * @param port  the port to listen on, or 0 to pick a free port
+   * @throws IllegalArgumentException if the sheet is null or the port is out of range
+   * @throws IOException              if the port cannot be listened on
+   */
+  public SpreadSheetServer(MacroSpreadSheet sheet, int port)
+      throws IllegalArgumentException, IOException {
+    this(sheet, port, InetAddress.getLoopbackAddress(), 0);
+  }
+
+  /**
+   * Create a server for the given sheet listening on the given port and address, with no time
+   * limit for macros.
+   *
+   * @param sheet   the sheet to serve, which must be safe to use from many threads
+   * @param port    the port to listen on, or 0 to pick a free port
+   * @param address the address to listen on, or null for every address
+   * @throws IllegalArgumentException if the sheet is null or the port is out of range
+   * @throws IOException              if the port cannot be listened on
+   */
+  public SpreadSheetServer(MacroSpreadSheet sheet, int port, InetAddress address)
+      throws IllegalArgumentException, IOException {
+    this(sheet, port, address, 0);
+  }
+
+  /**
+   * Create a server for the given sheet listening on the given port and address. Each session
+   * cancels any macro that runs longer than the given time, as a
+   * {@link SpreadSheetControllerEnhanced} with that time limit does.
+   *
+   * @param sheet        the sheet to serve, which must be safe to use from many threads
+   * @param port         the port to listen on, or 0 to pick a free port
+   * @param address      the address to listen on, or null for every address
+   * @param macroTimeout the time limit for a macro in milliseconds, or 0 for none
+   * @throws IllegalArgumentException if the sheet is null, the port is out of range or the time
+   *                                  limit is negative
+   * @throws IOException              if the port cannot be listened on
+   */
+  public SpreadSheetServer(MacroSpreadSheet sheet, int port, InetAddress address,
+      long macroTimeout) throws IllegalArgumentException, IOException {
+    if (sheet == null) {
+      throw new IllegalArgumentException("Sheet cannot be null");
+    }
+    if (port < 0 || port > 65535) {
+      throw new IllegalArgumentException("Port out of range");
+    }
+    if (macroTimeout < 0) {
+      throw new IllegalArgumentException("Timeout cannot be negative");
+    }
+    this.sheet = sheet;
+    this.macroTimeout = macroTimeout;
+    this.serverSocket = new ServerSocket(port, 1024, address);
+    this.sessions = sessionExecutor();
+    this.clients = ConcurrentHashMap.newKeySet();
+    this.sessionCount = new AtomicInteger();
+    this.activeCount = new AtomicInteger();
+    this.acceptor = new Thread(this::accept, "spreadsheet-server-acceptor");
+    this.acceptor.setDaemon(true);
+    this.acceptor.start();
+  }
+
+  /**
+   * Returns the port that this server listens on.
+   *
+   * @return the port
+   */
+  public int getPort() {
+    return this.serverSocket.getLocalPort();
+  }
+
+  /**
+   * Returns the number of sessions started since this server was created.
+   *
+   * @return the number of sessions started
+   */
+  public int getSessionCount() {
+    return this.sessionCount.get();
+  }
+
+  /**
+   * Returns the number of sessions that are currently open.
+   *
+   * @return the number of open sessions
+   */
+  public int getActiveCount() {
+    return this.activeCount.get();
+  }
+
+  /**
+   * Wait until this server has stopped accepting clients.
+   *
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  public void awaitClose() throws InterruptedException {
+    this.acceptor.join();
+  }
+
+  /**
+   * Stop accepting clients and end every open session. The sheet is left as it is.
+   */
+  @Override
+  public void close() {
+    try {
+      this.serverSocket.close();
+    } catch (IOException e) {
+      // the socket is being thrown away anyway
+    }
+    for (Socket client : this.clients) {
+      closeQuietly(client);
+    }
+    this.sessions.shutdown();
+    try {
+      this.sessions.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Accept clients until the server socket is closed, starting a session for each. If accepting
+   * fails for another reason, such as the process running out of file descriptors, the loop waits
+   * before trying again, twice as long after each failure in a row up to a second, rather than
+   * spinning.
+   */
+  private void accept() {
+    int failures = 0;
+    while (!this.serverSocket.isClosed()) {
+      Socket client;
+      try {
+        client = this.serverSocket.accept();
+        failures = 0;
+      } catch (IOException e) {
+        if (this.serverSocket.isClosed()) {
+          break;
+        }
+        failures = Math.min(failures + 1, 10);
+        try {
+          Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, 1L << failures));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        continue;
+      }
+      this.clients.add(client);
+      this.sessionCount.incrementAndGet();
+      try {
+        this.sessions.execute(() -> serve(client));
+      } catch (RuntimeException e) {
+        // the server is closing
+        this.clients.remove(client);
+        closeQuietly(client);
+      }
+    }
+  }
+
+  /**
+   * Run a session: have a controller read commands from the client and write the replies back
+   * until the client quits or disconnects.
+   *
+   * @param client the socket of the client
+   */
+  private void serve(Socket client) {
+    this.activeCount.incrementAndGet();
+    try {
+      client.setTcpNoDelay(true);
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+      BufferedWriter out = new BufferedWriter(
+          new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+      SpreadSheetController controller = new SpreadSheetControllerEnhanced(this.sheet,
+          new SessionInput(in, out), out, this.macroTimeout);
+      controller.control();
+      out.flush();
+    } catch (IOException | IllegalStateException | UncheckedIOException e) {
+      // the client went away
+    } catch (RuntimeException e) {
+      // a malformed command ends the session, as it ends the program on the console
+    } finally {
+      this.clients.remove(client);
+      closeQuietly(client);
+      this.activeCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Close a socket, ignoring any error.
+   *
+   * @param socket the socket
+   */
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // nothing more can be done with the socket
+    }
+  }
+
+  /**
+   * Returns the executor that runs the sessions: one virtual thread per session if the Java
+   * runtime has them, or else a pool of daemon platform threads with small stacks.
+   *
+   * @return the executor
+   */
+  private static ExecutorService sessionExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      AtomicInteger threads = new AtomicInteger();
+      return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), task -> {
+            Thread thread = new Thread(null, task,
+                "spreadsheet-session-" + threads.incrementAndGet(), STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+  }
+
+  /**
+   * The input of a session. Before it blocks waiting for more input from the client, it flushes
+   * the buffered replies, so that the client sees the replies to every command it has sent.
+   */
+  private static final class SessionInput implements Readable {
+
+    private final BufferedReader in;
+    private final BufferedWriter out;
+
+    /**
+     * Create the input of a session.
+     *
+     * @param in  the buffered input from the client
+     * @param out the buffered output to the client
+     */
+    SessionInput(BufferedReader in, BufferedWriter out) {
+      this.in = in;
+      this.out = out;
+    }
+
+    /**
+     * Read characters from the client into the given buffer, flushing the replies first if no
+     * input is waiting.
+     *
+     * @param cb the buffer to read into
+     * @return the number of characters read, or -1 at the end of the input
+     * @throws IOException if the client cannot be read from or written to
+     */
+    @Override
+    public int read(CharBuffer cb) throws IOException {
+      if (!this.in.ready()) {
+        this.out.flush();
+      }
+      return this.in.read(cb);
+    }
+  }
+
+  /**
+   * Serve a sharded sheet on the given port of the loopback address, or 5000 by default, until the
+   * process is stopped. Only clients on the same machine can connect. A macro that runs longer
+   * than the given time limit, or 10 seconds by default, is cancelled; a limit of 0 turns it off.
+   *
+   * @param args the port to listen on and the time limit for a macro in milliseconds, if given
+   * @throws IOException          if the port cannot be listened on
+   * @throws InterruptedException if the main thread is interrupted
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    long macroTimeout = args.length > 1 ? Long.parseLong(args[1]) : 10000;
+    try (ShardedSpreadSheet sheet = new ShardedSpreadSheet();
+        SpreadSheetServer server = new SpreadSheetServer(sheet, port,
+            InetAddress.getLoopbackAddress(), macroTimeout)) {
+      System.out.println("Serving spreadsheet on port " + server.getPort());
+      server.awaitClose();
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package spreadsheet;
+
+/**
+ * This class represents a rectangular window onto another spreadsheet, seen as a spreadsheet of
+ * its own. Cell (0, 0) of the view is the top left cell of the window. Every read and write is
+ * translated into the parent spreadsheet, so nothing is copied and changes made through the view
+ * are seen by the parent and the other way round.
+ *
+ * <p>The row and range operations are forwarded to the parent's own row and range operations, so
+ * a view keeps whatever bulk implementation the parent has. A view of a view is a view of the
+ * original parent, so nesting views adds no extra level of indirection.
+ */
+final class SpreadSheetView implements SpreadSheet {
+
+  private final SpreadSheet parent;
+  private final int rowOffset;
+  private final int colOffset;
+  private final int rows;
+  private final int cols;
+
+  /**
+   * Create a view of the given range of a spreadsheet.
+   *
+   * @param parent  the spreadsheet to view
+   * @param fromRow starting row of the window in the parent
+   * @param fromCol starting column of the window in the parent
+   * @param toRow   ending row of the window in the parent
+   * @param toCol   ending column of the window in the parent
+   * @throws IllegalArgumentException if the parent is null, a row or column is negative or the
+   *                                  range is invalid
+   */
+  SpreadSheetView(SpreadSheet parent, int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    if (parent == null) {
+      throw new IllegalArgumentException("Sheet cannot be null");
+    }
+    if (fromRow < 0 || fromCol < 0 || toRow < 0 || toCol < 0) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (fromRow > toRow || fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    this.parent = parent;
+    this.rowOffset = fromRow;
+    this.colOffset = fromCol;
+    this.rows = toRow - fromRow + 1;
+    this.cols = toCol - fromCol + 1;
+  }
+
+  /**
+   * Check that a cell lies inside this view.
+   *
+   * @param row the row number of the cell in this view
+   * @param col the column number of the cell in this view
+   * @throws IllegalArgumentException if the row or column are negative or outside the view
+   */
+  private void check(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((row >= this.rows) || (col >= this.cols)) {
+      throw new IllegalArgumentException("Cell is outside the view");
+    }
+  }
+
+  /**
+   * Get the number at the specified cell of this view.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, or 0 if it is empty
+   * @throws IllegalArgumentException if the row or column are negative or outside the view
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    check(row, col);
+    return this.parent.get(this.rowOffset + row, this.colOffset + col);
+  }
+
+  /**
+   * Set the value of the specified cell of this view.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting with 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative or outside the view
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    check(row, col);
+    this.parent.set(this.rowOffset + row, this.colOffset + col, value);
+  }
+
+  /**
+   * Empty the specified cell of this view.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @throws IllegalArgumentException if the row or column are negative or outside the view
+   */
+  @Override
+  public void clear(int row, int col) throws IllegalArgumentException {
+    check(row, col);
+    this.parent.clear(this.rowOffset + row, this.colOffset + col);
+  }
+
+  /**
+   * Returns whether the specified cell of this view is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative or outside the view
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    check(row, col);
+    return this.parent.isEmpty(this.rowOffset + row, this.colOffset + col);
+  }
+
+  /**
+   * Return the width of this view. This is the width of the window, cut off where the parent's
+   * filled cells end, so it never finds a filled cell past it but may include empty columns at
+   * the right.
+   *
+   * @return the width of this view
+   */
+  @Override
+  public int getWidth() {
+    return Math.max(0, Math.min(this.cols, this.parent.getWidth() - this.colOffset));
+  }
+
+  /**
+   * Return the height of this view. This is the height of the window, cut off where the parent's
+   * filled cells end, so it never finds a filled cell past it but may include empty rows at the
+   * bottom.
+   *
+   * @return the height of this view
+   */
+  @Override
+  public int getHeight() {
+    return Math.max(0, Math.min(this.rows, this.parent.getHeight() - this.rowOffset));
+  }
+
+  /**
+   * Return the memory used by the view itself. The cells belong to the parent and are not
+   * counted.
+   *
+   * @return the estimated memory footprint of this view
+   */
+  @Override
+  public long memoryFootprint() {
+    return MemoryLayout.align(MemoryLayout.OBJECT_HEADER + MemoryLayout.REFERENCE + 4 * 4);
+  }
+
+  /**
+   * Copy the values of a run of cells in one row of this view into the given buffer, using the
+   * parent's row copy.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the first column to copy, starting with 0
+   * @param toCol   the last column to copy (inclusive)
+   * @param dest    the buffer to copy the values into
+   * @param offset  the position in the buffer of the value of the first column
+   * @throws IllegalArgumentException if a cell is outside the view, the columns are out of order
+   *                                  or the buffer is too small
+   */
+  @Override
+  public void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+      throws IllegalArgumentException {
+    check(row, fromCol);
+    check(row, toCol);
+    this.parent.getRow(this.rowOffset + row, this.colOffset + fromCol, this.colOffset + toCol,
+        dest, offset);
+  }
+
+  /**
+   * Set a run of cells in one row of this view, using the parent's row write.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the column of the first cell to set, starting with 0
+   * @param values  the buffer holding the values
+   * @param offset  the position in the buffer of the value of the first cell
+   * @param length  the number of cells to set
+   * @throws IllegalArgumentException if a cell is outside the view or the buffer does not hold
+   *                                  that many values
+   */
+  @Override
+  public void setRow(int row, int fromCol, double[] values, int offset, int length)
+      throws IllegalArgumentException {
+    check(row, fromCol);
+    if ((length < 0) || ((long) fromCol + length > this.cols)) {
+      throw new IllegalArgumentException("Cell is outside the view");
+    }
+    this.parent.setRow(this.rowOffset + row, this.colOffset + fromCol, values, offset, length);
+  }
+
+  /**
+   * Fill a range of cells of this view with a sequence of values, using the parent's range fill.
+   *
+   * @param fromRow    starting row
+   * @param fromCol    starting column
+   * @param toRow      ending row
+   * @param toCol      ending column
+   * @param start      the value of the cell with index 0
+   * @param increment  the difference between the values of consecutive cells
+   * @param firstIndex the index of the top left cell of the range in the sequence
+   * @throws IllegalArgumentException if the range is invalid or not inside the view
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+      double increment, long firstIndex) throws IllegalArgumentException {
+    if ((fromRow > toRow) || (fromCol > toCol)) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    check(fromRow, fromCol);
+    check(toRow, toCol);
+    this.parent.fillRange(this.rowOffset + fromRow, this.colOffset + fromCol,
+        this.rowOffset + toRow, this.colOffset + toCol, start, increment, firstIndex);
+  }
+
+  /**
+   * Copy a range of cells of this view to another position in it, using the parent's range copy.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is copied to
+   * @param destCol the column that the starting column is copied to
+   * @throws IllegalArgumentException if the range is invalid or the source or destination range
+   *                                  is not inside the view
+   */
+  @Override
+  public void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+      int destCol) throws IllegalArgumentException {
+    checkTransfer(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    this.parent.copyRange(this.rowOffset + fromRow, this.colOffset + fromCol,
+        this.rowOffset + toRow, this.colOffset + toCol, this.rowOffset + destRow,
+        this.colOffset + destCol);
+  }
+
+  /**
+   * Move a range of cells of this view to another position in it, using the parent's range move.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is moved to
+   * @param destCol the column that the starting column is moved to
+   * @throws IllegalArgumentException if the range is invalid or the source or destination range
+   *                                  is not inside the view
+   */
+  @Override
+  public void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+      int destCol) throws IllegalArgumentException {
+    checkTransfer(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    this.parent.moveRange(this.rowOffset + fromRow, this.colOffset + fromCol,
+        this.rowOffset + toRow, this.colOffset + toCol, this.rowOffset + destRow,
+        this.colOffset + destCol);
+  }
+
+  /**
+   * Return the number of filled cells in a range of this view, using the parent's count.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @return the number of cells in the range that are not empty
+   * @throws IllegalArgumentException if the range is invalid or not inside the view
+   */
+  @Override
+  public long countFilled(int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    if ((fromRow > toRow) || (fromCol > toCol)) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    check(fromRow, fromCol);
+    check(toRow, toCol);
+    return this.parent.countFilled(this.rowOffset + fromRow, this.colOffset + fromCol,
+        this.rowOffset + toRow, this.colOffset + toCol);
+  }
+
+  /**
+   * Return the column of the first filled cell of a row of this view at or after the given
+   * column, using the parent's search.
+   *
+   * @param row     the row number, starting with 0
+   * @param fromCol the column to start from, starting with 0
+   * @return the column of the next filled cell in this view, or -1 if there is none
+   * @throws IllegalArgumentException if the row or column are negative or outside the view
+   */
+  @Override
+  public int nextFilled(int row, int fromCol) throws IllegalArgumentException {
+    check(row, fromCol);
+    int col = this.parent.nextFilled(this.rowOffset + row, this.colOffset + fromCol);
+    return (col < 0 || col - this.colOffset >= this.cols) ? -1 : col - this.colOffset;
+  }
+
+  /**
+   * Check that the source and destination of a transfer both lie inside this view.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row lands on
+   * @param destCol the column that the starting column lands on
+   * @throws IllegalArgumentException if the range is invalid or not inside the view
+   */
+  private void checkTransfer(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+      int destCol) throws IllegalArgumentException {
+    Region.checkTransfer(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    check(toRow, toCol);
+    check(destRow + (toRow - fromRow), destCol + (toCol - fromCol));
+  }
+
+  /**
+   * Return a view of a range of this view. It is made directly on the parent, so reads and writes
+   * through it are translated only once.
+   *
+   * @param fromRow starting row of the window in this view
+   * @param fromCol starting column of the window in this view
+   * @param toRow   ending row of the window in this view
+   * @param toCol   ending column of the window in this view
+   * @return the view
+   * @throws IllegalArgumentException if the range is invalid or not inside this view
+   */
+  @Override
+  public SpreadSheet view(int fromRow, int fromCol, int toRow, int toCol)
+      throws IllegalArgumentException {
+    if (fromRow > toRow || fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    check(fromRow, fromCol);
+    check(toRow, toCol);
+    return new SpreadSheetView(this.parent, this.rowOffset + fromRow, this.colOffset + fromCol,
+        this.rowOffset + toRow, this.colOffset + toCol);
+  }
+}
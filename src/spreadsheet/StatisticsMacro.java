@@ -0,0 +1,216 @@
+package spreadsheet;
+//statistics from-row-num from-col-num to-row-num to-col-num dest-row-num dest-col-num names.
+// This will compute the named statistics of a range of cells in one pass and put them in
+// consecutive cells of the destination row, starting at the destination cell. The names are
+// separated by commas. For example statistics A 1 B 10 C 2 mean,stddev,count stores the mean of
+// A1:B10 in C2, its standard deviation in C3 and the number of non-empty cells in C4.
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents the StatisticsMacro class that implements the SpreadSheetMacro interface.
+ * This class represents a macro that computes any set of statistics of a range of cells in a
+ * single scan of the range and puts them in consecutive cells starting at the destination cell.
+ *
+ * <p>Empty cells count as 0 for every statistic except COUNT, just as they do for the
+ * {@link AverageMacro}. COUNT is taken from {@link SpreadSheet#countFilled}, which answers from
+ * the sheet's index of filled cells where it has one, rather than from a second scan. The sum
+ * uses Kahan compensated summation and the mean and standard deviation use Welford's online
+ * algorithm, so neither loses precision on long ranges.
+ */
+public class StatisticsMacro implements SpreadSheetMacro {
+
+  /**
+   * The statistics that this macro can compute.
+   */
+  public enum Statistic {
+    /**
+     * The sum of the cells.
+     */
+    SUM,
+    /**
+     * The number of non-empty cells.
+     */
+    COUNT,
+    /**
+     * The smallest cell.
+     */
+    MIN,
+    /**
+     * The largest cell.
+     */
+    MAX,
+    /**
+     * The mean of the cells.
+     */
+    MEAN,
+    /**
+     * The population standard deviation of the cells.
+     */
+    STDDEV
+  }
+
+  private final int fromRow;
+  private final int fromCol;
+  private final int toRow;
+  private final int toCol;
+  private final int destRow;
+  private final int destCol;
+  private final List<Statistic> statistics;
+
+  /**
+   * Constructs a new StatisticsMacro object that takes the start, end and destination cells and
+   * the statistics to compute.
+   *
+   * @param fromRow    starting row
+   * @param fromCol    starting column
+   * @param toRow      ending row
+   * @param toCol      ending column
+   * @param destRow    destination row
+   * @param destCol    destination column of the first statistic
+   * @param statistics the statistics to compute, in the order they are written
+   */
+  public StatisticsMacro(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol,
+      List<Statistic> statistics) {
+    // check for all valid cells
+    if (fromRow < 0 || fromCol < 0 || toRow < 0 || toCol < 0 || destRow < 0 || destCol < 0) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    // check for valid range
+    if (fromRow > toRow || fromCol > toCol) {
+      throw new IllegalArgumentException("Invalid range");
+    }
+    if (statistics == null || statistics.isEmpty() || statistics.contains(null)) {
+      throw new IllegalArgumentException("No statistics to compute");
+    }
+    this.fromRow = fromRow;
+    this.fromCol = fromCol;
+    this.toRow = toRow;
+    this.toCol = toCol;
+    this.destRow = destRow;
+    this.destCol = destCol;
+    this.statistics = new ArrayList<Statistic>(statistics);
+  }
+
+  /**
+   * Parses a comma-separated list of statistic names, such as "mean,stddev,count".
+   *
+   * @param names the names of the statistics, in any case
+   * @return the statistics in the order they were named
+   * @throws IllegalArgumentException if a name is not a known statistic
+   */
+  public static List<Statistic> parse(String names) throws IllegalArgumentException {
+    List<Statistic> result = new ArrayList<Statistic>();
+    for (String name : names.split(",")) {
+      try {
+        result.add(Statistic.valueOf(name.trim().toUpperCase()));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown statistic: " + name);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Computes the statistics of the range of cells of the given spreadsheet in one pass and puts
+   * them in the destination cells.
+   *
+   * @param sheet the spreadsheet
+   */
+  @Override
+  public void execute(SpreadSheet sheet) {
+    boolean countNonEmpty = this.statistics.contains(Statistic.COUNT);
+    int width = this.toCol - this.fromCol + 1;
+    double[] buffer = new double[width];
+
+    double sum = 0;
+    double compensation = 0;
+    long nonEmpty = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    long n = 0;
+    double mean = 0;
+    double squares = 0;
+
+    for (int i = this.fromRow; i <= this.toRow; i++) {
+      sheet.getRow(i, this.fromCol, this.toCol, buffer, 0);
+      for (int j = 0; j < width; j++) {
+        double x = buffer[j];
+        // Kahan summation
+        double y = x - compensation;
+        double t = sum + y;
+        compensation = (t - sum) - y;
+        sum = t;
+        // Welford's update of the mean and the sum of squared deviations
+        n++;
+        double delta = x - mean;
+        mean += delta / n;
+        squares += delta * (x - mean);
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+      }
+    }
+    if (countNonEmpty) {
+      // the values read cannot tell an empty cell from a 0, so ask the sheet's own count
+      nonEmpty = sheet.countFilled(this.fromRow, this.fromCol, this.toRow, this.toCol);
+    }
+
+    // write only after the scan, since the destination may lie inside the range
+    for (int k = 0; k < this.statistics.size(); k++) {
+      double value;
+      switch (this.statistics.get(k)) {
+        case SUM:
+          value = sum;
+          break;
+        case COUNT:
+          value = nonEmpty;
+          break;
+        case MIN:
+          value = min;
+          break;
+        case MAX:
+          value = max;
+          break;
+        case MEAN:
+          value = mean;
+          break;
+        default:
+          value = Math.sqrt(squares / n);
+          break;
+      }
+      sheet.set(this.destRow, this.destCol + k, value);
+    }
+  }
+
+  /**
+   * Returns the range of cells that this macro reads.
+   *
+   * @return the region read
+   */
+  @Override
+  public Region getReadRegion() {
+    return new Region(this.fromRow, this.fromCol, this.toRow, this.toCol);
+  }
+
+  /**
+   * Returns the destination cells, one for each statistic.
+   *
+   * @return the region written
+   */
+  @Override
+  public Region getWriteRegion() {
+    return new Region(this.destRow, this.destCol, this.destRow,
+        this.destCol + this.statistics.size() - 1);
+  }
+
+  /**
+   * Returns OVERWRITE, since the destinations are assigned regardless of their old values.
+   *
+   * @return the kind of write
+   */
+  @Override
+  public WriteKind getWriteKind() {
+    return WriteKind.OVERWRITE;
+  }
+}
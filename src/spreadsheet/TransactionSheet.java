@@ -0,0 +1,372 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents the spreadsheet that a macro sees while it runs as a transaction. Writes
+ * do not reach the underlying spreadsheet but are buffered in a {@link WriteBuffer}, and reads see
+ * the buffered writes over the underlying cells. When the macro is done, {@link #commit()} applies
+ * every buffered write in one pass in row-major order. If the macro fails, {@link #rollback()}
+ * leaves the underlying spreadsheet as it was before the macro.
+ *
+ * <p>Range fills are the exception: buffering them would take memory in proportion to their area,
+ * so they are written straight to the underlying spreadsheet, and only the cells they overwrite
+ * are remembered, for the rollback.
+ */
+final class TransactionSheet implements SpreadSheet {
+
+  private final SpreadSheet base;
+  private final WriteBuffer buffer;
+  // the ranges filled straight in the underlying spreadsheet, and the cells they overwrote
+  private final List<Region> filled;
+  private final WriteBuffer overwritten;
+  // one past the highest row and column set in the buffer
+  private int setHeight;
+  private int setWidth;
+
+  /**
+   * Create a transaction over the given spreadsheet.
+   *
+   * @param base the spreadsheet that the writes are committed to
+   */
+  TransactionSheet(SpreadSheet base) {
+    this.base = base;
+    this.buffer = new WriteBuffer();
+    this.filled = new ArrayList<Region>();
+    this.overwritten = new WriteBuffer();
+  }
+
+  /**
+   * Apply every buffered write to the underlying spreadsheet.
+   */
+  void commit() {
+    this.buffer.applyTo(this.base);
+  }
+
+  /**
+   * Undo what this transaction wrote straight to the underlying spreadsheet: the cells of the
+   * filled ranges are emptied and the cells they overwrote are set back. The buffered writes are
+   * simply dropped.
+   */
+  void rollback() {
+    for (Region range : this.filled) {
+      int lastRow = Math.min(range.getToRow(), this.base.getHeight() - 1);
+      for (int i = range.getFromRow(); i <= lastRow; i++) {
+        for (int j = this.base.nextFilled(i, range.getFromCol()); j >= 0 && j <= range.getToCol();
+            j = j == Integer.MAX_VALUE ? -1 : this.base.nextFilled(i, j + 1)) {
+          this.base.clear(i, j);
+        }
+      }
+    }
+    this.overwritten.applyTo(this.base);
+  }
+
+  /**
+   * Returns the value of the specified cell, as last written in this transaction or else as held
+   * by the underlying spreadsheet.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the value of the cell, or 0 if it is empty
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    switch (this.buffer.state(row, col)) {
+      case WriteBuffer.SET:
+        return this.buffer.value(row, col);
+      case WriteBuffer.CLEARED:
+        return 0;
+      default:
+        return this.base.get(row, col);
+    }
+  }
+
+  /**
+   * Buffers the setting of the specified cell.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    this.buffer.set(row, col, value);
+    this.setHeight = Math.max(this.setHeight, row + 1);
+    this.setWidth = Math.max(this.setWidth, col + 1);
+  }
+
+  /**
+   * Buffers the emptying of the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting at 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void clear(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    this.buffer.clear(row, col);
+  }
+
+  /**
+   * Returns whether the specified cell is empty, as last written in this transaction or else as
+   * held by the underlying spreadsheet.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    switch (this.buffer.state(row, col)) {
+      case WriteBuffer.SET:
+        return false;
+      case WriteBuffer.CLEARED:
+        return true;
+      default:
+        return this.base.isEmpty(row, col);
+    }
+  }
+
+  /**
+   * Return the width of this spreadsheet. Cells set in this transaction are counted, but cells
+   * emptied in it are not taken off until it is committed, so this may be too large by the cells
+   * emptied on the edge.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return Math.max(this.base.getWidth(), this.setWidth);
+  }
+
+  /**
+   * Return the height of this spreadsheet. Cells set in this transaction are counted, but cells
+   * emptied in it are not taken off until it is committed, so this may be too large by the cells
+   * emptied on the edge.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return Math.max(this.base.getHeight(), this.setHeight);
+  }
+
+  /**
+   * Return an estimate of the heap memory used by the underlying spreadsheet and the buffers.
+   *
+   * @return the estimated memory footprint, in bytes
+   */
+  @Override
+  public long memoryFootprint() {
+    return this.base.memoryFootprint() + this.buffer.footprint() + this.overwritten.footprint();
+  }
+
+  /**
+   * Copies the values of a run of cells in one row into the given buffer. The run is read from the
+   * underlying spreadsheet in bulk, and then the cells written in this transaction are patched in.
+   *
+   * @param row     the row number of the cells, starting with 0
+   * @param fromCol the first column to copy, starting with 0
+   * @param toCol   the last column to copy (inclusive)
+   * @param dest    the buffer to copy the values into
+   * @param offset  the position in the buffer of the value of the first column
+   * @throws IllegalArgumentException if the row or columns are negative, the columns are out of
+   *                                  order or the buffer is too small
+   */
+  @Override
+  public void getRow(int row, int fromCol, int toCol, double[] dest, int offset)
+      throws IllegalArgumentException {
+    this.base.getRow(row, fromCol, toCol, dest, offset);
+    if (this.buffer.size() == 0) {
+      return;
+    }
+    for (int j = fromCol; j <= toCol; j++) {
+      byte state = this.buffer.state(row, j);
+      if (state != WriteBuffer.UNWRITTEN) {
+        dest[offset + j - fromCol] = state == WriteBuffer.SET ? this.buffer.value(row, j) : 0;
+      }
+      if (j == Integer.MAX_VALUE) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Fills a range with a sequence of values straight in the underlying spreadsheet, so that the
+   * transaction holds no more than the range itself, whatever its area. Writes buffered earlier for
+   * cells of the range are dropped, since the fill replaces them, and the filled cells of the
+   * underlying spreadsheet in the range are remembered first, for the rollback. Cells that a fill
+   * earlier in this transaction already covered are skipped, since what they held before the
+   * transaction is already remembered, or they were empty.
+   *
+   * @param fromRow    starting row
+   * @param fromCol    starting column
+   * @param toRow      ending row
+   * @param toCol      ending column
+   * @param start      the value of the cell with index 0
+   * @param increment  the difference between the values of consecutive cells
+   * @param firstIndex the index of the top left cell of the range in the sequence
+   * @throws IllegalArgumentException if a row or column is negative or the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double start,
+      double increment, long firstIndex) throws IllegalArgumentException {
+    Region range = new Region(fromRow, fromCol, toRow, toCol);
+    List<Region> earlier = new ArrayList<Region>();
+    for (Region other : this.filled) {
+      if (other.intersects(range)) {
+        earlier.add(other);
+      }
+    }
+    if (this.buffer.size() > 0) {
+      this.buffer.removeRange(range);
+    }
+    int lastRow = Math.min(toRow, this.base.getHeight() - 1);
+    for (int i = fromRow; i <= lastRow; i++) {
+      for (int j = this.base.nextFilled(i, fromCol); j >= 0 && j <= toCol;
+          j = j == Integer.MAX_VALUE ? -1 : this.base.nextFilled(i, j + 1)) {
+        if (!covers(earlier, i, j)) {
+          this.overwritten.set(i, j, this.base.get(i, j));
+        }
+      }
+    }
+    // recorded before the fill, so that a fill that stops part way is rolled back too; a range
+    // that continues the last one, as the bands of one fill do, is merged into it
+    Region last = this.filled.isEmpty() ? null : this.filled.get(this.filled.size() - 1);
+    Region merged = last == null ? null : Region.union(last, range);
+    if (merged != null) {
+      this.filled.set(this.filled.size() - 1, merged);
+    } else {
+      this.filled.add(range);
+    }
+    this.base.fillRange(fromRow, fromCol, toRow, toCol, start, increment, firstIndex);
+  }
+
+  /**
+   * Returns whether one of the given ranges holds a cell.
+   *
+   * @param ranges the ranges
+   * @param row    the row number of the cell
+   * @param col    the column number of the cell
+   * @return true if a range holds the cell, false otherwise
+   */
+  private static boolean covers(List<Region> ranges, int row, int col) {
+    for (Region range : ranges) {
+      if (row >= range.getFromRow() && row <= range.getToRow() && col >= range.getFromCol()
+          && col <= range.getToCol()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Copies a range of cells by buffering writes for the filled cells only: the filled source cells
+   * are gathered, the filled destination cells are emptied, and the gathered cells are set at their
+   * new positions. The source and destination may overlap.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is copied to
+   * @param destCol the column that the starting column is copied to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  @Override
+  public void copyRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws IllegalArgumentException {
+    transfer(fromRow, fromCol, toRow, toCol, destRow, destCol, false);
+  }
+
+  /**
+   * Moves a range of cells by buffering writes for the filled cells only, as for
+   * {@link #copyRange}, emptying the source cells first.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row is moved to
+   * @param destCol the column that the starting column is moved to
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  @Override
+  public void moveRange(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol)
+      throws IllegalArgumentException {
+    transfer(fromRow, fromCol, toRow, toCol, destRow, destCol, true);
+  }
+
+  /**
+   * Copies or moves a range of cells.
+   *
+   * @param fromRow starting row of the source
+   * @param fromCol starting column of the source
+   * @param toRow   ending row of the source
+   * @param toCol   ending column of the source
+   * @param destRow the row that the starting row goes to
+   * @param destCol the column that the starting column goes to
+   * @param move    true to empty the source cells, false to leave them
+   * @throws IllegalArgumentException if a row or column is negative, the range is invalid or the
+   *                                  destination range does not fit in the spreadsheet
+   */
+  private void transfer(int fromRow, int fromCol, int toRow, int toCol, int destRow, int destCol,
+      boolean move) throws IllegalArgumentException {
+    Region.checkTransfer(fromRow, fromCol, toRow, toCol, destRow, destCol);
+    WriteBuffer source = filledCells(fromRow, fromCol, toRow, toCol);
+    if (move) {
+      source.forEach((row, col, set, value) -> clear(row, col), false);
+    }
+    filledCells(destRow, destCol, destRow + (toRow - fromRow), destCol + (toCol - fromCol))
+        .forEach((row, col, set, value) -> clear(row, col), false);
+    source.forEach((row, col, set, value) -> set(destRow + (row - fromRow),
+        destCol + (col - fromCol), value), false);
+  }
+
+  /**
+   * Gathers the filled cells of a range, as seen by this transaction. The underlying spreadsheet
+   * is searched row by row for its filled cells, and the cells set in the buffer are added.
+   *
+   * @param fromRow starting row
+   * @param fromCol starting column
+   * @param toRow   ending row
+   * @param toCol   ending column
+   * @return the filled cells and their values
+   */
+  private WriteBuffer filledCells(int fromRow, int fromCol, int toRow, int toCol) {
+    WriteBuffer cells = new WriteBuffer();
+    int lastRow = Math.min(toRow, this.base.getHeight() - 1);
+    for (int i = fromRow; i <= lastRow; i++) {
+      for (int j = this.base.nextFilled(i, fromCol); j >= 0 && j <= toCol;
+          j = j == Integer.MAX_VALUE ? -1 : this.base.nextFilled(i, j + 1)) {
+        if (this.buffer.state(i, j) == WriteBuffer.UNWRITTEN) {
+          cells.set(i, j, this.base.get(i, j));
+        }
+      }
+    }
+    this.buffer.forEach((row, col, set, value) -> {
+      if (set && row >= fromRow && row <= toRow && col >= fromCol && col <= toCol) {
+        cells.set(row, col, value);
+      }
+    }, false);
+    return cells;
+  }
+}
@@ -0,0 +1,224 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class generates streams of commands in the language of the
+ * {@link SpreadSheetControllerEnhanced}, one command per line, for replaying with the
+ * {@link LoadTester}.
+ *
+ * <p>The stream is shaped by:
+ * <ul>
+ *   <li>the mix: the relative weight of each command, by name;</li>
+ *   <li>the skew: the exponent of a Zipf distribution over the rows, so that with a skew of 0
+ *   every row is equally likely and with a skew of 1 or more a few hot rows get most of the
+ *   traffic;</li>
+ *   <li>the largest number of rows and columns that a range command covers.</li>
+ * </ul>
+ * The same seed always generates the same stream.
+ */
+public class WorkloadGenerator {
+
+  /**
+   * The commands that this generator knows how to generate.
+   */
+  public static final List<String> COMMANDS = List.of("assign-value", "bulk-assign-value",
+      "range-assign", "average", "print-value");
+
+  private final int rows;
+  private final int cols;
+  private final Map<String, Integer> mix;
+  private final int totalWeight;
+  private final int maxRangeSize;
+  private final double[] rowDistribution;
+  private final Random random;
+
+  /**
+   * Create a generator.
+   *
+   * @param rows         the number of rows that commands address
+   * @param cols         the number of columns that commands address
+   * @param mix          the relative weight of each command, by name
+   * @param skew         the Zipf exponent of the row distribution, 0 for uniform
+   * @param maxRangeSize the largest number of rows and of columns covered by a range command
+   * @param seed         the seed of the stream
+   * @throws IllegalArgumentException if the area, mix, skew or range size are invalid
+   */
+  public WorkloadGenerator(int rows, int cols, Map<String, Integer> mix, double skew,
+      int maxRangeSize, long seed) throws IllegalArgumentException {
+    if (rows <= 0 || cols <= 0) {
+      throw new IllegalArgumentException("Area must have at least one cell");
+    }
+    if (skew < 0) {
+      throw new IllegalArgumentException("Skew cannot be negative");
+    }
+    if (maxRangeSize <= 0) {
+      throw new IllegalArgumentException("Range size must be positive");
+    }
+    if (mix == null || mix.isEmpty()) {
+      throw new IllegalArgumentException("Mix cannot be empty");
+    }
+    int total = 0;
+    for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+      if (!COMMANDS.contains(entry.getKey())) {
+        throw new IllegalArgumentException("Unknown command: " + entry.getKey());
+      }
+      if (entry.getValue() == null || entry.getValue() < 0) {
+        throw new IllegalArgumentException("Weight cannot be negative");
+      }
+      total += entry.getValue();
+    }
+    if (total == 0) {
+      throw new IllegalArgumentException("Mix must have a positive weight");
+    }
+    this.rows = rows;
+    this.cols = cols;
+    this.mix = new LinkedHashMap<String, Integer>(mix);
+    this.totalWeight = total;
+    this.maxRangeSize = maxRangeSize;
+    this.rowDistribution = zipf(rows, skew);
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Returns the default mix: mostly single-cell reads and writes with occasional range commands.
+   *
+   * @return the default mix
+   */
+  public static Map<String, Integer> defaultMix() {
+    Map<String, Integer> mix = new LinkedHashMap<String, Integer>();
+    mix.put("assign-value", 40);
+    mix.put("print-value", 40);
+    mix.put("bulk-assign-value", 10);
+    mix.put("range-assign", 5);
+    mix.put("average", 5);
+    return mix;
+  }
+
+  /**
+   * Generate the given number of commands.
+   *
+   * @param count the number of commands
+   * @return the commands, one per element, without line separators
+   */
+  public List<String> generate(int count) {
+    List<String> commands = new ArrayList<String>(count);
+    for (int k = 0; k < count; k++) {
+      commands.add(next());
+    }
+    return commands;
+  }
+
+  /**
+   * Generate the next command.
+   *
+   * @return the command, without a line separator
+   */
+  public String next() {
+    String command = pickCommand();
+    int row = pickRow();
+    switch (command) {
+      case "assign-value":
+        // single cell commands use column numbers starting with 1
+        return command + " " + rowLetters(row) + " " + (this.random.nextInt(this.cols) + 1) + " "
+            + this.random.nextInt(1000);
+      case "print-value":
+        return command + " " + rowLetters(row) + " " + (this.random.nextInt(this.cols) + 1);
+      default:
+        break;
+    }
+    int toRow = Math.min(this.rows - 1, row + this.random.nextInt(this.maxRangeSize));
+    int fromCol = this.random.nextInt(this.cols);
+    int toCol = Math.min(this.cols - 1, fromCol + this.random.nextInt(this.maxRangeSize));
+    String range = command + " " + rowLetters(row) + " " + fromCol + " " + rowLetters(toRow) + " "
+        + toCol;
+    switch (command) {
+      case "bulk-assign-value":
+        return range + " " + this.random.nextInt(1000);
+      case "range-assign":
+        return range + " " + this.random.nextInt(1000) + " " + (this.random.nextInt(10) + 1);
+      default:
+        return range + " " + rowLetters(pickRow()) + " " + this.random.nextInt(this.cols);
+    }
+  }
+
+  /**
+   * Returns the row letters of a row number starting with 0, the inverse of
+   * {@link SpreadSheetController#getRowNum(String)}: 0 is A, 25 is Z, 26 is AA and so on.
+   *
+   * @param row the row number
+   * @return the row letters
+   */
+  public static String rowLetters(int row) {
+    StringBuilder letters = new StringBuilder();
+    long n = (long) row + 1;
+    while (n > 0) {
+      n--;
+      letters.append((char) ('A' + n % 26));
+      n /= 26;
+    }
+    return letters.reverse().toString();
+  }
+
+  /**
+   * Pick a command according to the mix.
+   *
+   * @return the name of the command
+   */
+  private String pickCommand() {
+    int ticket = this.random.nextInt(this.totalWeight);
+    for (Map.Entry<String, Integer> entry : this.mix.entrySet()) {
+      ticket -= entry.getValue();
+      if (ticket < 0) {
+        return entry.getKey();
+      }
+    }
+    throw new IllegalStateException("Mix is empty");
+  }
+
+  /**
+   * Pick a row according to the row distribution.
+   *
+   * @return the row number, starting with 0
+   */
+  private int pickRow() {
+    double u = this.random.nextDouble();
+    int low = 0;
+    int high = this.rowDistribution.length - 1;
+    // the first row whose cumulative probability exceeds u
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (this.rowDistribution[mid] > u) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the cumulative Zipf distribution over the given number of rows.
+   *
+   * @param rows the number of rows
+   * @param skew the exponent
+   * @return the cumulative probability of each row
+   */
+  private static double[] zipf(int rows, double skew) {
+    double[] cumulative = new double[rows];
+    double total = 0;
+    for (int i = 0; i < rows; i++) {
+      total += 1 / Math.pow(i + 1, skew);
+      cumulative[i] = total;
+    }
+    for (int i = 0; i < rows; i++) {
+      cumulative[i] /= total;
+    }
+    cumulative[rows - 1] = 1;
+    return cumulative;
+  }
+}
@@ -0,0 +1,274 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * This class buffers writes to cells: for every cell written, whether it was last set, and to
+ * what value, or emptied. It is an open-addressing hash table with linear probing over primitive
+ * arrays keyed by the packed position of the cell, so buffering a write allocates nothing beyond
+ * the occasional growth of the table.
+ *
+ * <p>The buffered writes can be visited in row-major order, so that they are applied to the
+ * storage in one pass that touches each row once.
+ */
+final class WriteBuffer {
+
+  /**
+   * The state of a cell that has not been written.
+   */
+  static final byte UNWRITTEN = 0;
+
+  /**
+   * The state of a cell that was last set.
+   */
+  static final byte SET = 1;
+
+  /**
+   * The state of a cell that was last emptied.
+   */
+  static final byte CLEARED = 2;
+
+  private long[] keys;
+  private double[] values;
+  private byte[] states;
+  private int size;
+
+  /**
+   * Create an empty buffer.
+   */
+  WriteBuffer() {
+    this.keys = new long[16];
+    this.values = new double[16];
+    this.states = new byte[16];
+  }
+
+  /**
+   * Returns the number of cells written.
+   *
+   * @return the number of cells written
+   */
+  int size() {
+    return this.size;
+  }
+
+  /**
+   * Buffer the setting of a cell.
+   *
+   * @param row   the row number of the cell
+   * @param col   the column number of the cell
+   * @param value the value of the cell
+   */
+  void set(int row, int col, double value) {
+    put(key(row, col), SET, value);
+  }
+
+  /**
+   * Buffer the emptying of a cell.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   */
+  void clear(int row, int col) {
+    put(key(row, col), CLEARED, 0);
+  }
+
+  /**
+   * Forget every write buffered for the cells of a range. The table is rebuilt from the writes
+   * outside the range, since linear probing cannot simply empty a slot.
+   *
+   * @param range the range of cells to forget
+   */
+  void removeRange(Region range) {
+    long[] oldKeys = this.keys;
+    double[] oldValues = this.values;
+    byte[] oldStates = this.states;
+    this.keys = new long[oldKeys.length];
+    this.values = new double[oldKeys.length];
+    this.states = new byte[oldKeys.length];
+    this.size = 0;
+    for (int k = 0; k < oldKeys.length; k++) {
+      int row = (int) (oldKeys[k] >>> 32);
+      int col = (int) oldKeys[k];
+      if (oldStates[k] != UNWRITTEN && (row < range.getFromRow() || row > range.getToRow()
+          || col < range.getFromCol() || col > range.getToCol())) {
+        int slot = slot(oldKeys[k]);
+        this.keys[slot] = oldKeys[k];
+        this.values[slot] = oldValues[k];
+        this.states[slot] = oldStates[k];
+        this.size++;
+      }
+    }
+  }
+
+  /**
+   * Returns what was last buffered for a cell.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return UNWRITTEN, SET or CLEARED
+   */
+  byte state(int row, int col) {
+    return this.states[slot(key(row, col))];
+  }
+
+  /**
+   * Returns the value buffered for a cell.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the value, or 0 if the cell was not set
+   */
+  double value(int row, int col) {
+    return this.values[slot(key(row, col))];
+  }
+
+  /**
+   * Visit every buffered write, in row-major order if asked.
+   *
+   * @param visitor the visitor
+   * @param sorted  true to visit the cells in row-major order, false for any order
+   */
+  void forEach(Visitor visitor, boolean sorted) {
+    if (!sorted) {
+      for (int s = 0; s < this.keys.length; s++) {
+        if (this.states[s] != UNWRITTEN) {
+          visit(visitor, s);
+        }
+      }
+      return;
+    }
+    long[] order = new long[this.size];
+    int k = 0;
+    for (int s = 0; s < this.keys.length; s++) {
+      if (this.states[s] != UNWRITTEN) {
+        order[k++] = this.keys[s];
+      }
+    }
+    Arrays.sort(order);
+    for (long key : order) {
+      visit(visitor, slot(key));
+    }
+  }
+
+  /**
+   * Apply every buffered write to a spreadsheet, in row-major order.
+   *
+   * @param sheet the spreadsheet to write to
+   */
+  void applyTo(SpreadSheet sheet) {
+    forEach((row, col, set, value) -> {
+      if (set) {
+        sheet.set(row, col, value);
+      } else {
+        sheet.clear(row, col);
+      }
+    }, true);
+  }
+
+  /**
+   * Returns the estimated heap memory used by this buffer, in bytes.
+   *
+   * @return the memory footprint
+   */
+  long footprint() {
+    return MemoryLayout.align(MemoryLayout.OBJECT_HEADER + 3 * MemoryLayout.REFERENCE + 4)
+        + MemoryLayout.array(this.keys.length, 8) + MemoryLayout.array(this.values.length, 8)
+        + MemoryLayout.array(this.states.length, 1);
+  }
+
+  /**
+   * Call a visitor for the write in a slot.
+   *
+   * @param visitor the visitor
+   * @param slot    the slot
+   */
+  private void visit(Visitor visitor, int slot) {
+    long key = this.keys[slot];
+    visitor.visit((int) (key >>> 32), (int) key, this.states[slot] == SET, this.values[slot]);
+  }
+
+  /**
+   * Record a write in the table, growing it first if it would become more than half full.
+   *
+   * @param key   the packed position of the cell
+   * @param state SET or CLEARED
+   * @param value the value of the cell
+   */
+  private void put(long key, byte state, double value) {
+    int slot = slot(key);
+    if (this.states[slot] == UNWRITTEN) {
+      if ((this.size + 1) * 2 > this.keys.length) {
+        grow();
+        slot = slot(key);
+      }
+      this.keys[slot] = key;
+      this.size++;
+    }
+    this.states[slot] = state;
+    this.values[slot] = value;
+  }
+
+  /**
+   * Returns the slot that holds a key, or the free slot where it would go.
+   *
+   * @param key the packed position of a cell
+   * @return the slot
+   */
+  private int slot(long key) {
+    int mask = this.keys.length - 1;
+    long h = key * 0x9E3779B97F4A7C15L;
+    int slot = (int) (h ^ (h >>> 32)) & mask;
+    while (this.states[slot] != UNWRITTEN && this.keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Double the size of the table.
+   */
+  private void grow() {
+    long[] oldKeys = this.keys;
+    double[] oldValues = this.values;
+    byte[] oldStates = this.states;
+    this.keys = new long[oldKeys.length * 2];
+    this.values = new double[oldKeys.length * 2];
+    this.states = new byte[oldKeys.length * 2];
+    for (int k = 0; k < oldKeys.length; k++) {
+      if (oldStates[k] != UNWRITTEN) {
+        int slot = slot(oldKeys[k]);
+        this.keys[slot] = oldKeys[k];
+        this.values[slot] = oldValues[k];
+        this.states[slot] = oldStates[k];
+      }
+    }
+  }
+
+  /**
+   * Returns the packed position of a cell: the row in the high and the column in the low 32 bits,
+   * so that packed positions sort in row-major order.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the packed position
+   */
+  private static long key(int row, int col) {
+    return ((long) row << 32) | col;
+  }
+
+  /**
+   * Something that is told about buffered writes.
+   */
+  interface Visitor {
+
+    /**
+     * Called for one buffered write.
+     *
+     * @param row   the row number of the cell
+     * @param col   the column number of the cell
+     * @param set   true if the cell was set, false if it was emptied
+     * @param value the value the cell was set to, or 0 if it was emptied
+     */
+    void visit(int row, int col, boolean set, double value);
+  }
+}
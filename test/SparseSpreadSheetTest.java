@@ -1,7 +1,23 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.junit.Before;
 import org.junit.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import spreadsheet.EnhancedSpreadSheet;
 import spreadsheet.MacroSpreadSheet;
 import spreadsheet.SpreadSheet;
@@ -10,7 +26,24 @@ import spreadsheet.SpreadSheetControllerEnhanced;
 import spreadsheet.SpreadSheetMacro;
 import spreadsheet.BulkAssignMacro;
 import spreadsheet.AverageMacro;
+import spreadsheet.AggregateMacro;
+import spreadsheet.StatisticsMacro;
+import spreadsheet.MacroPlanner;
+import spreadsheet.WorkloadGenerator;
+import spreadsheet.LoadTester;
+import spreadsheet.MemoryBenchmark;
+import spreadsheet.SortMacro;
+import spreadsheet.CopyRangeMacro;
+import spreadsheet.MoveRangeMacro;
+import spreadsheet.Region;
 import spreadsheet.RangeMacro;
+import spreadsheet.AutoSaver;
+import spreadsheet.ShardedSpreadSheet;
+import spreadsheet.FrozenSpreadSheet;
+import spreadsheet.AdaptiveSpreadSheet;
+import spreadsheet.AutoSavingSpreadSheet;
+import spreadsheet.SpreadSheetServer;
+import spreadsheet.AsyncMacroExecutor;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
@@ -292,5 +325,1272 @@ public class SparseSpreadSheetTest {
     controller.processCommand(sheet);
   }
 
+  /**
+   * Tests the sum, min and max aggregates, which count empty cells as 0.
+   */
+  @Test
+  public void testAggregateMacro() {
+    EnhancedSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.executeMacro(new RangeMacro(0, 0, 2, 4, 1, 1));
+    enhancedSheet.set(3, 0, -2);
+    enhancedSheet.executeMacro(new AggregateMacro(AggregateMacro.Function.SUM, 0, 0, 3, 4, 5, 0));
+    enhancedSheet.executeMacro(new AggregateMacro(AggregateMacro.Function.MIN, 0, 0, 3, 4, 5, 1));
+    enhancedSheet.executeMacro(new AggregateMacro(AggregateMacro.Function.MAX, 0, 0, 3, 4, 5, 2));
+    enhancedSheet.executeMacro(new AverageMacro(0, 0, 3, 4, 5, 3));
+    assertEquals(118, enhancedSheet.get(5, 0), 0.01);
+    assertEquals(-2, enhancedSheet.get(5, 1), 0.01);
+    assertEquals(15, enhancedSheet.get(5, 2), 0.01);
+    assertEquals(5.9, enhancedSheet.get(5, 3), 0.01);
+  }
+
+  /**
+   * Tests the aggregates of a range that ends at the last row and is wider than one run of the
+   * buffer.
+   */
+  @Test
+  public void testAggregateMacroAtLastRow() {
+    EnhancedSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    int last = Integer.MAX_VALUE;
+    enhancedSheet.set(last - 1, 0, 3);
+    enhancedSheet.set(last, 4095, -1);
+    enhancedSheet.set(last, 9999, 8);
+    enhancedSheet.executeMacro(
+        new AggregateMacro(AggregateMacro.Function.SUM, last - 1, 0, last, 9999, 0, 0));
+    enhancedSheet.executeMacro(
+        new AggregateMacro(AggregateMacro.Function.MIN, last - 1, 0, last, 9999, 0, 1));
+    enhancedSheet.executeMacro(
+        new AggregateMacro(AggregateMacro.Function.MAX, last - 1, 0, last, 9999, 0, 2));
+    enhancedSheet.executeMacro(new AverageMacro(last - 1, 0, last, 9999, 0, 3));
+    assertEquals(10, enhancedSheet.get(0, 0), 0.01);
+    assertEquals(-1, enhancedSheet.get(0, 1), 0.01);
+    assertEquals(8, enhancedSheet.get(0, 2), 0.01);
+    assertEquals(0.0005, enhancedSheet.get(0, 3), 1e-9);
+  }
+
+  /**
+   * Tests the sum command.
+   */
+  @Test
+  public void testSum() {
+    Appendable appendable = new StringBuilder();
+    MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.set(0, 0, 1);
+    enhancedSheet.set(1, 1, 4);
+    SpreadSheetControllerEnhanced controller = new SpreadSheetControllerEnhanced(enhancedSheet,
+        new StringReader("sum \nA\n0\nB\n1\nC\n2\nquit"), appendable);
+    controller.processCommand(enhancedSheet);
+    assertEquals(5, enhancedSheet.get(2, 2), 0.01);
+  }
+
+  /**
+   * Tests the StatisticsMacro, which counts only non-empty cells but treats empty cells as 0.
+   */
+  @Test
+  public void testStatisticsMacro() {
+    EnhancedSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.set(0, 0, 2);
+    enhancedSheet.set(0, 1, 4);
+    enhancedSheet.set(1, 0, 4);
+    enhancedSheet.set(1, 1, 4);
+    enhancedSheet.set(2, 0, 5);
+    enhancedSheet.set(2, 1, 5);
+    enhancedSheet.set(3, 0, 7);
+    enhancedSheet.set(3, 1, 9);
+    enhancedSheet.executeMacro(new StatisticsMacro(0, 0, 3, 2, 5, 0,
+        StatisticsMacro.parse("sum,count,min,max,mean,stddev")));
+    assertEquals(40, enhancedSheet.get(5, 0), 0.01);
+    assertEquals(8, enhancedSheet.get(5, 1), 0.01);
+    assertEquals(0, enhancedSheet.get(5, 2), 0.01);
+    assertEquals(9, enhancedSheet.get(5, 3), 0.01);
+    assertEquals(40.0 / 12, enhancedSheet.get(5, 4), 0.01);
+    assertEquals(2.8674, enhancedSheet.get(5, 5), 0.001);
+  }
+
+  /**
+   * Tests the statistics command.
+   */
+  @Test
+  public void testStatistics() {
+    Appendable appendable = new StringBuilder();
+    MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.set(0, 0, 2);
+    enhancedSheet.set(1, 1, 4);
+    SpreadSheetControllerEnhanced controller = new SpreadSheetControllerEnhanced(enhancedSheet,
+        new StringReader("statistics \nA\n0\nB\n1\nC\n0\nmax,count\nquit"), appendable);
+    controller.processCommand(enhancedSheet);
+    assertEquals(4, enhancedSheet.get(2, 0), 0.01);
+    assertEquals(2, enhancedSheet.get(2, 1), 0.01);
+  }
+
+  /**
+   * Unknown statistic.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownStatistic() {
+    StatisticsMacro.parse("mean,median");
+  }
+
+  /**
+   * Tests that the planner drops overwritten macros, merges bulk assignments and keeps macros
+   * whose writes are read.
+   */
+  @Test
+  public void testMacroPlanner() {
+    List<SpreadSheetMacro> plan = MacroPlanner.plan(Arrays.asList(
+        new RangeMacro(0, 0, 1, 1, 1, 1),
+        new BulkAssignMacro(0, 0, 0, 3, 7),
+        new BulkAssignMacro(1, 0, 1, 3, 7),
+        new AverageMacro(0, 0, 1, 3, 4, 4),
+        new BulkAssignMacro(2, 0, 2, 0, 1),
+        new BulkAssignMacro(2, 0, 2, 0, 2)));
+    assertEquals(3, plan.size());
+    assertTrue(plan.get(0) instanceof BulkAssignMacro);
+    assertTrue(plan.get(1) instanceof AverageMacro);
+    assertTrue(plan.get(2) instanceof BulkAssignMacro);
+
+    EnhancedSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.executeMacros(plan);
+    assertEquals(7, enhancedSheet.get(1, 3), 0.01);
+    assertEquals(7, enhancedSheet.get(4, 4), 0.01);
+    assertEquals(2, enhancedSheet.get(2, 0), 0.01);
+  }
+
+  /**
+   * Tests the batch command.
+   */
+  @Test
+  public void testBatch() {
+    Appendable appendable = new StringBuilder();
+    MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    SpreadSheetControllerEnhanced controller = new SpreadSheetControllerEnhanced(enhancedSheet,
+        new StringReader("batch\nbulk-assign-value A 0 B 1 3\nsum A 0 B 1 C 0\n"
+            + "range-assign A 0 A 1 1 1\nend-batch\nquit"), appendable);
+    controller.processCommand(enhancedSheet);
+    assertEquals(12, enhancedSheet.get(2, 0), 0.01);
+    assertEquals(2, enhancedSheet.get(0, 1), 0.01);
+  }
+
+  /**
+   * Tests that the memory footprint counts an entry, a key and a boxed value for every cell.
+   */
+  @Test
+  public void testMemoryFootprint() {
+    long empty = sheet.memoryFootprint();
+    assertTrue(empty > 0);
+    for (int i = 0; i < 100; i = i + 1) {
+      for (int j = 0; j < 100; j = j + 1) {
+        sheet.set(i, j, i * j);
+      }
+    }
+    double perCell = (sheet.memoryFootprint() - empty) / 10000.0;
+    assertTrue(perCell >= 80 && perCell <= 100);
+  }
+
+  /**
+   * Tests that the enhanced controller still handles the single cell commands.
+   */
+  @Test
+  public void testEnhancedPrintValue() {
+    StringBuilder appendable = new StringBuilder();
+    MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.set(1, 2, 8);
+    SpreadSheetControllerEnhanced controller = new SpreadSheetControllerEnhanced(enhancedSheet,
+        new StringReader("print-value B 3\nquit"), appendable);
+    controller.processCommand(enhancedSheet);
+    assertEquals("Value: 8.0" + System.lineSeparator(), appendable.toString());
+  }
+
+  /**
+   * Tests that generated workloads are repeatable and replay without errors in both modes.
+   */
+  @Test
+  public void testWorkloadReplay() {
+    List<String> commands = new WorkloadGenerator(100, 20, WorkloadGenerator.defaultMix(), 1.0,
+        5, 7).generate(500);
+    assertEquals(commands, new WorkloadGenerator(100, 20, WorkloadGenerator.defaultMix(), 1.0,
+        5, 7).generate(500));
+    assertEquals("AA", WorkloadGenerator.rowLetters(26));
+
+    MacroSpreadSheet viaController = new EnhancedSpreadSheet();
+    MacroSpreadSheet direct = new EnhancedSpreadSheet();
+    LoadTester.Report report = new LoadTester(viaController, LoadTester.Mode.CONTROLLER)
+        .replay(commands, 0);
+    assertEquals(500, report.getCommands());
+    assertEquals(0, report.getErrors());
+    assertEquals(0, new LoadTester(direct, LoadTester.Mode.DIRECT).replay(commands, 0)
+        .getErrors());
+    assertTrue(report.getLatency(50) <= report.getLatency(99));
+    for (int i = 0; i < 100; i = i + 1) {
+      for (int j = 0; j < 20; j = j + 1) {
+        assertEquals(viaController.get(i, j), direct.get(i, j), 0.0);
+      }
+    }
+  }
+
+  /**
+   * Tests the clear method and that clearing an edge cell shrinks the spreadsheet.
+   */
+  @Test
+  public void testClear() {
+    sheet.set(1, 1, 3);
+    sheet.set(4, 6, 2);
+    sheet.clear(4, 6);
+    sheet.clear(9, 9);
+    assertTrue(sheet.isEmpty(4, 6));
+    assertEquals(0, sheet.get(4, 6), 0.0);
+    assertEquals(2, sheet.getWidth());
+    assertEquals(2, sheet.getHeight());
+  }
+
+  /**
+   * Tests the SortMacro on several columns, carrying rows and keeping empty cells empty.
+   */
+  @Test
+  public void testSortMacro() {
+    EnhancedSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.set(0, 0, 3);
+    enhancedSheet.set(0, 1, 30);
+    enhancedSheet.set(1, 1, 99);
+    enhancedSheet.set(2, 0, 1);
+    enhancedSheet.set(3, 0, 2);
+    enhancedSheet.set(3, 1, 20);
+    enhancedSheet.executeMacro(new SortMacro(0, 0, 3, 1, 0, true));
+    assertEquals(1, enhancedSheet.get(0, 0), 0.0);
+    assertTrue(enhancedSheet.isEmpty(0, 1));
+    assertEquals(2, enhancedSheet.get(1, 0), 0.0);
+    assertEquals(20, enhancedSheet.get(1, 1), 0.0);
+    assertEquals(3, enhancedSheet.get(2, 0), 0.0);
+    assertEquals(30, enhancedSheet.get(2, 1), 0.0);
+    assertTrue(enhancedSheet.isEmpty(3, 0));
+    assertEquals(99, enhancedSheet.get(3, 1), 0.0);
+  }
+
+  /**
+   * Tests the sort command on a single column in descending order.
+   */
+  @Test
+  public void testSortColumn() {
+    Appendable appendable = new StringBuilder();
+    MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.set(0, 0, 5);
+    enhancedSheet.set(2, 0, 7);
+    enhancedSheet.set(3, 0, -1);
+    SpreadSheetControllerEnhanced controller = new SpreadSheetControllerEnhanced(enhancedSheet,
+        new StringReader("sort A 0 D 0 0 desc\nquit"), appendable);
+    controller.processCommand(enhancedSheet);
+    assertEquals(7, enhancedSheet.get(0, 0), 0.0);
+    assertEquals(5, enhancedSheet.get(1, 0), 0.0);
+    assertEquals(-1, enhancedSheet.get(2, 0), 0.0);
+    assertTrue(enhancedSheet.isEmpty(3, 0));
+  }
+
+  /**
+   * Tests that copying and moving overlapping ranges keeps empty cells empty, both through the
+   * sparse block transfer and through the cell by cell default.
+   */
+  @Test
+  public void testCopyAndMoveRange() {
+    int[][] shifts = {{1, 2}, {0, 0}, {3, 0}, {0, 1}};
+    for (int[] shift : shifts) {
+      for (boolean move : new boolean[] {false, true}) {
+        SpreadSheet sparse = new SparseSpreadSheet();
+        SpreadSheet cellByCell = cellByCell(new SparseSpreadSheet());
+        Double[][] expected = new Double[10][10];
+        Random r = new Random(5);
+        for (int i = 0; i < 6; i = i + 1) {
+          for (int j = 0; j < 6; j = j + 1) {
+            if (r.nextBoolean()) {
+              sparse.set(i, j, i * 10 + j);
+              cellByCell.set(i, j, i * 10 + j);
+              expected[i][j] = (double) (i * 10 + j);
+            }
+          }
+        }
+        Double[][] before = new Double[10][];
+        for (int i = 0; i < 10; i = i + 1) {
+          before[i] = expected[i].clone();
+        }
+        for (int i = 0; i < 4; i = i + 1) {
+          for (int j = 0; j < 4; j = j + 1) {
+            if (move) {
+              expected[i][j] = null;
+            }
+          }
+        }
+        for (int i = 0; i < 4; i = i + 1) {
+          for (int j = 0; j < 4; j = j + 1) {
+            expected[i + shift[0]][j + shift[1]] = before[i][j];
+          }
+        }
+        SpreadSheetMacro macro = move ? new MoveRangeMacro(0, 0, 3, 3, shift[0], shift[1])
+            : new CopyRangeMacro(0, 0, 3, 3, shift[0], shift[1]);
+        macro.execute(sparse);
+        macro.execute(cellByCell);
+        for (int i = 0; i < 10; i = i + 1) {
+          for (int j = 0; j < 10; j = j + 1) {
+            assertEquals(expected[i][j] == null, sparse.isEmpty(i, j));
+            assertEquals(expected[i][j] == null, cellByCell.isEmpty(i, j));
+            assertEquals(sparse.get(i, j), cellByCell.get(i, j), 0.0);
+            if (expected[i][j] != null) {
+              assertEquals(expected[i][j], sparse.get(i, j), 0.0);
+            }
+          }
+        }
+        assertEquals(cellByCell.getHeight(), sparse.getHeight());
+        assertEquals(cellByCell.getWidth(), sparse.getWidth());
+      }
+    }
+  }
+
+  /**
+   * Tests that a macro is reported as one region and that single cell writes are coalesced.
+   */
+  @Test
+  public void testChangeListener() throws InterruptedException {
+    EnhancedSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    List<Region> changes = new ArrayList<Region>();
+    CountDownLatch macroSeen = new CountDownLatch(1);
+    CountDownLatch cellsSeen = new CountDownLatch(1);
+    enhancedSheet.addChangeListener(regions -> {
+      synchronized (changes) {
+        changes.addAll(regions);
+        if (changes.contains(new Region(0, 0, 99, 99))) {
+          macroSeen.countDown();
+        }
+        if (changes.contains(new Region(105, 0, 105, 2))) {
+          cellsSeen.countDown();
+        }
+      }
+    });
+    enhancedSheet.executeMacro(new BulkAssignMacro(0, 0, 99, 99, 1));
+    assertTrue(macroSeen.await(5, TimeUnit.SECONDS));
+    enhancedSheet.set(105, 0, 1);
+    enhancedSheet.set(105, 1, 1);
+    enhancedSheet.set(105, 2, 1);
+    assertTrue(cellsSeen.await(5, TimeUnit.SECONDS));
+    synchronized (changes) {
+      assertFalse(changes.contains(new Region(105, 1, 105, 1)));
+    }
+  }
+
+  /**
+   * Tests that a listener that throws is reported and does not stop the others being notified.
+   */
+  @Test
+  public void testChangeListenerFailureIsReported() throws InterruptedException {
+    Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+    List<Throwable> reported = new ArrayList<Throwable>();
+    CountDownLatch failed = new CountDownLatch(1);
+    CountDownLatch notified = new CountDownLatch(1);
+    Thread.setDefaultUncaughtExceptionHandler((thread, e) -> {
+      synchronized (reported) {
+        reported.add(e);
+      }
+      failed.countDown();
+    });
+    try {
+      EnhancedSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+      enhancedSheet.addChangeListener(regions -> {
+        throw new IllegalStateException("broken listener");
+      });
+      enhancedSheet.addChangeListener(regions -> notified.countDown());
+      enhancedSheet.set(0, 0, 1);
+      assertTrue(failed.await(5, TimeUnit.SECONDS));
+      assertTrue(notified.await(5, TimeUnit.SECONDS));
+      synchronized (reported) {
+        assertEquals("broken listener", reported.get(0).getMessage());
+      }
+    } finally {
+      Thread.setDefaultUncaughtExceptionHandler(previous);
+    }
+  }
+
+  /**
+   * Tests that moving a range is reported as the source and destination ranges, not cell by cell.
+   */
+  @Test
+  public void testMoveRangeReportsRanges() throws InterruptedException {
+    EnhancedSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.set(0, 0, 1);
+    enhancedSheet.set(1, 1, 2);
+    List<Region> changes = new ArrayList<Region>();
+    CountDownLatch seen = new CountDownLatch(1);
+    enhancedSheet.addChangeListener(regions -> {
+      synchronized (changes) {
+        changes.addAll(regions);
+        if (changes.contains(new Region(0, 0, 1, 1))
+            && changes.contains(new Region(10, 10, 11, 11))) {
+          seen.countDown();
+        }
+      }
+    });
+    enhancedSheet.moveRange(0, 0, 1, 1, 10, 10);
+    assertTrue(seen.await(5, TimeUnit.SECONDS));
+    assertEquals(2, enhancedSheet.get(11, 11), 0.0001);
+    assertTrue(enhancedSheet.isEmpty(0, 0));
+    synchronized (changes) {
+      assertFalse(changes.contains(new Region(10, 10, 10, 10)));
+    }
+  }
+
+  /**
+   * Tests that the saver only saves changed tiles and that the saved cells, including cleared ones,
+   * are recovered.
+   */
+  @Test
+  public void testAutoSave() throws IOException {
+    Path directory = Files.createTempDirectory("autosave");
+    AutoSaver saver = new AutoSaver(directory, 60000, 1000);
+    AutoSavingSpreadSheet savingSheet = new AutoSavingSpreadSheet(new EnhancedSpreadSheet(), saver);
+    savingSheet.set(3, 4, 2.5);
+    savingSheet.set(200, 70, -1);
+    savingSheet.executeMacro(new BulkAssignMacro(10, 10, 19, 19, 7));
+    assertEquals(2, saver.getDirtyTileCount());
+    saver.flush();
+    assertEquals(0, saver.getDirtyTileCount());
+    savingSheet.clear(15, 15);
+    savingSheet.clear(200, 70);
+    savingSheet.close();
+
+    SpreadSheet recovered = new SparseSpreadSheet();
+    AutoSaver.load(directory, recovered);
+    assertEquals(2.5, recovered.get(3, 4), 0.0001);
+    assertEquals(7, recovered.get(10, 10), 0.0001);
+    assertEquals(7, recovered.get(19, 19), 0.0001);
+    assertTrue(recovered.isEmpty(15, 15));
+    assertTrue(recovered.isEmpty(200, 70));
+    assertTrue(recovered.isEmpty(20, 20));
+  }
+
+  /**
+   * Tests that range fills are recorded as ranges and saved with the cells written around them.
+   */
+  @Test
+  public void testAutoSaveRecordsRanges() throws IOException {
+    Path directory = Files.createTempDirectory("autosave");
+    AutoSaver saver = new AutoSaver(directory, 60000, 1000000);
+    AutoSavingSpreadSheet savingSheet = new AutoSavingSpreadSheet(new EnhancedSpreadSheet(), saver);
+    savingSheet.set(5, 5, -3);
+    savingSheet.set(900, 900, 4);
+    savingSheet.executeMacro(s -> {
+      new RangeMacro(0, 0, 999, 999, 0, 1).execute(s);
+      s.set(10, 10, -1);
+      s.clear(20, 20);
+    });
+    assertEquals(256, saver.getDirtyTileCount());
+    savingSheet.executeMacro(new BulkAssignMacro(64, 0, 127, 127, 2));
+    savingSheet.close();
+
+    SpreadSheet recovered = new SparseSpreadSheet();
+    AutoSaver.load(directory, recovered);
+    assertEquals(999999, recovered.countFilled(0, 0, 9999, 9999));
+    assertEquals(5005, recovered.get(5, 5), 0.0001);
+    assertEquals(900900, recovered.get(900, 900), 0.0001);
+    assertEquals(-1, recovered.get(10, 10), 0.0001);
+    assertTrue(recovered.isEmpty(20, 20));
+    assertEquals(2, recovered.get(100, 100), 0.0001);
+    assertEquals(999999, recovered.get(999, 999), 0.0001);
+  }
+
+  /**
+   * Tests that closing twice is harmless and that a write after closing is refused.
+   */
+  @Test(expected = IllegalStateException.class)
+  public void testAutoSaveAfterClose() throws IOException {
+    Path directory = Files.createTempDirectory("autosave");
+    AutoSavingSpreadSheet saving = new AutoSavingSpreadSheet(new EnhancedSpreadSheet(),
+        new AutoSaver(directory, 60000, 1));
+    saving.set(0, 0, 1);
+    saving.close();
+    saving.close();
+    saving.set(70, 70, 2);
+  }
+
+  /**
+   * Tests that reads and writes through a view, and through a view of a view, reach the right cells
+   * of the sheet.
+   */
+  @Test
+  public void testView() {
+    sheet.set(10, 20, 5);
+    sheet.set(12, 23, 7);
+    SpreadSheet window = sheet.view(10, 20, 19, 29);
+    assertEquals(5, window.get(0, 0), 0.0001);
+    assertEquals(7, window.get(2, 3), 0.0001);
+    assertTrue(window.isEmpty(1, 1));
+    assertEquals(3, window.getHeight());
+    assertEquals(4, window.getWidth());
+
+    window.set(9, 9, 1);
+    assertEquals(1, sheet.get(19, 29), 0.0001);
+    window.clear(0, 0);
+    assertTrue(sheet.isEmpty(10, 20));
+
+    SpreadSheet inner = window.view(2, 3, 9, 9);
+    assertEquals(7, inner.get(0, 0), 0.0001);
+    inner.set(1, 1, 4);
+    assertEquals(4, sheet.get(13, 24), 0.0001);
+
+    double[] row = new double[3];
+    inner.getRow(0, 0, 2, row, 0);
+    assertEquals(7, row[0], 0.0001);
+    inner.setRow(2, 0, new double[] {1, 2, 3}, 0, 3);
+    assertEquals(3, sheet.get(14, 25), 0.0001);
+
+    window.copyRange(2, 3, 3, 4, 5, 5);
+    assertEquals(7, sheet.get(15, 25), 0.0001);
+    assertEquals(4, sheet.get(16, 26), 0.0001);
+  }
+
+  /**
+   * Tests that a cell outside a view cannot be reached through it.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testViewOutOfBounds() {
+    sheet.view(0, 0, 4, 4).get(5, 0);
+  }
+
+  /**
+   * Tests that a range copy whose destination leaves a view is refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testViewRangeOutOfBounds() {
+    sheet.view(0, 0, 4, 4).copyRange(0, 0, 1, 1, 4, 4);
+  }
+
+  /**
+   * Tests that a tile is promoted to dense storage once it fills up and demoted once it empties
+   * below a quarter.
+   */
+  @Test
+  public void testAdaptiveSpreadSheet() {
+    AdaptiveSpreadSheet adaptive = new AdaptiveSpreadSheet();
+    adaptive.set(1000, 1000, 3);
+    for (int i = 0; i < 64; i++) {
+      for (int j = 0; j < 32; j++) {
+        adaptive.set(i, j, i * 100 + j);
+      }
+    }
+    assertEquals(1, adaptive.getDenseTileCount());
+    assertEquals(1, adaptive.getSparseTileCount());
+    assertEquals(1, adaptive.getPromotionCount());
+    assertEquals(1001, adaptive.getHeight());
+
+    // clearing back down to just above a quarter keeps the tile dense
+    for (int i = 0; i < 31; i++) {
+      for (int j = 0; j < 32; j++) {
+        adaptive.clear(i, j);
+      }
+    }
+    assertEquals(1, adaptive.getDenseTileCount());
+    for (int j = 0; j < 32; j++) {
+      adaptive.clear(31, j);
+    }
+    assertEquals(0, adaptive.getDenseTileCount());
+    assertEquals(1, adaptive.getDemotionCount());
+    assertEquals(3301, adaptive.get(33, 1), 0.0001);
+    assertTrue(adaptive.isEmpty(31, 1));
+    assertFalse(adaptive.isEmpty(32, 1));
+
+    adaptive.clear(1000, 1000);
+    assertEquals(64, adaptive.getHeight());
+    assertEquals(32, adaptive.getWidth());
+
+    double[] row = new double[100];
+    adaptive.getRow(40, 0, 99, row, 0);
+    assertEquals(4031, row[31], 0.0001);
+    assertEquals(0, row[32], 0.0001);
+  }
+
+  /**
+   * Tests that a block filled for the memory benchmark stays inside the measured area, even when
+   * the area is much wider than it is high.
+   */
+  @Test
+  public void testMemoryBenchmarkBlockFitsArea() {
+    SpreadSheet wide = new SparseSpreadSheet();
+    assertEquals(2000, MemoryBenchmark.fill(wide, 4, 1000, 0.5, MemoryBenchmark.Pattern.BLOCK, 1));
+    assertEquals(2000, wide.countFilled(0, 0, 3, 999));
+    assertTrue(wide.getHeight() <= 4);
+  }
+
+  /**
+   * Tests that setting runs of a row in bulk gives the same cells on the adaptive and sparse
+   * sheets.
+   */
+  @Test
+  public void testSetRowBulk() {
+    AdaptiveSpreadSheet adaptive = new AdaptiveSpreadSheet();
+    SparseSpreadSheet sparse = new SparseSpreadSheet();
+    double[] run = new double[100];
+    for (int j = 0; j < run.length; j++) {
+      run[j] = j + 0.5;
+    }
+    for (int i = 0; i < 40; i++) {
+      adaptive.setRow(i, 10, run, 0, 100);
+      sparse.setRow(i, 10, run, 0, 100);
+    }
+    // the first tile holds 40 rows of 54 cells, past the promotion threshold
+    assertEquals(1, adaptive.getDenseTileCount());
+    assertEquals(110, adaptive.getWidth());
+    assertEquals(40, sparse.getHeight());
+    assertEquals(4000, sparse.countFilled(0, 0, 39, 109));
+    for (int i = 0; i < 41; i++) {
+      for (int j = 0; j < 112; j++) {
+        assertEquals(sparse.isEmpty(i, j), adaptive.isEmpty(i, j));
+        assertEquals(sparse.get(i, j), adaptive.get(i, j), 0.0);
+      }
+    }
+    assertTrue(adaptive.isEmpty(0, 9));
+    assertEquals(99.5, adaptive.get(39, 109), 0.0);
+  }
+
+  /**
+   * Tests that random writes and clears leave the adaptive sheet holding the same cells as the
+   * sparse one.
+   */
+  @Test
+  public void testAdaptiveMatchesSparse() {
+    AdaptiveSpreadSheet adaptive = new AdaptiveSpreadSheet(64, 16);
+    Random random = new Random(7);
+    for (int k = 0; k < 20000; k++) {
+      int row = random.nextInt(150);
+      int col = random.nextInt(150);
+      if (random.nextInt(3) == 0) {
+        adaptive.clear(row, col);
+        sheet.clear(row, col);
+      } else {
+        adaptive.set(row, col, k);
+        sheet.set(row, col, k);
+      }
+    }
+    assertTrue(adaptive.getPromotionCount() > 0);
+    for (int i = 0; i < 150; i++) {
+      for (int j = 0; j < 150; j++) {
+        assertEquals(sheet.isEmpty(i, j), adaptive.isEmpty(i, j));
+        assertEquals(sheet.get(i, j), adaptive.get(i, j), 0.0001);
+      }
+    }
+    assertEquals(sheet.getWidth(), adaptive.getWidth());
+    assertEquals(sheet.getHeight(), adaptive.getHeight());
+  }
+
+  /**
+   * Tests that a frozen sheet, and one frozen again after thawing, holds the same cells as the
+   * sheet it was frozen from.
+   */
+  @Test
+  public void testFreeze() {
+    SparseSpreadSheet sparse = new SparseSpreadSheet();
+    Random random = new Random(3);
+    for (int k = 0; k < 2000; k++) {
+      sparse.set(random.nextInt(100), random.nextInt(60), k);
+    }
+    sparse.set(5000000, 7, -2);
+    for (SparseSpreadSheet source : new SparseSpreadSheet[] {sparse, sparse.freeze().thaw()}) {
+      FrozenSpreadSheet frozen = source.freeze();
+      assertEquals(sparse.getHeight(), frozen.getHeight());
+      assertEquals(sparse.getWidth(), frozen.getWidth());
+      assertEquals(-2, frozen.get(5000000, 7), 0.0001);
+      assertTrue(frozen.isEmpty(5000000, 8));
+      double[] row = new double[60];
+      for (int i = 0; i < 100; i++) {
+        frozen.getRow(i, 0, 59, row, 0);
+        for (int j = 0; j < 60; j++) {
+          assertEquals(sparse.isEmpty(i, j), frozen.isEmpty(i, j));
+          assertEquals(sparse.get(i, j), frozen.get(i, j), 0.0001);
+          assertEquals(sparse.get(i, j), row[j], 0.0001);
+        }
+      }
+    }
+    // dense rows are indexed directly
+    SparseSpreadSheet dense = new SparseSpreadSheet();
+    dense.set(0, 0, 1);
+    dense.set(2, 3, 4);
+    FrozenSpreadSheet frozen = dense.freeze();
+    assertEquals(4, frozen.get(2, 3), 0.0001);
+    assertTrue(frozen.isEmpty(1, 0));
+    assertTrue(frozen.isEmpty(7, 0));
+    assertEquals(2, frozen.size());
+    assertEquals(0, new SparseSpreadSheet().freeze().getHeight());
+  }
+
+  /**
+   * Tests that a frozen sheet refuses writes.
+   */
+  @Test(expected = UnsupportedOperationException.class)
+  public void testFrozenWrite() {
+    sheet.set(0, 0, 1);
+    ((SparseSpreadSheet) sheet).freeze().set(0, 0, 2);
+  }
+
+  /**
+   * Tests that the memory footprint counts the index kept for every filled row.
+   */
+  @Test
+  public void testOccupancyFootprintCountsRows() {
+    SparseSpreadSheet oneRow = new SparseSpreadSheet();
+    SparseSpreadSheet ownRows = new SparseSpreadSheet();
+    for (int k = 0; k < 1000; k++) {
+      oneRow.set(0, k, k);
+      ownRows.set(k, 0, k);
+    }
+    // each row of the index costs over 100 bytes on top of the same map of values
+    assertTrue(ownRows.memoryFootprint() - oneRow.memoryFootprint() > 1000 * 100);
+  }
+
+  /**
+   * Tests that counting and finding filled cells through the index agrees with visiting every cell.
+   */
+  @Test
+  public void testOccupancyQueries() {
+    SparseSpreadSheet sparse = new SparseSpreadSheet();
+    Random random = new Random(11);
+    // row 0 fills enough of one chunk of columns to need a bitmap
+    for (int j = 0; j < 6000; j++) {
+      sparse.set(0, j * 3, j);
+    }
+    for (int k = 0; k < 3000; k++) {
+      sparse.set(1 + random.nextInt(40), random.nextInt(200000), k);
+    }
+    for (int j = 0; j < 5000; j++) {
+      sparse.clear(0, j * 3);
+    }
+    sparse.clear(0, 15006);
+    sparse.moveRange(1, 0, 5, 99999, 50, 100);
+    SpreadSheet reference = cellByCell(sparse);
+    SpreadSheet frozen = sparse.freeze();
+
+    int[][] ranges = {{0, 0, 60, 300000}, {0, 14000, 0, 17998}, {3, 50, 52, 70000},
+        {10, 65530, 30, 131080}, {0, 17997, 0, 17997}, {55, 0, 1000, 10}};
+    for (int[] r : ranges) {
+      long expected = reference.countFilled(r[0], r[1], r[2], r[3]);
+      assertEquals(expected, sparse.countFilled(r[0], r[1], r[2], r[3]));
+      assertEquals(expected, frozen.countFilled(r[0], r[1], r[2], r[3]));
+    }
+    assertEquals(999, sparse.countFilled(0, 0, 0, Integer.MAX_VALUE));
+
+    for (int i = 0; i < 60; i++) {
+      for (int from : new int[] {0, 15000, 65535, 65536, 150000}) {
+        int expected = reference.nextFilled(i, from);
+        assertEquals(expected, sparse.nextFilled(i, from));
+        assertEquals(expected, frozen.nextFilled(i, from));
+      }
+    }
+    assertEquals(15003, sparse.nextFilled(0, 15001));
+    assertEquals(15009, sparse.nextFilled(0, 15004));
+
+    SpreadSheet window = sparse.view(0, 15000, 0, 15010);
+    assertEquals(3, window.countFilled(0, 0, 0, 10));
+    assertEquals(9, window.nextFilled(0, 4));
+    assertEquals(-1, window.nextFilled(0, 10));
+  }
+
+  /**
+   * Tests counting the filled cells of a range that ends at the last row.
+   */
+  @Test
+  public void testOccupancyCountAtLastRow() {
+    SparseSpreadSheet sparse = new SparseSpreadSheet();
+    try (ShardedSpreadSheet sharded = new ShardedSpreadSheet(2, 4)) {
+      for (SpreadSheet s : new SpreadSheet[] {sparse, sharded}) {
+        for (int i = 0; i < 4; i++) {
+          s.set(i, 0, i);
+        }
+        s.set(Integer.MAX_VALUE - 1, 0, 1);
+        assertEquals(1, s.countFilled(Integer.MAX_VALUE - 1, 0, Integer.MAX_VALUE, 0));
+      }
+    }
+    assertEquals(5, sparse.countFilled(0, 0, Integer.MAX_VALUE, 0));
+  }
+
+  /**
+   * Tests that a macro that fails part way leaves the sheet as it was before the macro.
+   */
+  @Test
+  public void testMacroTransactionRollsBack() {
+    MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    enhancedSheet.set(2, 2, 9);
+    try {
+      enhancedSheet.executeMacro(s -> {
+        new BulkAssignMacro(0, 0, 4, 4, 1).execute(s);
+        s.clear(2, 2);
+        s.set(10, 10, 5);
+        throw new IllegalStateException("fails part way");
+      });
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(9, enhancedSheet.get(2, 2), 0.0001);
+    assertTrue(enhancedSheet.isEmpty(0, 0));
+    assertTrue(enhancedSheet.isEmpty(10, 10));
+    assertEquals(3, enhancedSheet.getHeight());
+  }
+
+  /**
+   * Tests that a macro running as a transaction reads its own writes, with the same result as
+   * running it cell by cell.
+   */
+  @Test
+  public void testMacroTransactionReadsItsWrites() {
+    MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    SpreadSheet model = new SparseSpreadSheet();
+    Random random = new Random(5);
+    for (int k = 0; k < 300; k++) {
+      int row = random.nextInt(30);
+      int col = random.nextInt(30);
+      enhancedSheet.set(row, col, k);
+      model.set(row, col, k);
+    }
+    SpreadSheetMacro macro = s -> {
+      new RangeMacro(0, 0, 0, 29, 1, 1).execute(s);
+      s.clear(5, 5);
+      assertTrue(s.isEmpty(5, 5));
+      assertEquals(30, s.get(0, 29), 0.0001);
+      double[] row = new double[30];
+      s.getRow(0, 0, 29, row, 0);
+      assertEquals(15, row[14], 0.0001);
+      s.copyRange(0, 0, 9, 9, 4, 4);
+      s.moveRange(20, 20, 29, 29, 15, 18);
+      new AverageMacro(0, 0, 29, 29, 35, 0).execute(s);
+    };
+    enhancedSheet.executeMacro(macro);
+    macro.execute(cellByCell(model));
+    for (int i = 0; i < 40; i++) {
+      for (int j = 0; j < 40; j++) {
+        assertEquals(model.isEmpty(i, j), enhancedSheet.isEmpty(i, j));
+        assertEquals(model.get(i, j), enhancedSheet.get(i, j), 0.0001);
+      }
+    }
+  }
+
+  /**
+   * Tests that range fills in a transaction are written through without buffering each cell, and
+   * that they are undone with the rest of a failed macro.
+   */
+  @Test
+  public void testMacroTransactionFillsRanges() {
+    MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+    SpreadSheet model = new SparseSpreadSheet();
+    enhancedSheet.set(3, 3, 8);
+    model.set(3, 3, 8);
+    SpreadSheetMacro macro = s -> {
+      s.set(1, 1, 4);
+      s.clear(3, 3);
+      new BulkAssignMacro(0, 0, 199, 199, 2).execute(s);
+      s.set(2, 2, 6);
+      new RangeMacro(150, 150, 249, 249, 0, 0.1).execute(s);
+      s.clear(200, 200);
+    };
+    enhancedSheet.executeMacro(s -> {
+      long before = enhancedSheet.memoryFootprint();
+      macro.execute(s);
+      // the filled ranges are written through rather than buffered cell by cell
+      assertTrue(s.memoryFootprint() - enhancedSheet.memoryFootprint() < 64 * 1024);
+      assertTrue(enhancedSheet.memoryFootprint() > before);
+    });
+    macro.execute(cellByCell(model));
+    try {
+      enhancedSheet.executeMacro(s -> {
+        new RangeMacro(100, 100, 299, 299, 1, 1).execute(s);
+        new BulkAssignMacro(250, 0, 259, 259, 5).execute(s);
+        throw new IllegalStateException("fails after the fills");
+      });
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    for (int i = 0; i < 300; i++) {
+      for (int j = 0; j < 300; j++) {
+        assertEquals(model.isEmpty(i, j), enhancedSheet.isEmpty(i, j));
+        assertEquals(model.get(i, j), enhancedSheet.get(i, j), 0.0);
+      }
+    }
+  }
+
+  /**
+   * Tests that every kind of macro leaves the sharded sheet holding the same cells as the enhanced
+   * one.
+   */
+  @Test
+  public void testShardedMatchesEnhanced() {
+    try (ShardedSpreadSheet sharded = new ShardedSpreadSheet(3, 4)) {
+      MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+      List<SpreadSheetMacro> macros = Arrays.asList(
+          new BulkAssignMacro(1, 0, 30, 5, 2),
+          new RangeMacro(5, 2, 25, 4, 1, 0.5),
+          new AverageMacro(0, 0, 39, 5, 45, 0),
+          new AggregateMacro(AggregateMacro.Function.SUM, 2, 1, 33, 4, 45, 1),
+          new AggregateMacro(AggregateMacro.Function.MAX, 0, 0, 39, 5, 45, 2),
+          new AggregateMacro(AggregateMacro.Function.MIN, 6, 3, 20, 4, 45, 3),
+          new SortMacro(0, 2, 30, 4, 3, false),
+          new CopyRangeMacro(0, 0, 9, 5, 12, 3),
+          new MoveRangeMacro(20, 0, 29, 5, 40, 6));
+      for (MacroSpreadSheet target : new MacroSpreadSheet[] {sharded, enhancedSheet}) {
+        target.set(38, 1, -7);
+        for (SpreadSheetMacro macro : macros) {
+          target.executeMacro(macro);
+        }
+      }
+      assertEquals(enhancedSheet.getHeight(), sharded.getHeight());
+      assertEquals(enhancedSheet.getWidth(), sharded.getWidth());
+      assertEquals(enhancedSheet.countFilled(0, 0, 49, 11), sharded.countFilled(0, 0, 49, 11));
+      for (int i = 0; i < 50; i++) {
+        for (int j = 0; j < 12; j++) {
+          assertEquals(enhancedSheet.isEmpty(i, j), sharded.isEmpty(i, j));
+          assertEquals(enhancedSheet.get(i, j), sharded.get(i, j), 0.0001);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tests that range copies and moves, overlapping in every direction, give the same cells on the
+   * sharded and enhanced sheets.
+   */
+  @Test
+  public void testShardedTransfersMatchEnhanced() {
+    try (ShardedSpreadSheet sharded = new ShardedSpreadSheet(3, 4)) {
+      MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+      Random random = new Random(11);
+      for (int k = 0; k < 400; k++) {
+        int row = random.nextInt(40);
+        int col = random.nextInt(40);
+        sharded.set(row, col, k);
+        enhancedSheet.set(row, col, k);
+      }
+      int[][] transfers = {
+          {5, 5, 20, 20, 9, 7}, {9, 7, 24, 22, 2, 3}, {0, 10, 30, 15, 3, 8},
+          {3, 8, 33, 13, 1, 12}, {10, 0, 12, 39, 10, 0}, {0, 0, 39, 39, 41, 41}};
+      for (int k = 0; k < transfers.length; k++) {
+        int[] t = transfers[k];
+        for (MacroSpreadSheet target : new MacroSpreadSheet[] {sharded, enhancedSheet}) {
+          if (k % 2 == 0) {
+            target.copyRange(t[0], t[1], t[2], t[3], t[4], t[5]);
+          } else {
+            target.executeMacro(new MoveRangeMacro(t[0], t[1], t[2], t[3], t[4], t[5]));
+          }
+        }
+      }
+      for (int i = 0; i < 90; i++) {
+        for (int j = 0; j < 90; j++) {
+          assertEquals(enhancedSheet.isEmpty(i, j), sharded.isEmpty(i, j));
+          assertEquals(enhancedSheet.get(i, j), sharded.get(i, j), 0.0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tests that a range split over the shards gets exactly the values of filling it whole.
+   */
+  @Test
+  public void testShardedRangeIsExact() {
+    try (ShardedSpreadSheet sharded = new ShardedSpreadSheet(3, 4)) {
+      MacroSpreadSheet enhancedSheet = new EnhancedSpreadSheet();
+      // 0.1 has no exact binary form, so any difference in how a value is reached shows
+      RangeMacro macro = new RangeMacro(3, 1, 40, 7, 0.3, 0.1);
+      sharded.executeMacro(macro);
+      enhancedSheet.executeMacro(macro);
+      for (int i = 3; i <= 40; i++) {
+        for (int j = 1; j <= 7; j++) {
+          long k = (i - 3) * 7L + (j - 1);
+          assertEquals(0.3 + k * 0.1, enhancedSheet.get(i, j), 0.0);
+          assertEquals(enhancedSheet.get(i, j), sharded.get(i, j), 0.0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tests that writes from many threads at once all reach the sharded sheet.
+   */
+  @Test
+  public void testShardedConcurrentWrites() throws InterruptedException {
+    try (ShardedSpreadSheet sharded = new ShardedSpreadSheet(4, 8)) {
+      List<Thread> writers = new ArrayList<Thread>();
+      for (int t = 0; t < 4; t++) {
+        int column = t;
+        writers.add(new Thread(() -> {
+          for (int i = 0; i < 2000; i++) {
+            sharded.set(i, column, i + column);
+          }
+        }));
+      }
+      for (Thread writer : writers) {
+        writer.start();
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      assertEquals(8000, sharded.countFilled(0, 0, 1999, 3));
+      assertEquals(1999 + 3, sharded.get(1999, 3), 0.0001);
+    }
+  }
+
+  /**
+   * Tests that the server answers a client that pipelines its commands and many clients sharing one
+   * sheet at once.
+   */
+  @Test
+  public void testServerSessions() throws IOException, InterruptedException {
+    try (ShardedSpreadSheet shared = new ShardedSpreadSheet(4, 8);
+        SpreadSheetServer server = new SpreadSheetServer(shared, 0)) {
+      // one client pipelines its commands without waiting for replies
+      String reply = session(server.getPort(),
+          "assign-value A 1 3.5\nassign-value B 1 4\nprint-value B 1\nq\n");
+      assertTrue(reply.contains("Value: 4.0"));
 
-}
\ No newline at end of file
+      // many clients at once, each writing its own row of the shared sheet
+      List<Thread> clients = new ArrayList<Thread>();
+      List<String> replies = Collections.synchronizedList(new ArrayList<String>());
+      for (int t = 0; t < 50; t++) {
+        int row = t + 2;
+        clients.add(new Thread(() -> {
+          try {
+            replies.add(session(server.getPort(), "assign-value " + (char) ('A' + row % 26)
+                + " " + (row / 26 + 1) + " " + row + "\nprint-value A 1\nq\n"));
+          } catch (IOException e) {
+            replies.add(e.toString());
+          }
+        }));
+      }
+      for (Thread client : clients) {
+        client.start();
+      }
+      for (Thread client : clients) {
+        client.join();
+      }
+      assertEquals(50, replies.size());
+      for (String each : replies) {
+        assertTrue(each.contains("Value: 3.5"));
+      }
+      assertEquals(51, server.getSessionCount());
+      assertEquals(52, shared.countFilled(0, 0, 51, 2));
+      assertEquals(51, shared.get(51 % 26, 51 / 26), 0.0001);
+    }
+  }
+
+  /**
+   * Send commands to a server over loopback and return everything it replies until it hangs up.
+   *
+   * @param port     the port of the server
+   * @param commands the commands to send
+   * @return the reply
+   * @throws IOException if the server cannot be reached
+   */
+  private static String session(int port, String commands) throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      OutputStream out = socket.getOutputStream();
+      out.write(commands.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      InputStream in = socket.getInputStream();
+      ByteArrayOutputStream reply = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+        reply.write(buffer, 0, n);
+      }
+      return new String(reply.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Tests that a submitted macro is executed and reports its progress up to the expected total.
+   */
+  @Test
+  public void testAsyncMacro() throws Exception {
+    EnhancedSpreadSheet async = new EnhancedSpreadSheet();
+    try (AsyncMacroExecutor executor = new AsyncMacroExecutor(async)) {
+      List<Long> totals = new ArrayList<Long>();
+      executor.submit(new BulkAssignMacro(0, 0, 99, 99, 2),
+          (done, total) -> totals.add(total)).get(10, TimeUnit.SECONDS);
+      assertEquals(10000, async.countFilled(0, 0, 99, 99));
+      assertEquals(Long.valueOf(10000), totals.get(totals.size() - 1));
+    }
+  }
+
+  /**
+   * Tests that cancelling a running macro stops it and drops the writes it had made.
+   */
+  @Test
+  public void testAsyncMacroCancelRollsBack() throws Exception {
+    EnhancedSpreadSheet async = new EnhancedSpreadSheet();
+    async.set(0, 0, 7);
+    CountDownLatch reached = new CountDownLatch(1);
+    CountDownLatch resume = new CountDownLatch(1);
+    try (AsyncMacroExecutor executor = new AsyncMacroExecutor(async)) {
+      CompletableFuture<Void> future = executor.submit(new BulkAssignMacro(0, 0, 99, 99, 2),
+          (done, total) -> {
+            if (done >= 4096 && reached.getCount() > 0) {
+              // hold the macro in the middle of the range until it has been cancelled
+              reached.countDown();
+              try {
+                resume.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          });
+      assertTrue(reached.await(10, TimeUnit.SECONDS));
+      future.cancel(true);
+      resume.countDown();
+      executor.awaitIdle();
+      assertTrue(future.isCancelled());
+      assertEquals(1, async.countFilled(0, 0, 99, 99));
+      assertEquals(7, async.get(0, 0), 0.0001);
+    }
+  }
+
+  /**
+   * Tests that a macro submitted on a sharded sheet is split over the shards, and that stopping it
+   * drops its writes on every shard.
+   */
+  @Test
+  public void testShardedAsyncMacro() throws Exception {
+    try (ShardedSpreadSheet sharded = new ShardedSpreadSheet(4, 8);
+        AsyncMacroExecutor executor = new AsyncMacroExecutor(sharded)) {
+      sharded.set(0, 0, 7);
+      CompletableFuture<Void> future = executor.submit(
+          new BulkAssignMacro(0, 0, 99999, 999, 2)).orTimeout(20, TimeUnit.MILLISECONDS);
+      executor.awaitIdle();
+      assertTrue(future.isCompletedExceptionally());
+      assertEquals(1, sharded.countFilled(0, 0, 99999, 999));
+      assertEquals(7, sharded.get(0, 0), 0.0001);
+
+      executor.submit(new RangeMacro(0, 0, 39, 9, 1, 1)).get(10, TimeUnit.SECONDS);
+      executor.submit(new CopyRangeMacro(0, 0, 39, 9, 3, 5)).get(10, TimeUnit.SECONDS);
+      executor.submit(new AggregateMacro(AggregateMacro.Function.SUM, 3, 5, 42, 14, 50, 0))
+          .get(10, TimeUnit.SECONDS);
+      assertEquals(1, sharded.get(3, 5), 0.0001);
+      assertEquals(400, sharded.get(42, 14), 0.0001);
+      assertEquals(80200, sharded.get(50, 0), 0.0001);
+    }
+  }
+
+  /**
+   * Tests that submitting is refused once the queue of waiting macros is full.
+   */
+  @Test
+  public void testAsyncMacroQueueIsBounded() throws Exception {
+    EnhancedSpreadSheet async = new EnhancedSpreadSheet();
+    CountDownLatch release = new CountDownLatch(1);
+    try (AsyncMacroExecutor executor = new AsyncMacroExecutor(async, 1)) {
+      CompletableFuture<Void> running = executor.submit(sheet -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      CompletableFuture<Void> waiting = null;
+      boolean refused = false;
+      // the first macro may not have been taken off the queue yet, so allow one more
+      for (int k = 0; k < 3 && !refused; k++) {
+        try {
+          waiting = executor.submit(new BulkAssignMacro(0, 0, 0, 0, 1));
+        } catch (IllegalStateException e) {
+          refused = true;
+        }
+      }
+      assertTrue(refused);
+      release.countDown();
+      running.get(10, TimeUnit.SECONDS);
+      waiting.get(10, TimeUnit.SECONDS);
+      assertEquals(1, async.get(0, 0), 0.0001);
+    }
+  }
+
+  /**
+   * Tests that the controller gives up on a macro that runs past its time limit and leaves the
+   * sheet as it was.
+   */
+  @Test
+  public void testControllerMacroTimeout() {
+    EnhancedSpreadSheet async = new EnhancedSpreadSheet();
+    StringBuilder output = new StringBuilder();
+    new SpreadSheetControllerEnhanced(async,
+        new StringReader("bulk-assign-value A 1 ZZZZ 100000 5 print-value A 1 q"), output, 50)
+        .control();
+    assertTrue(output.toString().contains("did not finish within 50 ms"));
+    assertTrue(output.toString().contains("Value: 0.0"));
+    assertEquals(0, async.getHeight());
+  }
+
+  /**
+   * Tests that an error thrown by a macro run with a time limit reaches the caller unchanged. The
+   * sheet throws an OutOfMemoryError, which must not come out wrapped in or replaced by a
+   * RuntimeException.
+   */
+  @Test(expected = OutOfMemoryError.class)
+  public void testControllerMacroTimeoutKeepsErrors() {
+    EnhancedSpreadSheet failing = new EnhancedSpreadSheet() {
+      @Override
+      public void executeMacro(SpreadSheetMacro macro) {
+        throw new OutOfMemoryError("macro ran out of memory");
+      }
+    };
+    new SpreadSheetControllerEnhanced(failing,
+        new StringReader("bulk-assign-value A 1 B 2 5 q"), new StringBuilder(), 1000).control();
+  }
+
+  /**
+   * Tests that the server gives up on a macro that runs past its time limit and still answers the
+   * commands after it.
+   */
+  @Test
+  public void testServerMacroTimeout() throws IOException {
+    try (ShardedSpreadSheet shared = new ShardedSpreadSheet(4, 8);
+        SpreadSheetServer server = new SpreadSheetServer(shared, 0,
+            InetAddress.getLoopbackAddress(), 50)) {
+      String reply = session(server.getPort(),
+          "assign-value A 1 2\nbulk-assign-value A 1 ZZZZ 100000 5\nprint-value A 1\nq\n");
+      assertTrue(reply.contains("did not finish within 50 ms"));
+      assertTrue(reply.contains("Value: 2.0"));
+    }
+  }
+
+  /**
+   * Returns a spreadsheet that forwards the basic operations to the given one but keeps the
+   * default implementations of every other operation.
+   *
+   * @param delegate the spreadsheet to forward to
+   * @return the forwarding spreadsheet
+   */
+  private static SpreadSheet cellByCell(SpreadSheet delegate) {
+    return new SpreadSheet() {
+      @Override
+      public double get(int row, int col) {
+        return delegate.get(row, col);
+      }
+
+      @Override
+      public void set(int row, int col, double value) {
+        delegate.set(row, col, value);
+      }
+
+      @Override
+      public void clear(int row, int col) {
+        delegate.clear(row, col);
+      }
+
+      @Override
+      public boolean isEmpty(int row, int col) {
+        return delegate.isEmpty(row, col);
+      }
+
+      @Override
+      public int getWidth() {
+        return delegate.getWidth();
+      }
+
+      @Override
+      public int getHeight() {
+        return delegate.getHeight();
+      }
+
+      @Override
+      public long memoryFootprint() {
+        return delegate.memoryFootprint();
+      }
+    };
+  }
+}